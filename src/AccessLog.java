@@ -0,0 +1,224 @@
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The access log: a line per response sent -
+ * <pre>client [date time] "METHOD path PROTOCOL" status bytes latency_us</pre>
+ * e.g. <code>127.0.0.1 [2026-10-19 17:50:58.906] "GET /index.html HTTP/1.1" 200 322 415</code>.
+ * Like Log, the request thread only fills a slot of a lock-free ring buffer with references,
+ * and a background thread formats the records and writes them in batches to a rolling file.
+ * If the ring buffer is full the record is dropped, and the number of dropped records is logged later.
+ */
+public class AccessLog {
+
+	public static boolean enabled = true;
+
+	private static final int RING_BUFFER_SIZE = 16 * 1024;
+
+	/** The longest the writer sleeps when there's nothing to write - a new record wakes it up sooner */
+	private static final long IDLE_PARK_NANOS = 1000 * 1000 * 1000L;
+
+	/**
+	 * A slot in the ring buffer.
+	 */
+	private static class AccessEvent {
+		long timeMillis;
+		String client;
+		HTTP_METHOD method;
+		String path;
+		String protocol;
+		HTTP_CODE code;
+		long bytes;
+		long nanos;
+	}
+
+	private static final RingBuffer<AccessEvent> ringBuffer = new RingBuffer<>(RING_BUFFER_SIZE, new RingBuffer.EventFactory<AccessEvent>() {
+		@Override
+		public AccessEvent newEvent() {
+			return new AccessEvent();
+		}
+	});
+
+	private static final AtomicLong dropped = new AtomicLong();
+
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+	//Set by configure(), picked up by the writer thread.
+	private static volatile RollingFileWriter pendingOutput;
+
+	private static AccessWriter accessWriter;
+
+	/**
+	 * Sets the output and starts the writer thread. Called once the config file is read.
+	 * @param fileName - the access log file, <code>null</code> or empty for System.out.
+	 * @param maxBytes - the file is rolled over when it is bigger than this.
+	 * @param maxFiles - number of rolled files to keep.
+	 */
+	public static synchronized void configure(String fileName, long maxBytes, int maxFiles) {
+		pendingOutput = new RollingFileWriter(fileName, maxBytes, maxFiles);
+		if (accessWriter != null) {
+			return;
+		}
+
+		accessWriter = new AccessWriter();
+		Thread writerThread = new Thread(accessWriter, "access-log-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+
+		//Don't lose the tail of the log when the application exits.
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				accessWriter.drainOnce();
+			}
+		});
+	}
+
+	/**
+	 * Records a response.
+	 * @param client - the client's address.
+	 * @param request - the request answered, <code>null</code> if it wasn't read (e.g. a connection shed with a 503).
+	 * @param protocol - the protocol of the response, <code>null</code> for the HTTP version of the request.
+	 * @param code - the response code.
+	 * @param bytes - the bytes of the response, head included.
+	 * @param nanos - the time from the request was read to the response was written.
+	 */
+	public static void log(String client, WebServerHttpRequest request, String protocol, HTTP_CODE code, long bytes, long nanos) {
+		if (!enabled || accessWriter == null) {
+			return;
+		}
+
+		long seq = ringBuffer.claim();
+		if (seq == -1) {
+			dropped.incrementAndGet();
+			return;
+		}
+
+		AccessEvent event = ringBuffer.get(seq);
+		event.timeMillis = System.currentTimeMillis();
+		event.client = client;
+		event.method = request != null ? request.getHttpMethod() : null;
+		event.path = request != null ? request.getPath() : null;
+		if (protocol == null && request != null && request.getHttpVersion() != null) {
+			protocol = request.getHttpVersion().toString();
+		}
+		event.protocol = protocol;
+		event.code = code;
+		event.bytes = bytes;
+		event.nanos = nanos;
+		ringBuffer.publish(seq);
+	}
+
+	/**
+	 * The background thread: drains the ring buffer and writes the formatted lines.
+	 */
+	private static class AccessWriter implements Runnable, RingBuffer.EventHandler<AccessEvent> {
+
+		private RollingFileWriter output = new RollingFileWriter(null, 0, 0);
+		private final Calendar calendar = Calendar.getInstance();
+		private final StringBuilder line = new StringBuilder(256);
+
+		@Override
+		public void run() {
+			while (true) {
+				if (drainOnce() == 0) {
+					ringBuffer.await(IDLE_PARK_NANOS);
+				}
+			}
+		}
+
+		/**
+		 * Synchronized because the shutdown hook drains too, while the writer thread may still be running.
+		 */
+		synchronized int drainOnce() {
+			RollingFileWriter newOutput = pendingOutput;
+			if (newOutput != null) {
+				pendingOutput = null;
+				try {
+					output.close();
+				} catch (IOException e) {
+					//Nothing to do about it
+				}
+				output = newOutput;
+			}
+
+			int count = ringBuffer.drain(this);
+			if (count > 0) {
+				try {
+					output.flush();
+				} catch (IOException e) {
+					Log.w("AccessLog : cannot write the access log: %s", e.getMessage());
+				}
+			}
+
+			long lost = dropped.getAndSet(0);
+			if (lost > 0) {
+				Log.w("AccessLog : %d records were dropped, the access log buffer was full", lost);
+			}
+			return count;
+		}
+
+		@Override
+		public void onEvent(AccessEvent event) {
+			calendar.setTimeInMillis(event.timeMillis);
+			line.setLength(0);
+			line.append(event.client != null ? event.client : "-").append(" [")
+				.append(calendar.get(Calendar.YEAR)).append('-');
+			pad(calendar.get(Calendar.MONTH) + 1, 2).append('-');
+			pad(calendar.get(Calendar.DAY_OF_MONTH), 2).append(' ');
+			pad(calendar.get(Calendar.HOUR_OF_DAY), 2).append(':');
+			pad(calendar.get(Calendar.MINUTE), 2).append(':');
+			pad(calendar.get(Calendar.SECOND), 2).append('.');
+			pad(calendar.get(Calendar.MILLISECOND), 3).append("] \"")
+				.append(event.method != null ? event.method.toString() : "-").append(' ');
+			appendPath(event.path);
+			line.append(' ')
+				.append(event.protocol != null ? event.protocol : "-").append("\" ")
+				.append(event.code != null ? event.code.toString().substring(0, 3) : "-").append(' ')
+				.append(event.bytes).append(' ')
+				.append(event.nanos / 1000).append('\n');
+
+			try {
+				output.write(line);
+			} catch (IOException e) {
+				//Reported when flushed
+			}
+			//Don't keep the strings alive until the slot is reused.
+			event.client = null;
+			event.path = null;
+			event.protocol = null;
+		}
+
+		/**
+		 * Appends the path with the quotes and backslashes escaped, and the spaces, control and non-ASCII
+		 * characters as \xhh, like Apache does - an HTTP/2 :path is any string, and mustn't break the line
+		 * or forge another.
+		 */
+		private void appendPath(String path) {
+			if (path == null) {
+				line.append('-');
+				return;
+			}
+			for (int i = 0; i < path.length(); i++) {
+				char c = path.charAt(i);
+				if (c == '"' || c == '\\') {
+					line.append('\\').append(c);
+				} else if (c <= ' ' || c >= 0x7f) {
+					line.append("\\x").append(HEX_DIGITS[(c >> 4) & 0xf]).append(HEX_DIGITS[c & 0xf]);
+				} else {
+					line.append(c);
+				}
+			}
+		}
+
+		private StringBuilder pad(int value, int digits) {
+			for (int limit = 10; digits > 1; digits--, limit *= 10) {
+				if (value < limit) {
+					line.append('0');
+				}
+			}
+			return line.append(value);
+		}
+	}
+}
@@ -0,0 +1,165 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control of the web server, for both server modes.
+ * A new connection is admitted while fewer than <code>maxConnections</code> are open, and a request is handed to
+ * the workers while fewer than <code>maxQueuedRequests</code> wait in their queue. Past a limit, the keep-alive
+ * connection that sat idle the longest is reclaimed (closed) to make room. Only if there is none, the server
+ * fails fast with a 503 and Retry-After, instead of letting the client wait for a timeout.
+ */
+public class AdmissionControl {
+
+	/** Connections open at the same time */
+	public static int maxConnections = 1024;
+
+	/** Requests (connections, in the blocking mode) waiting for a worker */
+	public static int maxQueuedRequests = 256;
+
+	/** The Retry-After of a 503, in seconds */
+	public static int retryAfterSeconds = 1;
+
+	/**
+	 * A keep-alive connection that waits for the client's next request, and may be closed to make room.
+	 */
+	public interface IdleConnection {
+		/**
+		 * Closes the connection. May be called by any thread.
+		 */
+		void reclaim();
+	}
+
+	/**
+	 * An idle connection, ordered by since when it's idle.
+	 */
+	private static final class IdleEntry implements Comparable<IdleEntry> {
+		private final IdleConnection connection;
+		private final long idleSince;
+		//Orders the entries idle since the same time
+		private final long seq;
+
+		IdleEntry(IdleConnection connection, long idleSince, long seq) {
+			this.connection = connection;
+			this.idleSince = idleSince;
+			this.seq = seq;
+		}
+
+		@Override
+		public int compareTo(IdleEntry other) {
+			if (idleSince != other.idleSince) {
+				return idleSince - other.idleSince < 0 ? -1 : 1;
+			}
+			return Long.compare(seq, other.seq);
+		}
+	}
+
+	//The idle keep-alive connections, the idlest first, and the entry of each.
+	private static final ConcurrentSkipListSet<IdleEntry> sIdleOrder = new ConcurrentSkipListSet<>();
+	private static final ConcurrentHashMap<IdleConnection, IdleEntry> sIdle = new ConcurrentHashMap<>();
+	private static final AtomicLong sIdleSeq = new AtomicLong();
+
+	private static final Metrics.Counter rejectedConnections = Metrics.getInstance().counter("webserver_rejected_total",
+			"Connections & requests answered with 503 because of a limit.", "reason=\"connections\"");
+	private static final Metrics.Counter rejectedRequests = Metrics.getInstance().counter("webserver_rejected_total",
+			"Connections & requests answered with 503 because of a limit.", "reason=\"queue\"");
+	private static final Metrics.Counter reclaimed = Metrics.getInstance().counter("webserver_reclaimed_connections_total",
+			"Idle keep-alive connections closed to make room.");
+
+	private static volatile byte[] sServiceUnavailable;
+
+	/**
+	 * Takes the slot of a new connection, after reclaiming an idle one if needed. The slot is released
+	 * by ServerMetrics.connectionClosed(), when the connection closes or if it's not opened after all.
+	 * @return <code>true</code> if the connection is admitted.
+	 */
+	public static boolean admitConnection() {
+		if (ServerMetrics.tryOpenConnection(maxConnections)) {
+			return true;
+		}
+		if (reclaimIdlest()) {
+			//Over the limit until the reclaimed connection is closed
+			ServerMetrics.connectionOpened();
+			return true;
+		}
+		rejectedConnections.inc();
+		return false;
+	}
+
+	/**
+	 * @param workers - the pool the request would be submitted to.
+	 * @return <code>true</code> if a request may be queued, after reclaiming an idle connection if needed.
+	 */
+	public static boolean admitRequest(ThreadPool workers) {
+		if (workers.getQueueSize() < maxQueuedRequests || reclaimIdlest()) {
+			return true;
+		}
+		rejectedRequests.inc();
+		return false;
+	}
+
+	/**
+	 * Marks a keep-alive connection as waiting for the client.
+	 */
+	public static void idle(IdleConnection connection) {
+		IdleEntry entry = new IdleEntry(connection, System.nanoTime(), sIdleSeq.incrementAndGet());
+		IdleEntry old = sIdle.put(connection, entry);
+		if (old != null) {
+			sIdleOrder.remove(old);
+		}
+		sIdleOrder.add(entry);
+	}
+
+	/**
+	 * Marks a connection as busy (or closed) - it's not reclaimed anymore.
+	 */
+	public static void busy(IdleConnection connection) {
+		IdleEntry entry = sIdle.remove(connection);
+		if (entry != null) {
+			sIdleOrder.remove(entry);
+		}
+	}
+
+	/**
+	 * Closes the keep-alive connection that sat idle the longest.
+	 * @return <code>false</code> if there's no idle connection.
+	 */
+	public static boolean reclaimIdlest() {
+		while (true) {
+			IdleEntry idlest = sIdleOrder.pollFirst();
+			if (idlest == null) {
+				return false;
+			}
+
+			//It may have just got a request, and be idle again since.
+			if (sIdle.remove(idlest.connection, idlest)) {
+				Log.d("AdmissionControl : reclaiming an idle connection");
+				reclaimed.inc();
+				idlest.connection.reclaim();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return the complete 503 response, that closes the connection.
+	 */
+	public static byte[] serviceUnavailable() {
+		byte[] response = sServiceUnavailable;
+		if (response == null) {
+			String body = "<!DOCTYPE html><html lang=\"en\"><head><meta charset=\"UTF-8\"><title>503 Service Unavailable"
+					+ "</title></head><body>503 Service Unavailable.</body></html>";
+			StringBuilder sb = new StringBuilder();
+			sb.append(HTTP_VERSION.HTTP_1_1).append(" ").append(HTTP_CODE.ERR_503_SERVICE_UNAVAILABLE).append(WebServer.CRLF);
+			sb.append("retry-after: ").append(retryAfterSeconds).append(WebServer.CRLF);
+			sb.append("content-type: ").append(CONTENT_TYPE.TEXT_HTML).append(WebServer.CRLF);
+			sb.append("content-length: ").append(body.length()).append(WebServer.CRLF);
+			sb.append("connection: close").append(WebServer.CRLF);
+			sb.append(WebServer.CRLF);
+			sb.append(body);
+			response = sb.toString().getBytes();
+			sServiceUnavailable = response;
+		}
+		return response;
+	}
+}
@@ -1,6 +1,7 @@
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A task for parsing HTML content, and extracting links, images, videos & documents,
@@ -14,8 +15,8 @@ public class AnalyzerTask extends Task {
 	private ThreadPool downloadersPool;
 	private ThreadPool analyzersPool;
 	
-	private static int numAnalyzersAlive = 0;
-	private static final Object numAnalyzersAliveLock = new Object();
+	//Atomic rather than synchronized, so the progress stream can read it without blocking the analyzers.
+	private static final AtomicInteger numAnalyzersAlive = new AtomicInteger();
 	
 	public AnalyzerTask(String url, String html, ThreadPool downloadersPool, ThreadPool analyzersPool) {
 		currUrl = url;
@@ -37,7 +38,7 @@ public class AnalyzerTask extends Task {
 	 */
 	@Override
 	public void run() {
-		Log.d(String.format("AnalyzerTask is running on %s", currUrl));
+		Log.d("AnalyzerTask is running on %s", currUrl);
 		HashMap<String, ArrayList<String>> exts = new HashMap<>();
 		
 		//Put the extensions from config.ini in a hash-map, for passing it to the HtmlParser.
@@ -75,7 +76,7 @@ public class AnalyzerTask extends Task {
 	private void sendToDownload(ArrayList<String> urls, int resourceType) {
 		for (String url : urls) {
 			if (!webCrawler.getVisitedUrls().contains(url)) {
-				Log.d(String.format("non-visited URL is found! send to downloader : url = %s", url));				
+				Log.d("non-visited URL is found! send to downloader : url = %s", url);				
 				downloadersPool.submit(new DownloaderTask(url, resourceType, downloadersPool, analyzersPool));
 			}
 		}
@@ -88,21 +89,15 @@ public class AnalyzerTask extends Task {
 	}
 
 	private void increaseNumOfAnalyzersAlive () {
-		synchronized (numAnalyzersAliveLock) {
-			numAnalyzersAlive++;
-		}
+		numAnalyzersAlive.incrementAndGet();
 	}
 	private void decreaseNumOfAnalyzersAlive() {
-		synchronized (numAnalyzersAliveLock) {
-			numAnalyzersAlive--;
-			Log.d("remaining items in Analyzers queue: " + numAnalyzersAlive);
-		}
+		int remaining = numAnalyzersAlive.decrementAndGet();
+		Log.d("remaining items in Analyzers queue: %d", remaining);
 		
 		webCrawler.checkIfFinished();
 	}
 	public static int getNumOfAnalyzersAlive() {
-		synchronized (numAnalyzersAliveLock) {
-			return numAnalyzersAlive;
-		}
+		return numAnalyzersAlive.get();
 	}
 }
@@ -5,7 +5,8 @@ public enum CONTENT_TYPE {
     TEXT_HTML("text/html"),
     IMAGE("image"), ICON("icon"),
     APP_OCTSTREAM("application/octet-stream"),
-    MSG_HTTP("message/http");
+    MSG_HTTP("message/http"),
+    TEXT_PLAIN_METRICS("text/plain; version=0.0.4");
 
     private final String type;
 
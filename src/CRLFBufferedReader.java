@@ -30,8 +30,9 @@ public class CRLFBufferedReader extends BufferedReader {
 			char c = (char) i;
 			sb.append(c);
 			
-			int length = WebServer.CRLF.length();
-			if (sb.length() >= length && sb.substring(sb.length() - length).equals(WebServer.CRLF)) {
+			//Only the last two chars can complete a CRLF
+			int length = sb.length();
+			if (c == '\n' && length >= 2 && sb.charAt(length - 2) == '\r') {
 				
 				return sb.toString();
 			}
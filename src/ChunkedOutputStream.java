@@ -0,0 +1,101 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes what is written to it with the chunked transfer-encoding, as it is written.
+ * Data is collected up to the chunk size and then sent as one chunk - header, data and CRLF in a single write.
+ * <code>flush</code> sends a partial chunk. <code>close</code> sends the last (empty) chunk, but leaves
+ * the underlying stream - the connection - open.
+ */
+public class ChunkedOutputStream extends FilterOutputStream {
+
+	//Room before the data for the chunk size in hex and its CRLF.
+	private static final int HEADER_ROOM = 10;
+
+	private static final byte[] LAST_CHUNK = ("0" + WebServer.CRLF + WebServer.CRLF).getBytes();
+
+	private final byte[] buffer;
+	private final int chunkSize;
+	private int count = 0;
+	private long bytesWritten = 0;
+	private boolean finished = false;
+
+	/**
+	 * @param out - the stream of the connection.
+	 * @param chunkSize - the largest chunk sent, in bytes.
+	 */
+	public ChunkedOutputStream(OutputStream out, int chunkSize) {
+		super(out);
+		this.chunkSize = chunkSize;
+		buffer = new byte[HEADER_ROOM + chunkSize + WebServer.CRLF.length()];
+	}
+
+	/**
+	 * @return the bytes sent to the underlying stream, including the chunk framing.
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		buffer[HEADER_ROOM + count++] = (byte) b;
+		if (count == chunkSize) {
+			writeChunk();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = Math.min(len, chunkSize - count);
+			System.arraycopy(b, off, buffer, HEADER_ROOM + count, n);
+			count += n;
+			off += n;
+			len -= n;
+			if (count == chunkSize) {
+				writeChunk();
+			}
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		writeChunk();
+		out.flush();
+	}
+
+	/**
+	 * Sends what's left and the last chunk. The underlying stream is not closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		writeChunk();
+		out.write(LAST_CHUNK);
+		bytesWritten += LAST_CHUNK.length;
+		out.flush();
+	}
+
+	private void writeChunk() throws IOException {
+		if (count == 0) {
+			//An empty chunk would end the body
+			return;
+		}
+
+		byte[] header = (Integer.toHexString(count) + WebServer.CRLF).getBytes();
+		int start = HEADER_ROOM - header.length;
+		System.arraycopy(header, 0, buffer, start, header.length);
+		int end = HEADER_ROOM + count;
+		buffer[end++] = '\r';
+		buffer[end++] = '\n';
+
+		out.write(buffer, start, end - start);
+		bytesWritten += end - start;
+		count = 0;
+	}
+}
@@ -0,0 +1,111 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content-encoding negotiation and compression of response bodies (gzip, and zlib-wrapped deflate).
+ */
+public class Compression {
+
+	public static final int ENCODING_GZIP = 0;
+	public static final int ENCODING_DEFLATE = 1;
+	public static final int NUM_OF_ENCODINGS = 2;
+
+	/** No acceptable encoding - the body is sent as is */
+	public static final int ENCODING_IDENTITY = -1;
+
+	public static final String[] ENCODING_NAMES = { "gzip", "deflate" };
+
+	/** Compression of responses, on by default */
+	public static boolean enabled = true;
+
+	/** Generated bodies smaller than this aren't worth compressing */
+	public static int minBytes = 1024;
+
+	/**
+	 * Picks the encoding with the highest q-value in the Accept-Encoding header. gzip wins a tie.
+	 * "*" stands for the encodings the header doesn't list, so "gzip;q=0, *" still refuses gzip.
+	 * @param acceptEncoding - the header value, may be <code>null</code>.
+	 * @return one of the ENCODING_ constants.
+	 */
+	public static int negotiate(String acceptEncoding) {
+		if (!enabled || acceptEncoding == null) {
+			return ENCODING_IDENTITY;
+		}
+
+		int best = ENCODING_IDENTITY;
+		float bestQ = 0;
+		float anyQ = -1;
+		boolean[] listed = new boolean[NUM_OF_ENCODINGS];
+
+		for (String token : acceptEncoding.split(",")) {
+			String[] parts = token.split(";");
+			String name = parts[0].trim().toLowerCase();
+			float q = 1;
+			for (int i = 1; i < parts.length; i++) {
+				String param = parts[i].trim();
+				if (param.startsWith("q=")) {
+					try {
+						q = Float.parseFloat(param.substring(2));
+					} catch (NumberFormatException e) {
+						q = 0;
+					}
+				}
+			}
+
+			if (name.equals("*")) {
+				anyQ = q;
+				continue;
+			}
+			for (int encoding = 0; encoding < NUM_OF_ENCODINGS; encoding++) {
+				if (name.equals(ENCODING_NAMES[encoding])) {
+					listed[encoding] = true;
+					if (q > bestQ || (q == bestQ && q > 0 && encoding < best)) {
+						best = encoding;
+						bestQ = q;
+					}
+				}
+			}
+		}
+
+		for (int encoding = 0; encoding < NUM_OF_ENCODINGS; encoding++) {
+			if (!listed[encoding] && (anyQ > bestQ || (anyQ == bestQ && anyQ > 0 && encoding < best))) {
+				best = encoding;
+				bestQ = anyQ;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return <code>true</code> for the text types. Images are compressed already.
+	 */
+	public static boolean isCompressible(String contentType) {
+		return contentType != null && contentType.startsWith("text/");
+	}
+
+	public static byte[] compress(byte[] data, int encoding) {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+		try {
+			OutputStream out = wrap(compressed, encoding);
+			out.write(data);
+			out.close();
+		} catch (IOException e) {
+			//Cannot happen with a ByteArrayOutputStream
+			Log.e("Compression.compress() : %s", e.getMessage());
+		}
+		return compressed.toByteArray();
+	}
+
+	/**
+	 * Wraps a stream with a compressing stream. Closing it finishes the compressed data and closes the given stream.
+	 */
+	public static OutputStream wrap(OutputStream out, int encoding) throws IOException {
+		if (encoding == ENCODING_GZIP) {
+			return new GZIPOutputStream(out, 8 * 1024);
+		}
+		return new DeflaterOutputStream(out);
+	}
+}
@@ -1,9 +1,18 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Class for aggregating the crawling statistics.
  * The data itself is stored in a HashMap, filled dynamically as the crawling progresses.
+ * The numeric counters are LongAdders outside the HashMap, so they are updated and read without the lock.
  */
 public class CrawlData {
 
@@ -20,51 +29,101 @@ public class CrawlData {
 	public static final String NUM_OF_INTERNAL_LINKS = "NUM_OF_INTERNAL_LINKS";
 	public static final String NUM_OF_EXTERNAL_LINKS = "NUM_OF_EXTERNAL_LINKS";
 	public static final String CONNECTED_DOMAINS = "CONNECTED_DOMAINS";
-	public static final String AVG_RTT = "AVG_RTT";
+	public static final String NUM_OF_PORTS_SCANNED = "NUM_OF_PORTS_SCANNED";
+	
+	//The keys that are counters. Their order is the order of a snapshot.
+	private static final String[] COUNTERS = {
+		NUM_OF_PAGES, SIZE_OF_PAGES, NUM_OF_IMAGES, SIZE_OF_IMAGES, NUM_OF_VIDEOS, SIZE_OF_VIDEOS,
+		NUM_OF_DOCUMENTS, SIZE_OF_DOCUMENTS, NUM_OF_INTERNAL_LINKS, NUM_OF_EXTERNAL_LINKS, NUM_OF_PORTS_SCANNED
+	};
 	
 	//Many threads uses this CrawlData instance, this is a defence for accessing the HashMap.
 	private final Object lock = new Object();
 	
 	private HashMap<String, Object> data;
 	
-	//Used to calculate the average RTT (sum / num).
-	private double sumRTT;
-	private double numRTT;
+	//Filled once in the constructor and never modified, so it is safe to read without the lock.
+	private final HashMap<String, LongAdder> counters;
 	
+	//Latency histograms are lock-free, so they live outside the HashMap.
+	//latencyByType[resourceType][phase], where resourceType is one of DownloaderTask.RESOURCE_TYPE_*
+	//and phase is one of RequestTimings.PHASE_*.
+	private final LatencyHistogram[][] latencyByType;
+	private final LatencyHistogram[] latencyAll;
+	private final ConcurrentHashMap<String, LatencyHistogram[]> latencyByHost;
 
 	public CrawlData() {
 		data = new HashMap<>();
+		counters = new HashMap<>();
+		for (String key : COUNTERS) {
+			counters.put(key, new LongAdder());
+		}
+		latencyByType = new LatencyHistogram[DownloaderTask.NUM_OF_RESOURCE_TYPES][];
+		for (int i = 0; i < latencyByType.length; i++) {
+			latencyByType[i] = newPhaseHistograms();
+		}
+		latencyAll = newPhaseHistograms();
+		latencyByHost = new ConcurrentHashMap<>();
 		init();
 	}
 	
+	private static LatencyHistogram[] newPhaseHistograms() {
+		LatencyHistogram[] result = new LatencyHistogram[RequestTimings.NUM_OF_PHASES];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = new LatencyHistogram();
+		}
+		return result;
+	}
+	
 	private void init() {
 		data.put(DISRESPECT_ROBOTS_TXT, false);
-		data.put(NUM_OF_IMAGES, 0L);
-		data.put(SIZE_OF_IMAGES, 0L);
-		data.put(NUM_OF_VIDEOS, 0L);
-		data.put(SIZE_OF_VIDEOS, 0L);
-		data.put(NUM_OF_DOCUMENTS, 0L);
-		data.put(SIZE_OF_DOCUMENTS, 0L);
-		data.put(NUM_OF_PAGES, 0L);
-		data.put(SIZE_OF_PAGES, 0L);
-		data.put(NUM_OF_INTERNAL_LINKS, 0L);
-		data.put(NUM_OF_EXTERNAL_LINKS, 0L);
 		data.put(CONNECTED_DOMAINS, new HashSet<String>());
-		data.put(AVG_RTT, 0L);
 		
-		sumRTT = 0;
-		numRTT = 0;
+		for (LongAdder counter : counters.values()) {
+			counter.reset();
+		}
+		
+		for (LatencyHistogram[] phases : latencyByType) {
+			resetPhaseHistograms(phases);
+		}
+		resetPhaseHistograms(latencyAll);
+		latencyByHost.clear();
 		
 		//NOTE: the ports are added dynamically, if requested.
 		//If data.get(OPENNED_PORTS) == null then no port scan asked.
 	}
 	
 	public Object get(String key) {
+		LongAdder counter = counters.get(key);
+		if (counter != null) {
+			return counter.sum();
+		}
+		
 		synchronized (lock) {
 			return data.get(key);
 		}
 	}
 	
+	/**
+	 * Adds <code>delta</code> to a counter, without taking the lock.
+	 * @param key - one of the NUM_OF_* or SIZE_OF_* keys.
+	 */
+	public void add(String key, long delta) {
+		counters.get(key).add(delta);
+	}
+	
+	/**
+	 * @return the current value of every counter, without taking the lock.
+	 * The values are not an atomic snapshot, but each one of them is up to date.
+	 */
+	public LinkedHashMap<String, Long> getCounters() {
+		LinkedHashMap<String, Long> result = new LinkedHashMap<>();
+		for (String key : COUNTERS) {
+			result.put(key, counters.get(key).sum());
+		}
+		return result;
+	}
+	
 	public void put(String key, Object value) {
 		synchronized (lock) {
 			data.put(key, value);
@@ -80,11 +139,85 @@ public class CrawlData {
 		}
 	}
 	
-	public void updateAvgRTT(long rtt) {
-		synchronized (lock) {
-			sumRTT += rtt;
-			numRTT++;
-			data.put(AVG_RTT, sumRTT/numRTT);
+	/**
+	 * Records the phase latencies of a single response. Lock free, so it is safe to call from every downloader.
+	 * @param resourceType - one of DownloaderTask.RESOURCE_TYPE_*
+	 * @param host - the host that answered
+	 * @param timings - the request phases
+	 */
+	public void recordLatency(int resourceType, String host, RequestTimings timings) {
+		LatencyHistogram[] hostPhases = latencyByHost.get(host);
+		if (hostPhases == null) {
+			//Only the first response of a host allocates. If two threads race, one of the arrays is dropped.
+			LatencyHistogram[] newPhases = newPhaseHistograms();
+			hostPhases = latencyByHost.putIfAbsent(host, newPhases);
+			if (hostPhases == null) {
+				hostPhases = newPhases;
+			}
+		}
+		
+		recordPhases(latencyByType[resourceType], timings);
+		recordPhases(latencyAll, timings);
+		recordPhases(hostPhases, timings);
+	}
+	
+	/**
+	 * @param resourceType - one of DownloaderTask.RESOURCE_TYPE_*
+	 * @param phase - one of RequestTimings.PHASE_*
+	 */
+	public LatencyHistogram getLatency(int resourceType, int phase) {
+		return latencyByType[resourceType][phase];
+	}
+	
+	/**
+	 * @param phase - one of RequestTimings.PHASE_*
+	 * @return the histogram of all the resources together.
+	 */
+	public LatencyHistogram getLatency(int phase) {
+		return latencyAll[phase];
+	}
+	
+	/**
+	 * @param phase - one of RequestTimings.PHASE_*
+	 * @return the histogram of the given host, <code>null</code> if it was never contacted.
+	 */
+	public LatencyHistogram getHostLatency(String host, int phase) {
+		LatencyHistogram[] phases = latencyByHost.get(host);
+		return phases == null ? null : phases[phase];
+	}
+	
+	/**
+	 * @param n - max number of hosts to return
+	 * @return the hosts with the highest 90th percentile of total time, slowest first.
+	 */
+	public List<String> getSlowestHosts(int n) {
+		final HashMap<String, Long> p90 = new HashMap<>();
+		for (Map.Entry<String, LatencyHistogram[]> entry : latencyByHost.entrySet()) {
+			p90.put(entry.getKey(), entry.getValue()[RequestTimings.PHASE_TOTAL].getValueAtPercentile(90));
+		}
+		
+		List<String> hosts = new ArrayList<>(p90.keySet());
+		Collections.sort(hosts, new Comparator<String>() {
+			
+			@Override
+			public int compare(String o1, String o2) {
+				return Long.compare(p90.get(o2), p90.get(o1));
+			}
+		});
+		
+		return hosts.size() > n ? hosts.subList(0, n) : hosts;
+	}
+	
+	private static void recordPhases(LatencyHistogram[] phases, RequestTimings timings) {
+		for (int phase = 0; phase < phases.length; phase++) {
+			//Phases that were not reached are -1, and the histogram ignores negative values.
+			phases[phase].recordNanos(timings.getNanos(phase));
+		}
+	}
+	
+	private static void resetPhaseHistograms(LatencyHistogram[] phases) {
+		for (LatencyHistogram h : phases) {
+			h.reset();
 		}
 	}
 }
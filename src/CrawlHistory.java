@@ -0,0 +1,293 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The index of the crawl reports: the domain, time, report file and summary statistics of every crawl.
+ * It's an append-only file in the root, a line per report, that is loaded into memory once at startup,
+ * so the reports are never looked up with directory scans. Lookups by domain are a HashMap get.
+ * If there's no index yet, it's built once from the reports found in the root.
+ */
+public class CrawlHistory {
+
+	public static final String INDEX_FILE = "crawl_history.idx";
+
+	//domain_yyyymmdd_hhmmss.html
+	private static final Pattern REPORT_NAME = Pattern.compile("^(.+?)_\\d+_\\d+\\.html$");
+
+	private static final String SEPARATOR = "\t";
+	private static final int NUM_OF_FIELDS = 10;
+
+	/**
+	 * A crawl report. The statistics of a report that was indexed from the directory are unknown, -1.
+	 */
+	public static class Record {
+		private final String domain;
+		private final long timeMillis;
+		private final String file;
+		private final long pages;
+		private final long images;
+		private final long videos;
+		private final long documents;
+		private final long bytes;
+		private final long internalLinks;
+		private final long externalLinks;
+
+		Record(String domain, long timeMillis, String file, long pages, long images, long videos, long documents,
+				long bytes, long internalLinks, long externalLinks) {
+			this.domain = domain;
+			this.timeMillis = timeMillis;
+			this.file = file;
+			this.pages = pages;
+			this.images = images;
+			this.videos = videos;
+			this.documents = documents;
+			this.bytes = bytes;
+			this.internalLinks = internalLinks;
+			this.externalLinks = externalLinks;
+		}
+
+		public String getDomain() {
+			return domain;
+		}
+
+		public long getTimeMillis() {
+			return timeMillis;
+		}
+
+		public String getFile() {
+			return file;
+		}
+
+		public long getPages() {
+			return pages;
+		}
+
+		public long getImages() {
+			return images;
+		}
+
+		public long getVideos() {
+			return videos;
+		}
+
+		public long getDocuments() {
+			return documents;
+		}
+
+		/**
+		 * @return the bytes of all the resources that were downloaded.
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		public long getInternalLinks() {
+			return internalLinks;
+		}
+
+		public long getExternalLinks() {
+			return externalLinks;
+		}
+
+		private String toLine() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(domain).append(SEPARATOR).append(timeMillis).append(SEPARATOR).append(file);
+			for (long stat : new long[] { pages, images, videos, documents, bytes, internalLinks, externalLinks }) {
+				sb.append(SEPARATOR).append(stat);
+			}
+			return sb.toString();
+		}
+
+		/**
+		 * @return the record of an index line, or <code>null</code> if the line is malformed (e.g. cut by a crash).
+		 */
+		private static Record fromLine(String line) {
+			String[] fields = line.split(SEPARATOR);
+			if (fields.length != NUM_OF_FIELDS) {
+				return null;
+			}
+			try {
+				return new Record(fields[0], Long.parseLong(fields[1]), fields[2], Long.parseLong(fields[3]),
+						Long.parseLong(fields[4]), Long.parseLong(fields[5]), Long.parseLong(fields[6]),
+						Long.parseLong(fields[7]), Long.parseLong(fields[8]), Long.parseLong(fields[9]));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+	}
+
+	private static CrawlHistory sInstance;
+
+	private final File indexFile;
+	private final HashMap<String, ArrayList<Record>> byDomain = new HashMap<>();
+
+	//The report files, sorted. Replaced on every new report, so readers iterate it with no lock.
+	private volatile List<String> reportFiles = Collections.emptyList();
+
+	private CrawlHistory() {
+		indexFile = new File(WebServer.root, INDEX_FILE);
+		if (indexFile.exists()) {
+			load();
+		} else {
+			indexDirectory();
+		}
+		Log.d("CrawlHistory : %d reports of %d domains", reportFiles.size(), byDomain.size());
+	}
+
+	/**
+	 * @return the history. The first call loads the index, after the root is configured.
+	 */
+	public static synchronized CrawlHistory getInstance() {
+		if (sInstance == null) {
+			sInstance = new CrawlHistory();
+		}
+
+		return sInstance;
+	}
+
+	/**
+	 * Records a report that was just written.
+	 * @param file - the report file name.
+	 * @param cd - the data of the crawl.
+	 */
+	public void reportWritten(String file, CrawlData cd) {
+		Matcher m = REPORT_NAME.matcher(file);
+		String domain = m.matches() ? m.group(1) : file;
+		long bytes = stat(cd, CrawlData.SIZE_OF_PAGES) + stat(cd, CrawlData.SIZE_OF_IMAGES)
+				+ stat(cd, CrawlData.SIZE_OF_VIDEOS) + stat(cd, CrawlData.SIZE_OF_DOCUMENTS);
+
+		Record record = new Record(domain, System.currentTimeMillis(), file, stat(cd, CrawlData.NUM_OF_PAGES),
+				stat(cd, CrawlData.NUM_OF_IMAGES), stat(cd, CrawlData.NUM_OF_VIDEOS), stat(cd, CrawlData.NUM_OF_DOCUMENTS),
+				bytes, stat(cd, CrawlData.NUM_OF_INTERNAL_LINKS), stat(cd, CrawlData.NUM_OF_EXTERNAL_LINKS));
+
+		synchronized (this) {
+			try {
+				append(Collections.singletonList(record));
+			} catch (IOException e) {
+				Log.e("CrawlHistory : cannot append to %s: %s", indexFile.getPath(), e.getMessage());
+			}
+			add(record);
+			publish();
+		}
+	}
+
+	/**
+	 * @return the report files of all the crawls, sorted by name. Must not be modified.
+	 */
+	public List<String> getReportFiles() {
+		return reportFiles;
+	}
+
+	/**
+	 * @return <code>true</code> if the domain was crawled before.
+	 */
+	public synchronized boolean hasDomain(String domain) {
+		return byDomain.containsKey(domain);
+	}
+
+	/**
+	 * @return the reports of the domain, oldest first. Empty if it was never crawled.
+	 */
+	public synchronized List<Record> getByDomain(String domain) {
+		ArrayList<Record> records = byDomain.get(domain);
+		return records == null ? Collections.<Record>emptyList() : new ArrayList<>(records);
+	}
+
+	private static long stat(CrawlData cd, String key) {
+		Object value = cd.get(key);
+		return value instanceof Number ? ((Number) value).longValue() : -1;
+	}
+
+	private void load() {
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(indexFile));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					Record record = Record.fromLine(line);
+					if (record != null) {
+						add(record);
+					} else if (!line.isEmpty()) {
+						Log.w("CrawlHistory : skipping a malformed line of %s", indexFile.getPath());
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			Log.e("CrawlHistory : cannot read %s: %s", indexFile.getPath(), e.getMessage());
+		}
+		publish();
+	}
+
+	/**
+	 * Builds the index from the reports in the root - once, when there's no index yet.
+	 */
+	private void indexDirectory() {
+		ArrayList<Record> records = new ArrayList<>();
+		File[] files = new File(WebServer.root).listFiles();
+		if (files != null) {
+			for (File f : files) {
+				Matcher m = REPORT_NAME.matcher(f.getName());
+				if (m.matches()) {
+					records.add(new Record(m.group(1), f.lastModified(), f.getName(), -1, -1, -1, -1, -1, -1, -1));
+				}
+			}
+		}
+
+		try {
+			append(records);
+		} catch (IOException e) {
+			Log.e("CrawlHistory : cannot create %s: %s", indexFile.getPath(), e.getMessage());
+		}
+		for (Record record : records) {
+			add(record);
+		}
+		publish();
+	}
+
+	private void append(List<Record> records) throws IOException {
+		Writer writer = new FileWriter(indexFile, true);
+		try {
+			for (Record record : records) {
+				writer.write(record.toLine());
+				writer.write('\n');
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	private void add(Record record) {
+		ArrayList<Record> records = byDomain.get(record.domain);
+		if (records == null) {
+			records = new ArrayList<>();
+			byDomain.put(record.domain, records);
+		}
+		records.add(record);
+	}
+
+	/**
+	 * Replaces the sorted list of the report files.
+	 */
+	private void publish() {
+		ArrayList<String> files = new ArrayList<>();
+		for (ArrayList<Record> records : byDomain.values()) {
+			for (Record record : records) {
+				files.add(record.file);
+			}
+		}
+		Collections.sort(files);
+		reportFiles = Collections.unmodifiableList(files);
+	}
+}
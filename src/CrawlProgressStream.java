@@ -0,0 +1,176 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams the crawl progress to a client as server-sent events (text/event-stream).
+ * A few times per second the counters of the crawler's CrawlData and the in-flight worker counts
+ * are sampled and pushed as a JSON event, if anything changed since the last push.
+ * Sampling reads only atomic counters, so it never takes the locks the crawl uses.
+ * Once the crawl is not running the stream ends, in every server mode, with a last event that asks the client
+ * to wait ENDED_RETRY_MILLIS before reconnecting - an idle server isn't polled by the result pages left open.
+ */
+public class CrawlProgressStream {
+
+	/** Time between two samples */
+	public static final int INTERVAL_MILLIS = 250;
+
+	/** The reconnect delay while a crawl runs, and after the stream ended */
+	public static final int RETRY_MILLIS = 1000;
+	public static final int ENDED_RETRY_MILLIS = 60 * 1000;
+
+	/** Streams served at once by stream(). Each holds a worker thread of the blocking server. */
+	public static int maxBlockingStreams = 2;
+
+	private static final AtomicInteger sBlockingStreams = new AtomicInteger();
+
+	//When nothing changes, a comment is sent every HEARTBEAT_TICKS samples - to find out if the client left.
+	private static final int HEARTBEAT_TICKS = 40;
+	private static final byte[] HEARTBEAT = ":\n\n".getBytes();
+
+	private OutputStream out;
+	private HTTP_CODE code;
+	private long bytesWritten;
+
+	public CrawlProgressStream(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Writes the response headers and then pushes events until the crawl is not running or the client disconnects,
+	 * on the thread of a blocking server worker. Past maxBlockingStreams the client is answered with a 503 instead.
+	 * @param version - the HTTP version of the request.
+	 * @throws IOException when the client disconnects, or any other socket error.
+	 */
+	public void stream(HTTP_VERSION version) throws IOException {
+		if (sBlockingStreams.incrementAndGet() > maxBlockingStreams) {
+			sBlockingStreams.decrementAndGet();
+			Log.d("CrawlProgressStream : %d progress streams already, rejecting one", maxBlockingStreams);
+			code = HTTP_CODE.ERR_503_SERVICE_UNAVAILABLE;
+			write(AdmissionControl.serviceUnavailable());
+			return;
+		}
+
+		try {
+			code = HTTP_CODE.C200_OK;
+			write(buildHead(version));
+
+			String lastEvent = null;
+			int idleTicks = 0;
+
+			while (!Thread.currentThread().isInterrupted()) {
+				boolean ended = isEnded();
+				String event = buildEvent();
+				if (ended) {
+					//Sampled after the crawl ended - it has the final counters.
+					write(buildLastEventBytes(event));
+					return;
+				}
+				if (!event.equals(lastEvent)) {
+					write(buildEventBytes(event));
+					lastEvent = event;
+					idleTicks = 0;
+				} else if (++idleTicks >= HEARTBEAT_TICKS) {
+					write(HEARTBEAT);
+					idleTicks = 0;
+				}
+
+				try {
+					Thread.sleep(INTERVAL_MILLIS);
+				} catch (InterruptedException e) {
+					//The server is shutting down
+					return;
+				}
+			}
+		} finally {
+			sBlockingStreams.decrementAndGet();
+		}
+	}
+
+	private void write(byte[] bytes) throws IOException {
+		out.write(bytes);
+		out.flush();
+		bytesWritten += bytes.length;
+	}
+
+	/**
+	 * @return the code stream() answered with, <code>null</code> if it didn't get to write.
+	 */
+	public HTTP_CODE getCode() {
+		return code;
+	}
+
+	/**
+	 * @return the bytes stream() wrote, the head included.
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * @return <code>true</code> if the streams should end, the crawl is not running.
+	 */
+	public static boolean isEnded() {
+		return WebCrawler.getInstance().getState() != WebCrawler.State.RUNNING;
+	}
+
+	/**
+	 * @return the response headers of the stream. The stream ends with the connection.
+	 */
+	public static byte[] buildHead(HTTP_VERSION version) {
+		StringBuilder head = new StringBuilder();
+		head.append(version).append(" ").append(HTTP_CODE.C200_OK).append(WebServer.CRLF);
+		head.append("content-type: text/event-stream").append(WebServer.CRLF);
+		head.append("cache-control: no-cache").append(WebServer.CRLF);
+		head.append("connection: close").append(WebServer.CRLF);
+		head.append(WebServer.CRLF);
+		head.append(buildRetry());
+		return head.toString().getBytes();
+	}
+
+	/**
+	 * @return the first bytes of the body, telling EventSource clients how long to wait before reconnecting.
+	 */
+	public static String buildRetry() {
+		return "retry: " + RETRY_MILLIS + "\n\n";
+	}
+
+	/**
+	 * @return the given event, framed as a server-sent event.
+	 */
+	public static byte[] buildEventBytes(String event) {
+		return ("data: " + event + "\n\n").getBytes();
+	}
+
+	/**
+	 * @return the last event of a stream, with the longer reconnect delay.
+	 */
+	public static byte[] buildLastEventBytes(String event) {
+		return ("retry: " + ENDED_RETRY_MILLIS + "\ndata: " + event + "\n\n").getBytes();
+	}
+
+	/**
+	 * @return a one-line JSON object with the crawler state, the workers and the CrawlData counters.
+	 */
+	public static String buildEvent() {
+		WebCrawler crawler = WebCrawler.getInstance();
+		CrawlData cd = crawler.getCrawlData();
+
+		StringBuilder sb = new StringBuilder("{");
+		sb.append("\"state\":\"").append(crawler.getState()).append("\"");
+		sb.append(",\"downloadersAlive\":").append(DownloaderTask.getNumOfDownloadersAlive());
+		sb.append(",\"analyzersAlive\":").append(AnalyzerTask.getNumOfAnalyzersAlive());
+		sb.append(",\"downloadersActive\":").append(crawler.getDownloadersPool().getActiveWorkers());
+		sb.append(",\"downloadersQueued\":").append(crawler.getDownloadersPool().getQueueSize());
+		sb.append(",\"analyzersActive\":").append(crawler.getAnalyzersPool().getActiveWorkers());
+		sb.append(",\"analyzersQueued\":").append(crawler.getAnalyzersPool().getQueueSize());
+		sb.append(",\"portScanRunning\":").append(crawler.isPortScanPending());
+		for (Map.Entry<String, Long> counter : cd.getCounters().entrySet()) {
+			sb.append(",\"").append(counter.getKey()).append("\":").append(counter.getValue());
+		}
+		sb.append("}");
+
+		return sb.toString();
+	}
+}
@@ -1,9 +1,10 @@
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
@@ -18,6 +19,31 @@ import java.util.regex.Pattern;
  * CrawlerHttpConnection is used to perform a request to a given URL, and retrieve the response.
  */
 public class CrawlerHttpConnection {
+	
+	private static final int SOCKET_TIMEOUT_MILLIS = 10000;
+	private static final int READ_BUFFER_SIZE = 8192;
+	
+	private static final Metrics.Counter connectionsOpened =
+			Metrics.getInstance().counter("crawler_connections_total", "Connections opened by the crawler.");
+	private static final Metrics.Counter connectionErrors =
+			Metrics.getInstance().counter("crawler_connection_errors_total", "Crawler connections that failed to resolve or connect.");
+	private static final Metrics.Counter bytesSent =
+			Metrics.getInstance().counter("crawler_bytes_sent_total", "Request bytes sent by the crawler.");
+	private static final Metrics.Counter bytesReceived =
+			Metrics.getInstance().counter("crawler_bytes_received_total", "Response bytes received by the crawler.");
+	
+	//By the class of the code a remote server answered - 1xx to 5xx, and anything else last. A fixed set,
+	//registered once: the codes come from any site, they can't each make a series.
+	private static final Metrics.Counter[] responsesByClass = new Metrics.Counter[6];
+	
+	static {
+		for (int i = 0; i < responsesByClass.length; i++) {
+			String labels = i < 5 ? String.format("class=\"%dxx\"", i + 1) : "class=\"other\"";
+			responsesByClass[i] = Metrics.getInstance().counter("crawler_responses_total",
+					"Responses received by the crawler, by HTTP code class.", labels);
+		}
+	}
+	
 	Socket socket;
 	
 	HTTP_METHOD method;
@@ -60,7 +86,7 @@ public class CrawlerHttpConnection {
 	
 	/**
 	 * Sends the HTTP request, and retrieve the response.
-	 * Also updates the average RTT.
+	 * Also measures the request phases (DNS, connect, write, first byte and last byte).
 	 * @return a CrawlerHttpConnection.Response instance, representing the response. 
 	 * @throws UnknownHostException for the socket
 	 * @throws IOException if there's a problem with reading or writing to the socket.
@@ -70,40 +96,58 @@ public class CrawlerHttpConnection {
 		//extract host, port & path from the URL.
 		extractConnectionDetails(urlStr);
 		
-		Log.d("connecting... " + host);
-		socket = new Socket(host, port);
-		socket.setSoTimeout(10000);
+		RequestTimings timings = response.timings;
+		
+		Log.d("connecting... %s", host);
+		timings.markStart();
+		try {
+			InetAddress address = InetAddress.getByName(host);
+			timings.markResolved();
+			
+			socket = new Socket();
+			socket.connect(new InetSocketAddress(address, port), SOCKET_TIMEOUT_MILLIS);
+			timings.markConnected();
+			connectionsOpened.inc();
+		} catch (IOException e) {
+			connectionErrors.inc();
+			throw e;
+		}
+		socket.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
 		Log.d("Sending Request...");
 		
-		long startMillis = System.currentTimeMillis();
 		//Send request
 		sendRequest();
-		
+		timings.markSent();
 		
 		//Reading response
-		BufferedReader socketInputStream = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+		InputStreamReader socketInputStream = new InputStreamReader(socket.getInputStream());
 		StringBuilder responseSb = new StringBuilder();
 		Log.d("Waiting for response...");
 		
-		long endMillis;
 		try {
-			int c = socketInputStream.read();
-			endMillis = System.currentTimeMillis();
-			if (c != -1) responseSb.append((char) c);
-			while((c = socketInputStream.read()) != -1) {
-				responseSb.append((char) c);
+			//Reading in chunks lets us stamp the last byte cheaply, once per read instead of once per char.
+			char[] buf = new char[READ_BUFFER_SIZE];
+			int n = socketInputStream.read(buf);
+			if (n != -1) {
+				timings.markFirstByte();
+				responseSb.append(buf, 0, n);
+				while ((n = socketInputStream.read(buf)) != -1) {
+					timings.markLastByte();
+					responseSb.append(buf, 0, n);
+				}
 			}
 		} catch (SocketTimeoutException e) {
 			//e.printStackTrace();
-			endMillis = System.currentTimeMillis();
+			//The timeout wait itself is not counted: the last byte stays the last one that was received.
+			timings.markTimedOut();
 		}
+		timings.finish();
+		bytesReceived.add(responseSb.length());
 		
 		Log.d("Done waiting.");
 		
 		socket.close();
 		
-		response.rtt = endMillis - startMillis;
-		
 		//Return the response object only if the response is not broken.
 		if (parseHttpResponse(responseSb.toString())) {
 			return response;
@@ -131,6 +175,7 @@ public class CrawlerHttpConnection {
 		
 		socketOutputStream.write(reqSb.toString());
 		socketOutputStream.flush();
+		bytesSent.add(reqSb.length());
 	}
 	
 	/**
@@ -183,6 +228,9 @@ public class CrawlerHttpConnection {
 			String httpVersion = m.group(1);
 			String httpCode = m.group(2);
 			
+			int codeClass = httpCode.indexOf(' ') == 3 ? httpCode.charAt(0) - '1' : -1;
+			responsesByClass[codeClass >= 0 && codeClass < 5 ? codeClass : 5].inc();
+			
 			boolean httpVerOk = httpVersion != null && (httpVersion.equals(HTTP_VERSION.HTTP_1_0.toString())
 														|| httpVersion.equals(HTTP_VERSION.HTTP_1_1.toString()));
 			
@@ -225,10 +273,11 @@ public class CrawlerHttpConnection {
 		private HTTP_CODE code;
 		private HashMap<String,String> headers;
 		private String body;
-		private long rtt; 
+		private RequestTimings timings;
 		
 		public Response() {
 			headers = new HashMap<>();
+			timings = new RequestTimings();
 		}
 		public HTTP_VERSION getVersion() {
 			return version;
@@ -242,8 +291,8 @@ public class CrawlerHttpConnection {
 		public String getBody() {
 			return body;
 		}
-		public long getRTT() {
-			return rtt;
+		public RequestTimings getTimings() {
+			return timings;
 		}
 	}
 
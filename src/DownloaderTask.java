@@ -2,6 +2,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -15,6 +16,7 @@ public class DownloaderTask extends Task {
 	public static final int RESOURCE_TYPE_IMG = 1;
 	public static final int RESOURCE_TYPE_VIDEO = 2;
 	public static final int RESOURCE_TYPE_DOC = 3;
+	public static final int NUM_OF_RESOURCE_TYPES = 4;
 
 	ThreadPool downloadersPool;
 	ThreadPool analyzersPool;
@@ -27,8 +29,8 @@ public class DownloaderTask extends Task {
 	CrawlerHttpConnection conn;
 	CrawlerHttpConnection.Response response;
 
-	private static int numDownloadersAlive = 0;
-	private static final Object numDownloadersAliveLock = new Object();
+	//Atomic rather than synchronized, so the progress stream can read it without blocking the downloaders.
+	private static final AtomicInteger numDownloadersAlive = new AtomicInteger();
 
 	public DownloaderTask(String url, int resourceType, ThreadPool downloadersPool, ThreadPool analyzersPool) {
 		this.downloadersPool = downloadersPool;
@@ -50,7 +52,7 @@ public class DownloaderTask extends Task {
 	@Override
 	public void run() {
 
-		Log.d(String.format("Running downloader task --> url = %s", url));
+		Log.d("Running downloader task --> url = %s", url);
 		try {
 
 			//check if external or internal link
@@ -72,14 +74,14 @@ public class DownloaderTask extends Task {
 			if (webCrawler.getVisitedUrls().contains(url)) {
 				throw new Exception("URL is visited");
 			} else {
-				Log.d(String.format("Url not yet visited! processing further : url = %s", url));
+				Log.d("Url not yet visited! processing further : url = %s", url);
 				webCrawler.addVisitedURL(url);
 			}
 			
 			//If it is an HREF link, we download it using the GET method and send it to an analyzer.
 			//BONUS: if the response is "301 moved permanently" we redirect the crawl to that page. 
 			if (resourceType == RESOURCE_TYPE_HREF) {
-				Log.d(String.format("Resource is a HTML : url = %s", url));
+				Log.d("Resource is a HTML : url = %s", url);
 				
 				//Send GET request
 				conn = new CrawlerHttpConnection(HTTP_METHOD.GET, url, HTTP_VERSION.HTTP_1_0);
@@ -96,18 +98,18 @@ public class DownloaderTask extends Task {
 					case C200_OK:
 						//Handle internal / external links
 						if (internal) {
-							Log.d(String.format("HTML is internal! send to analyzer : url = %s", url));
-							cd.put(CrawlData.NUM_OF_INTERNAL_LINKS, (Long)cd.get(CrawlData.NUM_OF_INTERNAL_LINKS) + 1);
+							Log.d("HTML is internal! send to analyzer : url = %s", url);
+							cd.add(CrawlData.NUM_OF_INTERNAL_LINKS, 1);
 							
 							//Send internal HREFs to an analyzer.
 							analyzersPool.submit(new AnalyzerTask(url, response.getBody(), downloadersPool, analyzersPool));
 						} else {
-							cd.put(CrawlData.NUM_OF_EXTERNAL_LINKS, (Long)cd.get(CrawlData.NUM_OF_EXTERNAL_LINKS) + 1);
+							cd.add(CrawlData.NUM_OF_EXTERNAL_LINKS, 1);
 							((HashSet<String>) cd.get(CrawlData.CONNECTED_DOMAINS)).add(urlObj.getHost());
 						}
 
-						cd.put(CrawlData.NUM_OF_PAGES, (Long)cd.get(CrawlData.NUM_OF_PAGES) + 1);
-						cd.put(CrawlData.SIZE_OF_PAGES, (Long)cd.get(CrawlData.SIZE_OF_PAGES) + Long.valueOf(response.getHeaders().get("content-length")));
+						cd.add(CrawlData.NUM_OF_PAGES, 1);
+						cd.add(CrawlData.SIZE_OF_PAGES, Long.valueOf(response.getHeaders().get("content-length")));
 						break;
 					}
 					
@@ -119,7 +121,7 @@ public class DownloaderTask extends Task {
 				response = conn.getResponse();
 				conn.close();
 				if (response != null) {
-					Log.d(String.format("Resource is a BLOB : url = %s", url));
+					Log.d("Resource is a BLOB : url = %s", url);
 					
 					switch(response.getCode()) {
 					case ERR_301_MOVED_PERMANENTLY:
@@ -133,16 +135,16 @@ public class DownloaderTask extends Task {
 						if (response.getHeaders().containsKey("content-length")) {
 							switch(resourceType) {
 							case RESOURCE_TYPE_IMG:
-								cd.put(CrawlData.NUM_OF_IMAGES, (Long)cd.get(CrawlData.NUM_OF_IMAGES) + 1);
-								cd.put(CrawlData.SIZE_OF_IMAGES, (Long)cd.get(CrawlData.SIZE_OF_IMAGES) + Long.valueOf(response.getHeaders().get("content-length")));
+								cd.add(CrawlData.NUM_OF_IMAGES, 1);
+								cd.add(CrawlData.SIZE_OF_IMAGES, Long.valueOf(response.getHeaders().get("content-length")));
 								break;
 							case RESOURCE_TYPE_VIDEO:
-								cd.put(CrawlData.NUM_OF_VIDEOS, (Long)cd.get(CrawlData.NUM_OF_VIDEOS) + 1);
-								cd.put(CrawlData.SIZE_OF_VIDEOS, (Long)cd.get(CrawlData.SIZE_OF_VIDEOS) + Long.valueOf(response.getHeaders().get("content-length")));
+								cd.add(CrawlData.NUM_OF_VIDEOS, 1);
+								cd.add(CrawlData.SIZE_OF_VIDEOS, Long.valueOf(response.getHeaders().get("content-length")));
 								break;
 							case RESOURCE_TYPE_DOC:
-								cd.put(CrawlData.NUM_OF_DOCUMENTS, (Long)cd.get(CrawlData.NUM_OF_DOCUMENTS) + 1);
-								cd.put(CrawlData.SIZE_OF_DOCUMENTS, (Long)cd.get(CrawlData.SIZE_OF_DOCUMENTS) + Long.valueOf(response.getHeaders().get("content-length")));
+								cd.add(CrawlData.NUM_OF_DOCUMENTS, 1);
+								cd.add(CrawlData.SIZE_OF_DOCUMENTS, Long.valueOf(response.getHeaders().get("content-length")));
 								break;
 							}
 						}
@@ -152,7 +154,7 @@ public class DownloaderTask extends Task {
 			}
 
 			if (response != null) {
-				webCrawler.getCrawlData().updateAvgRTT(response.getRTT());
+				cd.recordLatency(resourceType, urlObj.getHost(), response.getTimings());
 			}
 		} catch (Exception e) {
 			Log.d(e.getMessage());
@@ -171,7 +173,7 @@ public class DownloaderTask extends Task {
 	 */
 	private void handle3xxCodes(CrawlerHttpConnection.Response response) throws MalformedURLException {
 		String movedUrl = response.getHeaders().get("location");
-		Log.d("Moved permanently to " + movedUrl);
+		Log.d("Moved permanently to %s", movedUrl);
 		if (movedUrl != null) {
 			String newUrl;
 			if (movedUrl.matches("^https?:\\/\\/.+")) {
@@ -196,23 +198,17 @@ public class DownloaderTask extends Task {
 	}
 
 	private void increaseNumOfDownloadersAlive() {
-		synchronized (numDownloadersAliveLock) {
-			numDownloadersAlive++;
-		}
+		numDownloadersAlive.incrementAndGet();
 	}
 	private void decreaseNumOfDownloadersAlive() {
-		synchronized (numDownloadersAliveLock) {
-			numDownloadersAlive--;
-			Log.d("remaining items in Downloaders queue: " + numDownloadersAlive);
-		}
+		int remaining = numDownloadersAlive.decrementAndGet();
+		Log.d("remaining items in Downloaders queue: %d", remaining);
 		
 		webCrawler.checkIfFinished();
 	}
 
 	public static int getNumOfDownloadersAlive() {
-		synchronized (numDownloadersAliveLock) {
-			return numDownloadersAlive;
-		}
+		return numDownloadersAlive.get();
 	}
 
 	/**
@@ -228,14 +224,14 @@ public class DownloaderTask extends Task {
 			for (Pattern p : webCrawler.whiteList) {
 				Matcher matcher = p.matcher(url);
 				if (matcher.matches()) {
-					Log.d("Should crawl into " + url + " (Allow in robots.txt).");
+					Log.d("Should crawl into %s (Allow in robots.txt).", url);
 					return false;
 				}
 			}
 			// not on whitelist, check if in blacklist- shouldn't be crawled
 			for (Pattern p : webCrawler.blackList) {
 				if (url.startsWith(p.toString())) {
-					Log.d("Should not crawl into " + url + " (robots.txt).");
+					Log.d("Should not crawl into %s (robots.txt).", url);
 					return true;
 				}
 			}
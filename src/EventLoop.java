@@ -0,0 +1,211 @@
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A thread that multiplexes many connections over one Selector.
+ * Every connection is owned by exactly one loop, and its channel is touched only by that loop's thread.
+ * Other threads (the acceptor, the workers) hand work to the loop with <code>execute</code>.
+ * Once in a tick the loop closes idle connections and pushes the crawl progress to its streaming clients.
+ */
+public class EventLoop extends Thread {
+
+	/** The longest the loop blocks in select(), so the periodic work runs on time */
+	public static final int TICK_MILLIS = CrawlProgressStream.INTERVAL_MILLIS;
+
+	private final NioServer server;
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+	//The connections of this loop. Only the loop thread touches it.
+	private final HashSet<NioConnection> connections = new HashSet<>();
+
+	private volatile boolean running = true;
+	private long lastTickMillis;
+
+	public EventLoop(NioServer server, String name) throws IOException {
+		super(name);
+		this.server = server;
+		selector = Selector.open();
+	}
+
+	/**
+	 * Runs the given task on the loop thread, and wakes up the loop if it's waiting in select().
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Makes this loop accept the connections of the server channel.
+	 */
+	public void registerAcceptor(final ServerSocketChannel serverChannel) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+				} catch (ClosedChannelException e) {
+					Log.e("EventLoop.registerAcceptor() : the server channel is closed");
+				}
+			}
+		});
+	}
+
+	/**
+	 * Hands a newly accepted connection to this loop.
+	 */
+	public void register(final SocketChannel channel) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					NioConnection connection = new NioConnection(EventLoop.this, channel);
+					channel.register(selector, SelectionKey.OP_READ, connection);
+					connections.add(connection);
+				} catch (IOException e) {
+					Log.d("EventLoop.register() : %s", e.getMessage());
+					closeQuietly(channel);
+					//The slot admitConnection() took
+					ServerMetrics.connectionClosed();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Called by a connection when it closes.
+	 */
+	void remove(NioConnection connection) {
+		connections.remove(connection);
+	}
+
+	public NioServer getServer() {
+		return server;
+	}
+
+	Selector getSelector() {
+		return selector;
+	}
+
+	@Override
+	public void run() {
+		lastTickMillis = System.currentTimeMillis();
+
+		while (running) {
+			try {
+				selector.select(TICK_MILLIS);
+			} catch (IOException e) {
+				Log.e("EventLoop.run() : select failed: %s", e.getMessage());
+				break;
+			}
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				handleKey(key);
+			}
+
+			runTasks();
+
+			long now = System.currentTimeMillis();
+			if (now - lastTickMillis >= TICK_MILLIS) {
+				lastTickMillis = now;
+				tick(now);
+			}
+		}
+
+		closeAll();
+		Log.d("%s has stopped", getName());
+	}
+
+	private void handleKey(SelectionKey key) {
+		if (!key.isValid()) {
+			return;
+		}
+
+		if (key.isAcceptable()) {
+			server.accept((ServerSocketChannel) key.channel());
+			return;
+		}
+
+		NioConnection connection = (NioConnection) key.attachment();
+		if (key.isWritable()) {
+			connection.onWritable();
+		}
+		if (key.isValid() && key.isReadable()) {
+			connection.onReadable();
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				Log.e("EventLoop.runTasks() : %s", e);
+			}
+		}
+	}
+
+	/**
+	 * The periodic work: timeouts and the progress stream.
+	 */
+	private void tick(long now) {
+		String progressEvent = null;
+		boolean progressEnded = false;
+
+		//Copy, as a connection removes itself from the set when it's closed.
+		for (NioConnection connection : new ArrayList<>(connections)) {
+			if (connection.isStreaming()) {
+				if (progressEvent == null) {
+					//Sampled once per tick for all the clients of this loop, the state first - an event sampled
+					//after the crawl ended has the final counters.
+					progressEnded = CrawlProgressStream.isEnded();
+					progressEvent = CrawlProgressStream.buildEvent();
+				}
+				connection.pushProgress(progressEvent, progressEnded);
+			} else if (connection.isIdleSince(now - WebServer.idleTimeoutMillis)) {
+				Log.d("EventLoop.tick() : closing an idle connection");
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * Stops the loop. The connections are closed by the loop thread once it's out of select().
+	 */
+	public void shutDown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	private void closeAll() {
+		for (NioConnection connection : new ArrayList<>(connections)) {
+			connection.close();
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			Log.d("EventLoop.closeAll() : cannot close selector");
+		}
+	}
+
+	static void closeQuietly(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			//Nothing to do about it
+		}
+	}
+}
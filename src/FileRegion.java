@@ -0,0 +1,144 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+
+/**
+ * A file body of a response, sent after the response head straight from the file to the socket
+ * with <code>FileChannel.transferTo</code> (sendfile where the OS has it), so its bytes are never copied to the heap.
+ * The body is a list of parts: spans of the file, and small in-memory byte parts between them
+ * (the part headers of a multipart/byteranges body). Only the spans are read from the file.
+ * The region keeps track of what was sent, so a non-blocking writer can continue it when the socket is writable again.
+ */
+public class FileRegion {
+
+	/**
+	 * A span of the file, or bytes from memory.
+	 */
+	private static class Part {
+		private final ByteBuffer bytes;
+		private final long end;
+		private long position;
+
+		Part(long start, long end) {
+			bytes = null;
+			position = start;
+			this.end = end;
+		}
+
+		Part(byte[] bytes) {
+			this.bytes = ByteBuffer.wrap(bytes);
+			end = 0;
+		}
+
+		boolean isDone() {
+			return bytes != null ? !bytes.hasRemaining() : position >= end;
+		}
+	}
+
+	private final FileChannel fileChannel;
+	private final ArrayList<Part> parts = new ArrayList<>();
+	private long count = 0;
+	//The part being sent
+	private int current = 0;
+
+	/**
+	 * Opens the whole file.
+	 * @throws IOException if the file cannot be opened.
+	 */
+	public FileRegion(File file) throws IOException {
+		fileChannel = new FileInputStream(file).getChannel();
+		addSpan(0, fileChannel.size());
+	}
+
+	private FileRegion(FileChannel fileChannel) {
+		this.fileChannel = fileChannel;
+	}
+
+	/**
+	 * Opens the file with no parts. They're added with <code>addSpan</code> & <code>addBytes</code>.
+	 * @throws IOException if the file cannot be opened.
+	 */
+	public static FileRegion open(File file) throws IOException {
+		return new FileRegion(new FileInputStream(file).getChannel());
+	}
+
+	/**
+	 * Appends a span of the file.
+	 * @param start - the first byte.
+	 * @param end - the byte after the last.
+	 */
+	public void addSpan(long start, long end) {
+		parts.add(new Part(start, end));
+		count += end - start;
+	}
+
+	/**
+	 * Appends bytes that are sent as is.
+	 */
+	public void addBytes(byte[] bytes) {
+		parts.add(new Part(bytes));
+		count += bytes.length;
+	}
+
+	/**
+	 * @return the size of the file, not of the region.
+	 * @throws IOException if the size cannot be read.
+	 */
+	public long getFileSize() throws IOException {
+		return fileChannel.size();
+	}
+
+	/**
+	 * @return the size of the region in bytes.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	public boolean isDone() {
+		return current >= parts.size();
+	}
+
+	/**
+	 * Transfers as much as the target takes right now. A blocking target takes it all.
+	 * @return the number of bytes transferred - may be 0 for a non-blocking target.
+	 * @throws IOException for any file or socket error, or if the file got shorter than the region -
+	 * the connection must be closed then, as fewer bytes than announced would be sent.
+	 */
+	public long transferTo(WritableByteChannel target) throws IOException {
+		long transferred = 0;
+		while (current < parts.size()) {
+			Part part = parts.get(current);
+			long n;
+			if (part.bytes != null) {
+				n = part.bytes.hasRemaining() ? target.write(part.bytes) : 0;
+			} else {
+				n = part.position < part.end ? fileChannel.transferTo(part.position, part.end - part.position, target) : 0;
+				if (n == 0 && part.position < part.end && part.position >= fileChannel.size()) {
+					throw new IOException("the file got shorter while it was sent");
+				}
+				part.position += n;
+			}
+			transferred += n;
+
+			if (part.isDone()) {
+				current++;
+			} else if (n <= 0) {
+				break;
+			}
+		}
+		return transferred;
+	}
+
+	public void close() {
+		try {
+			fileChannel.close();
+		} catch (IOException e) {
+			Log.d("FileRegion.close() : %s", e.getMessage());
+		}
+	}
+}
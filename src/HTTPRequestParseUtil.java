@@ -1,68 +1,68 @@
 import java.io.File;
-import java.util.regex.Matcher;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
 import java.util.regex.Pattern;
 
 
 /**
- * A utility for parsing HTTP requests.
+ * A utility for validating parsed HTTP requests. The parsing itself is done by HTTPRequestParser.
  *
  */
 public class HTTPRequestParseUtil {
 
+	//Crawl reports, which only the local user may see
+	private static final Pattern REPORT_PATH = Pattern.compile("\\/(.+?_\\d{8}_\\d{6}\\.html)");
+
+	//The IMF-fixdate format of HTTP dates, e.g. Sun, 06 Nov 1994 08:49:37 GMT
+	private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+	/** A Range header with more ranges than this is ignored, and the whole file is sent */
+	public static final int MAX_RANGES = 16;
+
 	/**
-	 * Parses the first request line. Extracts the method, path and HTTP version.
-	 * An HTTPReqErr exception is thrown if anything goes wrong with the request itself. 
-	 * @param request The request which stores the data
-	 * @param line The request line as read from the client
-	 * @throws HTTPReqErr Raised when the method or HTTP version are not supported, or the path is not found,
-	 * or it's just a bad request.
+	 * Validates the version, method & path of a parsed request.
+	 * @throws HTTPReqErr With the matching error code.
 	 */
-	public static void parseRequestLine(WebServerHttpRequest request, String line) throws HTTPReqErr {
-		
-		if (line == null) {
-			throw new HTTPReqErr(HTTP_CODE.ERR_400_BAD_REQUEST);
-		}
-		
-		String regex = "^([a-zA-Z]+) ([^ ]+) (HTTP\\/1\\.1|HTTP\\/1\\.0)\\r\\n$";
-		Pattern pattern = Pattern.compile(regex);
-		Matcher matcher = pattern.matcher(line); 
-		if (matcher.matches()) {
-			
-			String method = matcher.group(1);
-			String[] pathAndGetParams = matcher.group(2).split("\\?");
-			String httpVersion = matcher.group(3);
-			
-			String path = pathAndGetParams[0];
-			if (pathAndGetParams.length == 2) {
-				String params = pathAndGetParams[1];
-				request.setParams(request.getGetParamsMap(), params);
-			}
-			
-			request.setHttpVersion(httpVersion)
-			.setPath(path)
-			.setHttpMethod(method);
-		} else {
-			throw new HTTPReqErr(HTTP_CODE.ERR_400_BAD_REQUEST);
-		}
+	public static void validateRequest(WebServerHttpRequest request) throws HTTPReqErr {
+		validateHTTPVersion(request);
+		validateHTTPMethod(request);
+		validateHTTPPath(request);
 	}
-
+	
 	/**
-	 * Parses headers in the request. The headers are stored in a hashmap.
-	 * 
-	 * @param request The request holding the headers map
-	 * @param line The header as read from the stream
+	 * @return <code>true</code> if the client asked for the server-sent events of the crawl progress.
 	 */
-	public static void parseHeaderLine(WebServerHttpRequest request, String line) {
+	public static boolean isProgressRequest(WebServerHttpRequest request) {
+		return request.getHttpMethod() == HTTP_METHOD.GET && WebServer.PROGRESS_PATH.equals(request.getPath());
+	}
+	
+	/**
+	 * @return <code>true</code> if the connection should be kept alive after responding to the request.
+	 */
+	public static boolean isKeepAlive(WebServerHttpRequest request) {
+		HTTP_VERSION version = request.getHttpVersion();
+		HashMap<String, String> headers = request.getHeaders();
 		
-		//group0 is the key, group1 is the value
-		String regex = "^([^ ]+): ?(.+)\\r\\n$";
-		Pattern pattern = Pattern.compile(regex);
-		Matcher matcher = pattern.matcher(line); 
-		if (matcher.matches()) {
-			request.addHeader(matcher.group(1).toLowerCase(), matcher.group(2));
+		if (version == null || headers == null) {
+			return false;
 		}
+		
+		boolean http11 = version == HTTP_VERSION.HTTP_1_1;
+		
+		String connectionHeader = headers.get("connection");
+		boolean connectionKeepAlive = connectionHeader != null && connectionHeader.toLowerCase().equals("keep-alive");
+
+		return http11 && connectionKeepAlive;
 	}
-	
+
 	/**
 	 * 
 	 * @param request
@@ -94,19 +94,20 @@ public class HTTPRequestParseUtil {
 			throw new HTTPReqErr(HTTP_CODE.ERR_400_BAD_REQUEST);
 		}
 		
-		if (!path.equals("/")) {
+		if (!path.equals("/") && !path.equals(WebServer.PROGRESS_PATH) && !path.equals(WebServer.METRICS_PATH)) {
 			String cleanRoot = root;
 			if (root.charAt(root.length()-1) == '/') {
 				//If the last char of 'root' is '/', we remove it for consistency.
 				cleanRoot = root.substring(0, root.length()-1);
 			}
 			
+			//A cached file is known to exist, with no filesystem call.
 			File file = new File(cleanRoot + path);
-			if (!file.isFile() && !file.exists()) {
+			if (StaticResourceCache.getInstance().get(file) == null && !file.exists()) {
 				throw new HTTPReqErr(HTTP_CODE.ERR_404_NOT_FOUND);
 			}
 			
-			if (path.matches("\\/(.+?_\\d{8}_\\d{6}\\.html)") || path.endsWith("execResult.html")) {
+			if (REPORT_PATH.matcher(path).matches() || path.endsWith("execResult.html")) {
 				String referer = request.getHeaders().get("referer");
 				if (!(referer != null && (referer.contains("127.0.0.1") || referer.contains("localhost")))) {
 					throw new HTTPReqErr(HTTP_CODE.ERR_403_FORBIDDEN);
@@ -126,4 +127,129 @@ public class HTTPRequestParseUtil {
 			throw new HTTPReqErr(HTTP_CODE.ERR_501_NOT_IMPLEMENTED);
 		}
 	}
+	
+	/**
+	 * Checks an If-None-Match header against the current entity tag of a resource.
+	 * Weak tags match too, as only GET & HEAD are conditional here.
+	 * @param ifNoneMatch - the header value: "*", or a list of entity tags.
+	 * @param etag - the current entity tag, quoted.
+	 * @return <code>true</code> if the client has the current representation.
+	 */
+	public static boolean matchesETag(String ifNoneMatch, String etag) {
+		if (ifNoneMatch.trim().equals("*")) {
+			return true;
+		}
+		
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if (tag.equals(etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @return the time formatted as an HTTP date.
+	 */
+	public static String formatHttpDate(long millis) {
+		SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format.format(new Date(millis));
+	}
+	
+	/**
+	 * @return the time of an HTTP date in millis, or -1 if it isn't a valid date.
+	 */
+	public static long parseHttpDate(String date) {
+		SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		try {
+			return format.parse(date).getTime();
+		} catch (ParseException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Parses a Range header of byte ranges against the length of the file.
+	 * Overlapping and adjacent ranges are coalesced, so the spans are sorted and disjoint.
+	 * @param range - the header value, e.g. bytes=0-499,1000-,-500
+	 * @param length - the length of the file.
+	 * @return the satisfiable spans as {first byte, byte after the last}. An empty list if none is satisfiable,
+	 * or <code>null</code> if the header is malformed or has too many ranges - then it's ignored.
+	 */
+	public static List<long[]> parseRanges(String range, long length) {
+		if (!range.startsWith("bytes=")) {
+			return null;
+		}
+		
+		String[] specs = range.substring(6).split(",");
+		if (specs.length > MAX_RANGES) {
+			return null;
+		}
+		
+		List<long[]> spans = new ArrayList<>();
+		for (String spec : specs) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if (dash == -1) {
+				return null;
+			}
+			String first = spec.substring(0, dash);
+			String last = spec.substring(dash + 1);
+			
+			long start, end;
+			try {
+				if (first.isEmpty()) {
+					//A suffix: the last N bytes
+					long suffix = Long.parseLong(last);
+					if (suffix < 0) {
+						return null;
+					}
+					start = Math.max(0, length - suffix);
+					end = length;
+					if (suffix == 0 || length == 0) {
+						//No bytes to send - unsatisfiable
+						continue;
+					}
+				} else {
+					start = Long.parseLong(first);
+					end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last) + 1;
+					if (start < 0 || end <= start) {
+						return null;
+					}
+					if (start >= length) {
+						//Unsatisfiable, the others may still be
+						continue;
+					}
+					end = Math.min(end, length);
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			spans.add(new long[] { start, end });
+		}
+		
+		Collections.sort(spans, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] a, long[] b) {
+				return Long.compare(a[0], b[0]);
+			}
+		});
+		
+		List<long[]> coalesced = new ArrayList<>();
+		for (long[] span : spans) {
+			long[] previous = coalesced.isEmpty() ? null : coalesced.get(coalesced.size() - 1);
+			if (previous != null && span[0] <= previous[1]) {
+				previous[1] = Math.max(previous[1], span[1]);
+			} else {
+				coalesced.add(span);
+			}
+		}
+		return coalesced;
+	}
 }
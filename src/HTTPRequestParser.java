@@ -0,0 +1,339 @@
+import java.nio.ByteBuffer;
+
+/**
+ * An incremental HTTP/1.x request parser over a connection's reusable read buffer.
+ * The bytes are tokenized in place - method, path, version and headers are cut straight out of the buffer,
+ * with no regex and no intermediate lines. Parsing resumes where it stopped when more bytes arrive,
+ * and the bytes that follow a complete request stay in the buffer for the next (pipelined) request.
+ * One parser per connection, used by one thread at a time.
+ */
+public class HTTPRequestParser {
+
+	/** Requests whose head (request line + headers) is bigger than this are rejected */
+	public static final int MAX_HEAD_BYTES = 64 * 1024;
+
+	/** Requests whose body is bigger than this are rejected */
+	public static final int MAX_BODY_BYTES = 1024 * 1024;
+
+	/** Requests with more headers than this are rejected */
+	public static final int MAX_HEADERS = 100;
+
+	private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+
+	private static final int STATE_REQUEST_LINE = 0;
+	private static final int STATE_HEADERS = 1;
+	private static final int STATE_BODY = 2;
+
+	//The unparsed bytes, in write mode: from 0 to position.
+	private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+	private int state = STATE_REQUEST_LINE;
+	//Where the current line starts
+	private int lineStart = 0;
+	//Where to resume looking for the end of the line
+	private int scanPos = 0;
+	private int headerCount = 0;
+	private int bodyStart = 0;
+	private int bodyLength = 0;
+
+	private WebServerHttpRequest request = new WebServerHttpRequest();
+
+	/**
+	 * @return the buffer to read the next bytes into, in write mode. Always has room for at least one byte.
+	 */
+	public ByteBuffer getReadBuffer() {
+		if (!buffer.hasRemaining()) {
+			grow(buffer.capacity() * 2);
+		}
+		return buffer;
+	}
+
+	/**
+	 * @return <code>true</code> if there are bytes of a request that was not fully parsed yet.
+	 */
+	public boolean hasBufferedBytes() {
+		return buffer.position() > 0;
+	}
+
+	/**
+	 * @return 1 if the buffered bytes start with the given bytes, 0 if they may (not enough bytes yet), -1 if they don't.
+	 */
+	public int matchPrefix(byte[] prefix) {
+		byte[] buf = buffer.array();
+		int n = Math.min(buffer.position(), prefix.length);
+		for (int i = 0; i < n; i++) {
+			if (buf[i] != prefix[i]) {
+				return -1;
+			}
+		}
+		return n == prefix.length ? 1 : 0;
+	}
+
+	/**
+	 * Takes the bytes that were not parsed, when the connection switches to another protocol. The parser is not used after it.
+	 */
+	public byte[] takeBuffered() {
+		byte[] bytes = new byte[buffer.position()];
+		System.arraycopy(buffer.array(), 0, bytes, 0, bytes.length);
+		buffer.clear();
+		return bytes;
+	}
+
+	/**
+	 * @return the request being parsed. After an HTTPReqErr it holds whatever was parsed before the error.
+	 */
+	public WebServerHttpRequest getRequest() {
+		return request;
+	}
+
+	/**
+	 * Parses as much as was read into the buffer.
+	 * @return the complete request, or <code>null</code> if more bytes are needed.
+	 * @throws HTTPReqErr if the request is malformed or too large. The connection cannot be reused after it.
+	 */
+	public WebServerHttpRequest parse() throws HTTPReqErr {
+		byte[] buf = buffer.array();
+		int end = buffer.position();
+
+		while (state != STATE_BODY) {
+			int lineEnd = indexOfLineEnd(buf, end);
+			if (lineEnd == -1) {
+				if (end >= MAX_HEAD_BYTES) {
+					Log.d("HTTPRequestParser.parse() : request head is too large");
+					throw new HTTPReqErr(HTTP_CODE.ERR_400_BAD_REQUEST);
+				}
+				return null;
+			}
+			if (lineEnd + 2 > MAX_HEAD_BYTES) {
+				//Also when the head comes a complete line at a time
+				Log.d("HTTPRequestParser.parse() : request head is too large");
+				throw new HTTPReqErr(HTTP_CODE.ERR_400_BAD_REQUEST);
+			}
+
+			if (state == STATE_REQUEST_LINE) {
+				parseRequestLine(buf, lineStart, lineEnd);
+				state = STATE_HEADERS;
+			} else if (lineEnd == lineStart) {
+				//The empty line - end of the head
+				headEnd(buf, lineEnd + 2);
+			} else {
+				if (++headerCount > MAX_HEADERS) {
+					Log.d("HTTPRequestParser.parse() : too many headers");
+					throw new HTTPReqErr(HTTP_CODE.ERR_400_BAD_REQUEST);
+				}
+				parseHeaderLine(buf, lineStart, lineEnd);
+			}
+
+			lineStart = lineEnd + 2;
+			scanPos = lineStart;
+		}
+
+		int requestEnd = bodyStart + bodyLength;
+		if (end < requestEnd) {
+			if (buffer.capacity() < requestEnd) {
+				grow(requestEnd);
+			}
+			return null;
+		}
+
+		if (bodyLength > 0) {
+			String body = new String(buf, bodyStart, bodyLength);
+			request.setRequestBody(body);
+			request.setRawRequestData(request.getRawRequestData() + body);
+		}
+
+		WebServerHttpRequest complete = request;
+		consume(requestEnd);
+		return complete;
+	}
+
+	/**
+	 * Looks for the next CRLF from scanPos.
+	 * @return the index of its CR, or -1 if it wasn't read yet.
+	 */
+	private int indexOfLineEnd(byte[] buf, int end) throws HTTPReqErr {
+		for (int i = scanPos; i < end; i++) {
+			if (buf[i] == '\n') {
+				if (i == lineStart || buf[i - 1] != '\r') {
+					//A bare LF
+					throw new HTTPReqErr(HTTP_CODE.ERR_400_BAD_REQUEST);
+				}
+				return i - 1;
+			}
+		}
+		scanPos = end;
+		return -1;
+	}
+
+	/**
+	 * METHOD SP request-target SP HTTP-version. The method is letters only, the version is HTTP/1.0 or HTTP/1.1.
+	 */
+	private void parseRequestLine(byte[] buf, int start, int end) throws HTTPReqErr {
+		int methodEnd = start;
+		while (methodEnd < end && isLetter(buf[methodEnd])) {
+			methodEnd++;
+		}
+		if (methodEnd == start || methodEnd == end || buf[methodEnd] != ' ') {
+			throw new HTTPReqErr(HTTP_CODE.ERR_400_BAD_REQUEST);
+		}
+
+		int targetStart = methodEnd + 1;
+		int targetEnd = targetStart;
+		int query = -1;
+		while (targetEnd < end && buf[targetEnd] != ' ') {
+			if (buf[targetEnd] == '?' && query == -1) {
+				query = targetEnd;
+			}
+			targetEnd++;
+		}
+		if (targetEnd == targetStart || targetEnd == end) {
+			throw new HTTPReqErr(HTTP_CODE.ERR_400_BAD_REQUEST);
+		}
+
+		int versionStart = targetEnd + 1;
+		HTTP_VERSION version = parseVersion(buf, versionStart, end);
+		if (version == null) {
+			throw new HTTPReqErr(HTTP_CODE.ERR_400_BAD_REQUEST);
+		}
+
+		int pathEnd = query == -1 ? targetEnd : query;
+		if (query != -1 && query + 1 < targetEnd) {
+			request.setParams(request.getGetParamsMap(), new String(buf, query + 1, targetEnd - query - 1));
+		}
+
+		request.setHttpVersion(version.toString())
+		.setPath(new String(buf, targetStart, pathEnd - targetStart))
+		.setHttpMethod(new String(buf, start, methodEnd - start));
+	}
+
+	private static HTTP_VERSION parseVersion(byte[] buf, int start, int end) {
+		if (end - start != 8 || buf[start] != 'H' || buf[start + 1] != 'T' || buf[start + 2] != 'T' || buf[start + 3] != 'P'
+				|| buf[start + 4] != '/' || buf[start + 5] != '1' || buf[start + 6] != '.') {
+			return null;
+		}
+		if (buf[start + 7] == '1') {
+			return HTTP_VERSION.HTTP_1_1;
+		}
+		if (buf[start + 7] == '0') {
+			return HTTP_VERSION.HTTP_1_0;
+		}
+		return null;
+	}
+
+	/**
+	 * name ":" OWS value OWS. The name is lower-cased. Lines that aren't headers are ignored.
+	 */
+	private void parseHeaderLine(byte[] buf, int start, int end) {
+		int colon = start;
+		while (colon < end && buf[colon] != ':') {
+			if (buf[colon] == ' ' || buf[colon] == '\t') {
+				return;
+			}
+			colon++;
+		}
+		if (colon == start || colon == end) {
+			return;
+		}
+
+		int valueStart = colon + 1;
+		while (valueStart < end && (buf[valueStart] == ' ' || buf[valueStart] == '\t')) {
+			valueStart++;
+		}
+		int valueEnd = end;
+		while (valueEnd > valueStart && (buf[valueEnd - 1] == ' ' || buf[valueEnd - 1] == '\t')) {
+			valueEnd--;
+		}
+		if (valueEnd == valueStart) {
+			return;
+		}
+
+		char[] name = new char[colon - start];
+		for (int i = 0; i < name.length; i++) {
+			byte b = buf[start + i];
+			name[i] = (char) (b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b & 0xff);
+		}
+
+		request.addHeader(new String(name), new String(buf, valueStart, valueEnd - valueStart));
+	}
+
+	/**
+	 * The head is complete - find out how long the body is.
+	 * @param bodyStart - the index right after the empty line.
+	 */
+	private void headEnd(byte[] buf, int bodyStart) throws HTTPReqErr {
+		request.setRawRequestData(new String(buf, 0, bodyStart - 2));
+
+		bodyLength = 0;
+		String contentLength = request.getHeaders().get("content-length");
+		if (request.getHeaders().get("transfer-encoding") != null) {
+			//Chunked bodies aren't read. Taking the chunks for the next requests would desync the connection
+			//(request smuggling), so the request is refused and the connection closed - RFC 7230, 3.3.3.
+			Log.d("HTTPRequestParser.parse() : transfer-encoding is not supported");
+			throw new HTTPReqErr(contentLength != null ? HTTP_CODE.ERR_400_BAD_REQUEST : HTTP_CODE.ERR_501_NOT_IMPLEMENTED);
+		}
+		if (contentLength != null) {
+			if (!isDigits(contentLength) || contentLength.length() > 9 || Integer.parseInt(contentLength) > MAX_BODY_BYTES) {
+				Log.d("HTTPRequestParser.parse() : bad or too large content-length");
+				throw new HTTPReqErr(HTTP_CODE.ERR_400_BAD_REQUEST);
+			}
+			bodyLength = Integer.parseInt(contentLength);
+		}
+		if (bodyStart + bodyLength > MAX_HEAD_BYTES + MAX_BODY_BYTES) {
+			//The buffer would never have room for the whole request
+			Log.d("HTTPRequestParser.parse() : request is too large");
+			throw new HTTPReqErr(HTTP_CODE.ERR_400_BAD_REQUEST);
+		}
+
+		this.bodyStart = bodyStart;
+		state = STATE_BODY;
+	}
+
+	/**
+	 * Removes a complete request from the buffer, and resets the parser for the next one.
+	 */
+	private void consume(int requestEnd) {
+		buffer.flip();
+		buffer.position(requestEnd);
+		buffer.compact();
+
+		if (buffer.capacity() > INITIAL_BUFFER_SIZE && buffer.position() <= INITIAL_BUFFER_SIZE) {
+			//Don't keep a big buffer of a big request around
+			ByteBuffer small = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+			buffer.flip();
+			small.put(buffer);
+			buffer = small;
+		}
+
+		state = STATE_REQUEST_LINE;
+		lineStart = 0;
+		scanPos = 0;
+		headerCount = 0;
+		bodyStart = 0;
+		bodyLength = 0;
+		request = new WebServerHttpRequest();
+	}
+
+	private void grow(int size) {
+		int limit = MAX_HEAD_BYTES + MAX_BODY_BYTES;
+		ByteBuffer bigger = ByteBuffer.allocate(Math.min(Math.max(size, INITIAL_BUFFER_SIZE), limit));
+		buffer.flip();
+		bigger.put(buffer);
+		buffer = bigger;
+	}
+
+	private static boolean isLetter(byte b) {
+		return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+	}
+
+	private static boolean isDigits(String s) {
+		if (s.length() == 0) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) < '0' || s.charAt(i) > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -3,13 +3,18 @@
  */
 public enum HTTP_CODE {
     C200_OK("200 OK"),
+    C206_PARTIAL_CONTENT("206 Partial Content"),
     ERR_301_MOVED_PERMANENTLY("301 Moved Permanently"),
     ERR_302_FOUND("302 Found"),
+    C304_NOT_MODIFIED("304 Not Modified"),
     ERR_400_BAD_REQUEST("400 Bad Request"),
     ERR_403_FORBIDDEN("403 Forbidden"),
     ERR_404_NOT_FOUND("404 Not Found"),
+    ERR_416_RANGE_NOT_SATISFIABLE("416 Range Not Satisfiable"),
+    ERR_429_TOO_MANY_REQUESTS("429 Too Many Requests"),
     ERR_500_INTERNAL_SERVER_ERROR("500 Internal Server Error"),
     ERR_501_NOT_IMPLEMENTED("501 Not Implemented"),
+    ERR_503_SERVICE_UNAVAILABLE("503 Service Unavailable"),
     
     //This is special case, when HTTPReqErr should just deliver "disconnect" message to ListenTask,
     //and no response should be sent.
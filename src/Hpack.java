@@ -0,0 +1,468 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * HPACK, the header compression of HTTP/2 (RFC 7541).
+ * A header list is a list of {name, value} pairs. Names are lower-case, and strings are ISO-8859-1 as on the wire.
+ * Each direction of a connection has its own dynamic table: the Decoder of the requests, the Encoder of the responses.
+ * The Encoder indexes the response headers that repeat (content-type, vary, accept-ranges...) so from the second
+ * response on they're sent as a byte or two, and it Huffman-codes a string whenever that's shorter.
+ */
+public class Hpack {
+
+	/** The dynamic table size both sides start with, and the largest one used */
+	public static final int DEFAULT_TABLE_SIZE = 4096;
+
+	//Per entry, on top of the name & value (RFC 7541, 4.1)
+	private static final int ENTRY_OVERHEAD = 32;
+
+	private static final String[][] STATIC_TABLE = {
+			{ ":authority", "" }, { ":method", "GET" }, { ":method", "POST" }, { ":path", "/" },
+			{ ":path", "/index.html" }, { ":scheme", "http" }, { ":scheme", "https" }, { ":status", "200" },
+			{ ":status", "204" }, { ":status", "206" }, { ":status", "304" }, { ":status", "400" },
+			{ ":status", "404" }, { ":status", "500" }, { "accept-charset", "" }, { "accept-encoding", "gzip, deflate" },
+			{ "accept-language", "" }, { "accept-ranges", "" }, { "accept", "" }, { "access-control-allow-origin", "" },
+			{ "age", "" }, { "allow", "" }, { "authorization", "" }, { "cache-control", "" },
+			{ "content-disposition", "" }, { "content-encoding", "" }, { "content-language", "" }, { "content-length", "" },
+			{ "content-location", "" }, { "content-range", "" }, { "content-type", "" }, { "cookie", "" },
+			{ "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" },
+			{ "from", "" }, { "host", "" }, { "if-match", "" }, { "if-modified-since", "" },
+			{ "if-none-match", "" }, { "if-range", "" }, { "if-unmodified-since", "" }, { "last-modified", "" },
+			{ "link", "" }, { "location", "" }, { "max-forwards", "" }, { "proxy-authenticate", "" },
+			{ "proxy-authorization", "" }, { "range", "" }, { "referer", "" }, { "refresh", "" },
+			{ "retry-after", "" }, { "server", "" }, { "set-cookie", "" }, { "strict-transport-security", "" },
+			{ "transfer-encoding", "" }, { "user-agent", "" }, { "vary", "" }, { "via", "" },
+			{ "www-authenticate", "" } };
+
+	//Static table lookups of the encoder: the first index of a name, and the index of a name & value.
+	private static final HashMap<String, Integer> STATIC_NAMES = new HashMap<>();
+	private static final HashMap<String, Integer> STATIC_ENTRIES = new HashMap<>();
+
+	//The Huffman code of every symbol, EOS (256) last (RFC 7541, Appendix B)
+	private static final int[] HUFFMAN_CODES = {
+			0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+			0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+			0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+			0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+			0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+			0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+			0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+			0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+			0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+			0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+			0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+			0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+			0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+			0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+			0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+			0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+			0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+			0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+			0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+			0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+			0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+			0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+			0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+			0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+			0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+			0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+			0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+			0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+			0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+			0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+			0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+			0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+			0x3fffffff
+	};
+	private static final byte[] HUFFMAN_LENGTHS = {
+			13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+			6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+			13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+			15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+			20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+			22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+			26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+			20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+			30
+	};
+	private static final int EOS = 256;
+
+	//The decoding tree: node n has children at 2n (bit 0) & 2n+1 (bit 1). A leaf holds -1 - symbol, an empty slot 0.
+	private static final int[] HUFFMAN_TREE;
+
+	static {
+		for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+			STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+			STATIC_ENTRIES.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+		}
+
+		//A complete tree of 257 leaves has 256 inner nodes, the root is node 0.
+		int[] tree = new int[2 * 256];
+		int nodes = 1;
+		for (int symbol = 0; symbol <= EOS; symbol++) {
+			int node = 0;
+			for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+				int slot = 2 * node + ((HUFFMAN_CODES[symbol] >>> bit) & 1);
+				if (bit == 0) {
+					tree[slot] = -1 - symbol;
+				} else {
+					if (tree[slot] == 0) {
+						tree[slot] = nodes++;
+					}
+					node = tree[slot];
+				}
+			}
+		}
+		HUFFMAN_TREE = tree;
+	}
+
+	/**
+	 * The dynamic table of one direction: the newest entry is index 1 of it (62 of the address space).
+	 */
+	private static class DynamicTable {
+		//Oldest first
+		private final ArrayList<String[]> entries = new ArrayList<>();
+		private int size = 0;
+		private int maxSize;
+
+		DynamicTable(int maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		int length() {
+			return entries.size();
+		}
+
+		/**
+		 * @param index - 1 is the newest entry.
+		 */
+		String[] get(int index) {
+			return entries.get(entries.size() - index);
+		}
+
+		void add(String name, String value) {
+			int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+			evict(maxSize - entrySize);
+			if (entrySize <= maxSize) {
+				//An entry bigger than the table just empties it
+				entries.add(new String[] { name, value });
+				size += entrySize;
+			}
+		}
+
+		void setMaxSize(int maxSize) {
+			this.maxSize = maxSize;
+			evict(maxSize);
+		}
+
+		private void evict(int toSize) {
+			while (size > Math.max(toSize, 0) && !entries.isEmpty()) {
+				String[] oldest = entries.remove(0);
+				size -= oldest[0].length() + oldest[1].length() + ENTRY_OVERHEAD;
+			}
+		}
+	}
+
+	/**
+	 * Decodes the header blocks of the requests of a connection, in the order they arrive.
+	 */
+	public static class Decoder {
+
+		private final DynamicTable table;
+		//The largest table the client may ask for - our SETTINGS_HEADER_TABLE_SIZE.
+		private final int maxTableSize;
+		//The largest header list, in RFC 7541 size (our SETTINGS_MAX_HEADER_LIST_SIZE) and in fields.
+		private final int maxListSize;
+		private final int maxFields;
+
+		public Decoder(int maxTableSize, int maxListSize, int maxFields) {
+			this.maxTableSize = maxTableSize;
+			this.maxListSize = maxListSize;
+			this.maxFields = maxFields;
+			table = new DynamicTable(maxTableSize);
+		}
+
+		/**
+		 * A block over the header list limits is still decoded to the end, for the dynamic table, but its fields
+		 * aren't kept - a few bytes of indexed fields could otherwise expand to megabytes of headers.
+		 * @param block - a complete header block (the fragments of HEADERS and its CONTINUATIONs, together).
+		 * @return the header list, in order, or <code>null</code> if it's over the limits.
+		 * @throws Http2Exception a COMPRESSION_ERROR if the block is malformed. The connection cannot go on after it.
+		 */
+		public List<String[]> decode(byte[] block) throws Http2Exception {
+			ArrayList<String[]> headers = new ArrayList<>();
+			int[] pos = { 0 };
+			long listSize = 0;
+			boolean tooLarge = false;
+
+			while (pos[0] < block.length) {
+				int b = block[pos[0]] & 0xff;
+				String[] header;
+				if ((b & 0x80) != 0) {
+					//Indexed
+					String[] entry = entry(readInt(block, pos, 7));
+					header = new String[] { entry[0], entry[1] };
+				} else if ((b & 0xc0) == 0x40) {
+					//Literal with incremental indexing
+					header = readLiteral(block, pos, 6);
+					table.add(header[0], header[1]);
+				} else if ((b & 0xe0) == 0x20) {
+					//Dynamic table size update, only at the start of a block
+					int size = readInt(block, pos, 5);
+					if (size > maxTableSize || tooLarge || !headers.isEmpty()) {
+						throw compressionError("bad table size update");
+					}
+					table.setMaxSize(size);
+					continue;
+				} else {
+					//Literal without indexing (0000), or never indexed (0001)
+					header = readLiteral(block, pos, 4);
+				}
+
+				if (tooLarge) {
+					continue;
+				}
+				listSize += header[0].length() + header[1].length() + ENTRY_OVERHEAD;
+				if (listSize > maxListSize || headers.size() >= maxFields) {
+					tooLarge = true;
+					headers = null;
+					continue;
+				}
+				headers.add(header);
+			}
+			return headers;
+		}
+
+		private String[] readLiteral(byte[] block, int[] pos, int prefix) throws Http2Exception {
+			int index = readInt(block, pos, prefix);
+			String name = index == 0 ? readString(block, pos) : entry(index)[0];
+			String value = readString(block, pos);
+			return new String[] { name, value };
+		}
+
+		private String[] entry(int index) throws Http2Exception {
+			if (index >= 1 && index <= STATIC_TABLE.length) {
+				return STATIC_TABLE[index - 1];
+			}
+			int dynamicIndex = index - STATIC_TABLE.length;
+			if (dynamicIndex >= 1 && dynamicIndex <= table.length()) {
+				return table.get(dynamicIndex);
+			}
+			throw compressionError("bad index " + index);
+		}
+	}
+
+	/**
+	 * Encodes the header blocks of the responses of a connection. They must be sent in the order they're encoded.
+	 */
+	public static class Encoder {
+
+		private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+		//The size to announce at the start of the next block, or -1.
+		private int pendingSizeUpdate = -1;
+
+		/**
+		 * Applies the client's SETTINGS_HEADER_TABLE_SIZE. The table never grows past the default.
+		 */
+		public void setMaxTableSize(int size) {
+			int newSize = Math.min(size, DEFAULT_TABLE_SIZE);
+			if (newSize != table.maxSize) {
+				table.setMaxSize(newSize);
+				pendingSizeUpdate = newSize;
+			}
+		}
+
+		/**
+		 * @param headers - {name, value} pairs, the pseudo-headers first. Names must be lower-case.
+		 * @return the header block.
+		 */
+		public byte[] encode(List<String[]> headers) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(64 + 16 * headers.size());
+			if (pendingSizeUpdate != -1) {
+				writeInt(out, 0x20, 5, pendingSizeUpdate);
+				pendingSizeUpdate = -1;
+			}
+
+			for (String[] header : headers) {
+				String name = header[0];
+				String value = header[1];
+
+				Integer index = STATIC_ENTRIES.get(name + '\0' + value);
+				int nameIndex = 0;
+				if (index == null) {
+					for (int i = 1; i <= table.length(); i++) {
+						String[] entry = table.get(i);
+						if (entry[0].equals(name)) {
+							if (entry[1].equals(value)) {
+								index = STATIC_TABLE.length + i;
+								break;
+							}
+							if (nameIndex == 0) {
+								nameIndex = STATIC_TABLE.length + i;
+							}
+						}
+					}
+				}
+				if (index != null) {
+					writeInt(out, 0x80, 7, index);
+					continue;
+				}
+
+				Integer staticName = STATIC_NAMES.get(name);
+				if (staticName != null) {
+					nameIndex = staticName;
+				}
+				if (isVolatile(name)) {
+					//Literal without indexing - it would only push the repeating headers out of the table
+					writeInt(out, 0x00, 4, nameIndex);
+				} else {
+					writeInt(out, 0x40, 6, nameIndex);
+					table.add(name, value);
+				}
+				if (nameIndex == 0) {
+					writeString(out, name);
+				}
+				writeString(out, value);
+			}
+			return out.toByteArray();
+		}
+
+		/**
+		 * @return <code>true</code> for a header whose value changes with every response.
+		 */
+		private static boolean isVolatile(String name) {
+			return name.equals("content-length") || name.equals("etag") || name.equals("last-modified")
+					|| name.equals("content-range") || name.equals("date");
+		}
+	}
+
+	/**
+	 * Reads an integer with an N-bit prefix (RFC 7541, 5.1), and moves the position past it.
+	 */
+	private static int readInt(byte[] block, int[] pos, int prefix) throws Http2Exception {
+		int max = (1 << prefix) - 1;
+		int value = block[pos[0]++] & max;
+		if (value < max) {
+			return value;
+		}
+
+		int shift = 0;
+		while (true) {
+			if (pos[0] >= block.length || shift > 21) {
+				throw compressionError("bad integer");
+			}
+			int b = block[pos[0]++] & 0xff;
+			value += (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+			shift += 7;
+		}
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int firstByte, int prefix, int value) {
+		int max = (1 << prefix) - 1;
+		if (value < max) {
+			out.write(firstByte | value);
+			return;
+		}
+		out.write(firstByte | max);
+		value -= max;
+		while (value >= 0x80) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	private static String readString(byte[] block, int[] pos) throws Http2Exception {
+		if (pos[0] >= block.length) {
+			throw compressionError("missing string");
+		}
+		boolean huffman = (block[pos[0]] & 0x80) != 0;
+		int length = readInt(block, pos, 7);
+		if (length > block.length - pos[0]) {
+			throw compressionError("string past the block");
+		}
+
+		String s = huffman ? huffmanDecode(block, pos[0], length)
+				: new String(block, pos[0], length, StandardCharsets.ISO_8859_1);
+		pos[0] += length;
+		return s;
+	}
+
+	/**
+	 * Writes a string literal, Huffman-coded if that's shorter.
+	 */
+	private static void writeString(ByteArrayOutputStream out, String s) {
+		long bits = 0;
+		for (int i = 0; i < s.length(); i++) {
+			bits += HUFFMAN_LENGTHS[s.charAt(i) & 0xff];
+		}
+		int huffmanLength = (int) ((bits + 7) / 8);
+		if (huffmanLength >= s.length()) {
+			writeInt(out, 0x00, 7, s.length());
+			byte[] bytes = s.getBytes(StandardCharsets.ISO_8859_1);
+			out.write(bytes, 0, bytes.length);
+			return;
+		}
+
+		writeInt(out, 0x80, 7, huffmanLength);
+		long current = 0;
+		int pending = 0;
+		for (int i = 0; i < s.length(); i++) {
+			int symbol = s.charAt(i) & 0xff;
+			current = (current << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+			pending += HUFFMAN_LENGTHS[symbol];
+			while (pending >= 8) {
+				pending -= 8;
+				out.write((int) (current >>> pending));
+			}
+		}
+		if (pending > 0) {
+			//Padded with the most significant bits of EOS - all ones
+			out.write((int) ((current << (8 - pending)) | (0xff >>> pending)));
+		}
+	}
+
+	private static String huffmanDecode(byte[] block, int start, int length) throws Http2Exception {
+		StringBuilder sb = new StringBuilder(length * 8 / 5);
+		int node = 0;
+		//The bits since the last symbol - at the end, only up to 7 bits of padding, all ones
+		int depth = 0;
+		boolean allOnes = true;
+
+		for (int i = start; i < start + length; i++) {
+			int b = block[i] & 0xff;
+			for (int bit = 7; bit >= 0; bit--) {
+				int one = (b >>> bit) & 1;
+				int next = HUFFMAN_TREE[2 * node + one];
+				depth++;
+				allOnes &= one == 1;
+				if (next < 0) {
+					int symbol = -1 - next;
+					if (symbol == EOS) {
+						throw compressionError("EOS in a string");
+					}
+					sb.append((char) symbol);
+					node = 0;
+					depth = 0;
+					allOnes = true;
+				} else {
+					node = next;
+				}
+			}
+		}
+		if (depth > 7 || !allOnes) {
+			throw compressionError("bad Huffman padding");
+		}
+		return sb.toString();
+	}
+
+	private static Http2Exception compressionError(String message) {
+		return new Http2Exception(Http2Exception.COMPRESSION_ERROR, "HPACK: " + message);
+	}
+}
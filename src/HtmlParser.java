@@ -82,17 +82,21 @@ public class HtmlParser {
 			}
 		}
 		
+		if (!Log.isLoggable(Log.Level.DEBUG)) {
+			return;
+		}
+		
 		for (String s : images) {
-			Log.d(String.format("HtmlParse found image %s", s));
+			Log.d("HtmlParse found image %s", s);
 		}
 		for (String s : videos) {
-			Log.d(String.format("HtmlParse found video %s", s));
+			Log.d("HtmlParse found video %s", s);
 		}
 		for (String s : docs) {
-			Log.d(String.format("HtmlParse found document %s", s));
+			Log.d("HtmlParse found document %s", s);
 		}
 		for (String s : links) {
-			Log.d(String.format("HtmlParse found HREF %s", s));
+			Log.d("HtmlParse found HREF %s", s);
 		}
 	}
 	
@@ -0,0 +1,1259 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The HTTP/2 side of a NioConnection (RFC 7540), once the client sent the HTTP/2 preface ("prior knowledge")
+ * or upgraded an HTTP/1.1 request with <code>Upgrade: h2c</code>. Cleartext only - there's no TLS, so no ALPN.
+ * The frames are read and written by the loop thread. Every request stream is handled by a worker, like an HTTP/1.x
+ * request, and its response is sent as a HEADERS frame and DATA frames as the worker produces them. The streams
+ * are answered in whatever order the workers finish, so a slow response holds up no other.
+ * Headers are compressed with HPACK. DATA is sent within the flow-control windows of the stream and the connection,
+ * interleaved between the streams a frame at a time, and a worker waits while its stream has too much unsent.
+ * All the methods, except <code>sendHeaders</code>, <code>openBody</code>, <code>resetStream</code> &
+ * <code>startProgress</code>, must be called by the loop thread.
+ */
+public class Http2Connection {
+
+	/** Whether h2c is offered at all */
+	public static boolean enabled = true;
+
+	/** The streams a client may have open at the same time */
+	public static int maxConcurrentStreams = 100;
+
+	/** What a client that speaks HTTP/2 with prior knowledge sends first */
+	public static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes();
+
+	/** The largest frame payload, both ways */
+	public static final int MAX_FRAME_SIZE = 16384;
+
+	//Frame types
+	private static final int DATA = 0x0;
+	private static final int HEADERS = 0x1;
+	private static final int PRIORITY = 0x2;
+	private static final int RST_STREAM = 0x3;
+	private static final int SETTINGS = 0x4;
+	private static final int PUSH_PROMISE = 0x5;
+	private static final int PING = 0x6;
+	private static final int GOAWAY = 0x7;
+	private static final int WINDOW_UPDATE = 0x8;
+	private static final int CONTINUATION = 0x9;
+
+	//Frame flags
+	private static final int FLAG_END_STREAM = 0x1;
+	private static final int FLAG_ACK = 0x1;
+	private static final int FLAG_END_HEADERS = 0x4;
+	private static final int FLAG_PADDED = 0x8;
+	private static final int FLAG_PRIORITY = 0x20;
+
+	//Settings
+	private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	private static final int SETTINGS_ENABLE_PUSH = 0x2;
+	private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+	private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+	private static final int FRAME_HEADER_LENGTH = 9;
+	private static final int DEFAULT_WINDOW = 65535;
+	private static final long MAX_WINDOW = Integer.MAX_VALUE;
+
+	//The receive window of a stream - a request body is never bigger, so it's never updated.
+	private static final int STREAM_RECEIVE_WINDOW = HTTPRequestParser.MAX_BODY_BYTES;
+	//The connection's receive window, updated once half of it was used.
+	private static final int CONNECTION_RECEIVE_WINDOW = 4 * HTTPRequestParser.MAX_BODY_BYTES;
+
+	//A worker streaming a response waits while more than this of its stream is unsent.
+	private static final int MAX_PENDING_BYTES = 64 * 1024;
+	//DATA frames are made while less than this is queued for the socket.
+	private static final int MAX_QUEUED_BYTES = 4 * MAX_FRAME_SIZE;
+	//The socket isn't read while more than this is queued. Only the frames answering the client's
+	//(SETTINGS and PING acks, RST_STREAMs) get the queue past MAX_QUEUED_BYTES, so a client that sends
+	//them faster than it reads the answers stops being read, instead of growing the queue.
+	private static final int MAX_QUEUED_READ_BYTES = 2 * MAX_QUEUED_BYTES;
+
+	//When nothing changes, a comment is sent every HEARTBEAT_TICKS ticks on a progress stream.
+	private static final int HEARTBEAT_TICKS = 40;
+	private static final byte[] HEARTBEAT = ":\n\n".getBytes();
+
+	private static final byte[] SWITCHING_PROTOCOLS = ("HTTP/1.1 101 Switching Protocols" + WebServer.CRLF
+			+ "connection: Upgrade" + WebServer.CRLF + "upgrade: h2c" + WebServer.CRLF + WebServer.CRLF).getBytes();
+
+	/**
+	 * A request stream, and its response as the worker produces it.
+	 */
+	public class Stream {
+		private final int id;
+		private long sendWindow;
+
+		//The request, until it's handed to a worker
+		private WebServerHttpRequest request;
+		private HTTP_CODE parseError;
+		private ByteArrayOutputStream body;
+		private boolean remoteClosed;
+		private boolean dispatched;
+		//The worker returned. Until then, a stream that ended still counts against maxConcurrentStreams.
+		private boolean workerDone;
+		private boolean orphaned;
+
+		//The response
+		private boolean headersSent;
+		private boolean endSent;
+		//The body bytes the worker wrote, not yet in DATA frames
+		private final ArrayDeque<ByteBuffer> data = new ArrayDeque<>();
+		private boolean dataEnded;
+		private BodyStream out;
+		private HTTP_CODE code;
+		private long bytesSent;
+		private final long startNanos = System.nanoTime();
+
+		//The progress stream
+		private boolean progress;
+		private String lastEvent;
+		private int idleTicks;
+
+		Stream(int id) {
+			this.id = id;
+			sendWindow = peerInitialWindow;
+		}
+	}
+
+	private final NioConnection connection;
+	private final EventLoop loop;
+	private final SocketChannel channel;
+
+	//In write mode
+	private ByteBuffer readBuffer;
+	private boolean prefaceReceived = false;
+	private long lastActivityMillis;
+
+	private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE,
+			HTTPRequestParser.MAX_HEAD_BYTES, HTTPRequestParser.MAX_HEADERS);
+	private final Hpack.Encoder encoder = new Hpack.Encoder();
+
+	private final HashMap<Integer, Stream> streams = new HashMap<>();
+	//The highest stream the client opened
+	private int lastStreamId = 0;
+
+	//A header block that continues in CONTINUATION frames
+	private int continuationStream = 0;
+	private ByteArrayOutputStream headerBlock;
+	private boolean headerBlockEndStream;
+
+	//The client's settings
+	private int peerInitialWindow = DEFAULT_WINDOW;
+
+	private long sendWindow = DEFAULT_WINDOW;
+	//Received DATA bytes not yet given back with a WINDOW_UPDATE
+	private int receivedBytes = 0;
+
+	//The frames to write, in order
+	private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+	private int queuedBytes = 0;
+	//The workers still running for streams that ended
+	private int orphanedWorkers = 0;
+	private boolean writeBlocked = false;
+	private ByteBuffer[] gather = new ByteBuffer[16];
+
+	private boolean goAwaySent = false;
+	private boolean goAwayReceived = false;
+	private boolean closed = false;
+
+	/**
+	 * Starts HTTP/2 on a connection whose client sent the preface.
+	 * @param initialBytes - what was read already, starting with the preface.
+	 */
+	public Http2Connection(NioConnection connection, EventLoop loop, SocketChannel channel, byte[] initialBytes) {
+		this.connection = connection;
+		this.loop = loop;
+		this.channel = channel;
+		lastActivityMillis = System.currentTimeMillis();
+
+		readBuffer = ByteBuffer.allocate(Math.max(FRAME_HEADER_LENGTH + MAX_FRAME_SIZE, initialBytes.length));
+		readBuffer.put(initialBytes);
+		queueSettings();
+	}
+
+	/**
+	 * Upgrades an HTTP/1.1 connection: answers with 101, and the request is handled as stream 1.
+	 * @param request - the request that asked for the upgrade.
+	 * @param initialBytes - what was read after the request.
+	 * @throws Http2Exception if the HTTP2-Settings header is malformed.
+	 */
+	public static Http2Connection upgrade(NioConnection connection, EventLoop loop, SocketChannel channel,
+			WebServerHttpRequest request, byte[] initialBytes) throws Http2Exception {
+		byte[] settings;
+		try {
+			settings = Base64.getUrlDecoder().decode(request.getHeaders().get("http2-settings").trim());
+		} catch (IllegalArgumentException e) {
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "bad HTTP2-Settings");
+		}
+
+		Http2Connection http2 = new Http2Connection(connection, loop, channel, initialBytes);
+		//The 101 goes before the server preface
+		http2.writeQueue.addFirst(ByteBuffer.wrap(SWITCHING_PROTOCOLS));
+		http2.queuedBytes += SWITCHING_PROTOCOLS.length;
+		http2.applySettings(ByteBuffer.wrap(settings), settings.length);
+
+		Stream stream = http2.new Stream(1);
+		stream.request = request;
+		stream.remoteClosed = true;
+		http2.lastStreamId = 1;
+		http2.streams.put(1, stream);
+		http2.dispatch(stream);
+		return http2;
+	}
+
+	/**
+	 * @return <code>true</code> if the request asks to upgrade to h2c, and may be upgraded: it has no body.
+	 */
+	public static boolean isUpgrade(WebServerHttpRequest request) {
+		if (!enabled || request.getHeaders() == null) {
+			return false;
+		}
+		String upgrade = request.getHeaders().get("upgrade");
+		String connectionHeader = request.getHeaders().get("connection");
+		String contentLength = request.getHeaders().get("content-length");
+		return upgrade != null && hasToken(upgrade, "h2c") && connectionHeader != null && hasToken(connectionHeader, "upgrade")
+				&& request.getHeaders().get("http2-settings") != null
+				&& (contentLength == null || contentLength.equals("0")) && request.getHeaders().get("transfer-encoding") == null;
+	}
+
+	private static boolean hasToken(String header, String token) {
+		for (String part : header.split(",")) {
+			if (part.trim().equalsIgnoreCase(token)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public boolean isWriteBlocked() {
+		return writeBlocked;
+	}
+
+	public boolean isReadBlocked() {
+		return queuedBytes > MAX_QUEUED_READ_BYTES;
+	}
+
+	/**
+	 * @return <code>true</code> if a stream is the crawl progress stream.
+	 */
+	public boolean isStreaming() {
+		for (Stream stream : streams.values()) {
+			if (stream.progress) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return <code>true</code> if nothing was read or written since the given time, and no worker is handling a stream.
+	 */
+	public boolean isIdleSince(long millis) {
+		if (lastActivityMillis >= millis) {
+			return false;
+		}
+		for (Stream stream : streams.values()) {
+			if (stream.dispatched && !stream.headersSent) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return <code>true</code> if no stream is open.
+	 */
+	public boolean hasNoStreams() {
+		return streams.isEmpty();
+	}
+
+	/**
+	 * Handles what was read before the switch, and sends the server's preface.
+	 */
+	void start() {
+		try {
+			readFrames();
+		} catch (Http2Exception e) {
+			Log.d("Http2Connection : %s", e.getMessage());
+			goAway(e.getErrorCode());
+			return;
+		}
+		flush();
+	}
+
+	/**
+	 * @return the client's address, <code>null</code> if not known.
+	 */
+	String getClient() {
+		return connection.getClient();
+	}
+
+	void onReadable() {
+		int read;
+		try {
+			read = channel.read(readBuffer);
+		} catch (IOException e) {
+			Log.d("Http2Connection.onReadable() : %s", e.getMessage());
+			connection.close();
+			return;
+		}
+		if (read == -1) {
+			connection.close();
+			return;
+		}
+		lastActivityMillis = System.currentTimeMillis();
+
+		try {
+			readFrames();
+		} catch (Http2Exception e) {
+			Log.d("Http2Connection : %s", e.getMessage());
+			goAway(e.getErrorCode());
+			return;
+		}
+		flush();
+	}
+
+	/**
+	 * Handles the complete frames in the read buffer.
+	 */
+	private void readFrames() throws Http2Exception {
+		readBuffer.flip();
+		try {
+			if (!prefaceReceived) {
+				if (readBuffer.remaining() < PREFACE.length) {
+					return;
+				}
+				for (int i = 0; i < PREFACE.length; i++) {
+					if (readBuffer.get() != PREFACE[i]) {
+						throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "bad preface");
+					}
+				}
+				prefaceReceived = true;
+			}
+
+			while (readBuffer.remaining() >= FRAME_HEADER_LENGTH && !closed) {
+				int start = readBuffer.position();
+				int length = ((readBuffer.get(start) & 0xff) << 16) | ((readBuffer.get(start + 1) & 0xff) << 8)
+						| (readBuffer.get(start + 2) & 0xff);
+				if (length > MAX_FRAME_SIZE) {
+					throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "frame of " + length + " bytes");
+				}
+				if (readBuffer.remaining() < FRAME_HEADER_LENGTH + length) {
+					break;
+				}
+
+				int type = readBuffer.get(start + 3) & 0xff;
+				int flags = readBuffer.get(start + 4) & 0xff;
+				int streamId = readBuffer.getInt(start + 5) & 0x7fffffff;
+				ByteBuffer payload = readBuffer.duplicate();
+				payload.position(start + FRAME_HEADER_LENGTH);
+				payload.limit(start + FRAME_HEADER_LENGTH + length);
+				readBuffer.position(start + FRAME_HEADER_LENGTH + length);
+
+				handleFrame(type, flags, streamId, payload);
+			}
+		} finally {
+			readBuffer.compact();
+		}
+	}
+
+	private void handleFrame(int type, int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+		int length = payload.remaining();
+		if (continuationStream != 0 && (type != CONTINUATION || streamId != continuationStream)) {
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "expected CONTINUATION");
+		}
+
+		switch (type) {
+		case DATA:
+			onData(flags, streamId, payload);
+			break;
+		case HEADERS:
+			onHeaders(flags, streamId, payload);
+			break;
+		case CONTINUATION:
+			if (continuationStream == 0) {
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "unexpected CONTINUATION");
+			}
+			appendHeaderBlock(payload);
+			if ((flags & FLAG_END_HEADERS) != 0) {
+				continuationStream = 0;
+				onHeaderBlock(streamId, headerBlock.toByteArray(), headerBlockEndStream);
+				headerBlock = null;
+			}
+			break;
+		case PRIORITY:
+			//Every stream is served as soon as its worker is done - there's no scheduling to prioritize.
+			if (streamId == 0 || length != 5) {
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "bad PRIORITY");
+			}
+			break;
+		case RST_STREAM:
+			if (streamId == 0 || length != 4) {
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "bad RST_STREAM");
+			}
+			if (streamId > lastStreamId) {
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "RST_STREAM of an idle stream");
+			}
+			Stream reset = streams.remove(streamId);
+			if (reset != null) {
+				Log.d("Http2Connection : stream %d was reset by the client", streamId);
+				release(reset);
+			}
+			break;
+		case SETTINGS:
+			if (streamId != 0) {
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "SETTINGS of a stream");
+			}
+			if ((flags & FLAG_ACK) != 0) {
+				if (length != 0) {
+					throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS ack with a payload");
+				}
+				break;
+			}
+			if (length % 6 != 0) {
+				throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "bad SETTINGS");
+			}
+			applySettings(payload, length);
+			queueFrame(SETTINGS, FLAG_ACK, 0, new byte[0]);
+			break;
+		case PING:
+			if (streamId != 0 || length != 8) {
+				throw new Http2Exception(length != 8 ? Http2Exception.FRAME_SIZE_ERROR : Http2Exception.PROTOCOL_ERROR, "bad PING");
+			}
+			if ((flags & FLAG_ACK) == 0) {
+				byte[] opaque = new byte[8];
+				payload.get(opaque);
+				queueFrame(PING, FLAG_ACK, 0, opaque);
+			}
+			break;
+		case GOAWAY:
+			if (streamId != 0) {
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "GOAWAY of a stream");
+			}
+			//The streams being answered are finished, then the connection is closed.
+			goAwayReceived = true;
+			break;
+		case WINDOW_UPDATE:
+			onWindowUpdate(streamId, payload, length);
+			break;
+		case PUSH_PROMISE:
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PUSH_PROMISE from a client");
+		default:
+			//Unknown frame types are ignored
+			break;
+		}
+	}
+
+	private void onHeaders(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+		if (streamId == 0) {
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "HEADERS of stream 0");
+		}
+		removePadding(flags, payload);
+		if ((flags & FLAG_PRIORITY) != 0) {
+			if (payload.remaining() < 5) {
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "bad HEADERS priority");
+			}
+			payload.position(payload.position() + 5);
+		}
+
+		headerBlock = new ByteArrayOutputStream(payload.remaining());
+		appendHeaderBlock(payload);
+		if ((flags & FLAG_END_HEADERS) == 0) {
+			continuationStream = streamId;
+			headerBlockEndStream = (flags & FLAG_END_STREAM) != 0;
+			return;
+		}
+		onHeaderBlock(streamId, headerBlock.toByteArray(), (flags & FLAG_END_STREAM) != 0);
+		headerBlock = null;
+	}
+
+	private void appendHeaderBlock(ByteBuffer payload) throws Http2Exception {
+		if (headerBlock.size() + payload.remaining() > HTTPRequestParser.MAX_HEAD_BYTES) {
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "header block is too large");
+		}
+		headerBlock.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+	}
+
+	/**
+	 * A complete header block: a new request, or the trailers of one.
+	 */
+	private void onHeaderBlock(int streamId, byte[] block, boolean endStream) throws Http2Exception {
+		//Decoded even if the stream is refused, to keep the HPACK state in sync.
+		List<String[]> fields = decoder.decode(block);
+		ServerMetrics.bytesReceived.add(block.length);
+
+		Stream stream = streams.get(streamId);
+		if (fields == null) {
+			//Over our SETTINGS_MAX_HEADER_LIST_SIZE - only the stream is lost, the HPACK state is in sync.
+			Log.d("Http2Connection : the header list of stream %d is too large", streamId);
+			if (stream == null) {
+				if ((streamId & 1) == 0 || streamId <= lastStreamId) {
+					throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "bad stream id " + streamId);
+				}
+				lastStreamId = streamId;
+			}
+			resetStream(streamId, Http2Exception.PROTOCOL_ERROR);
+			return;
+		}
+		if (stream != null) {
+			if (stream.remoteClosed) {
+				resetStream(streamId, Http2Exception.STREAM_CLOSED);
+				return;
+			}
+			//Trailers - ignored, but they end the request.
+			if (!endStream) {
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "trailers without END_STREAM");
+			}
+			requestComplete(stream);
+			return;
+		}
+
+		if ((streamId & 1) == 0 || streamId <= lastStreamId) {
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "bad stream id " + streamId);
+		}
+		lastStreamId = streamId;
+
+		if (goAwaySent || goAwayReceived || streams.size() + orphanedWorkers >= maxConcurrentStreams) {
+			queueRstStream(streamId, Http2Exception.REFUSED_STREAM);
+			return;
+		}
+
+		stream = new Stream(streamId);
+		buildRequest(stream, fields);
+		streams.put(streamId, stream);
+		AdmissionControl.busy(connection);
+		if (endStream) {
+			requestComplete(stream);
+		}
+	}
+
+	/**
+	 * Maps a request header list to the server's request model. A malformed one is answered with a 400.
+	 */
+	private void buildRequest(Stream stream, List<String[]> fields) {
+		WebServerHttpRequest request = new WebServerHttpRequest();
+		String method = null;
+		String path = null;
+		String authority = null;
+		boolean regularSeen = false;
+		String cookie = null;
+		StringBuilder raw = new StringBuilder();
+
+		for (String[] field : fields) {
+			String name = field[0];
+			String value = field[1];
+			if (name.startsWith(":")) {
+				if (regularSeen) {
+					stream.parseError = HTTP_CODE.ERR_400_BAD_REQUEST;
+				}
+				if (name.equals(":method")) {
+					method = value;
+				} else if (name.equals(":path")) {
+					path = value;
+				} else if (name.equals(":authority")) {
+					authority = value;
+				}
+				continue;
+			}
+			regularSeen = true;
+
+			if (!name.equals(name.toLowerCase()) || name.equals("connection") || name.equals("transfer-encoding")) {
+				//Malformed in HTTP/2
+				stream.parseError = HTTP_CODE.ERR_400_BAD_REQUEST;
+			} else if (name.equals("cookie")) {
+				//Split in several fields, for better compression
+				cookie = cookie == null ? value : cookie + "; " + value;
+			} else {
+				request.addHeader(name, value);
+			}
+			raw.append(name).append(": ").append(value).append(WebServer.CRLF);
+		}
+		if (cookie != null) {
+			request.addHeader("cookie", cookie);
+		}
+		if (authority != null && request.getHeaders().get("host") == null) {
+			request.addHeader("host", authority);
+		}
+
+		request.setRawRequestData(method + " " + path + " HTTP/2" + WebServer.CRLF + raw);
+		try {
+			if (method == null || path == null) {
+				throw new HTTPReqErr(HTTP_CODE.ERR_400_BAD_REQUEST);
+			}
+			//The request model is the one of HTTP/1.1 - the framing is all that differs.
+			request.setHttpVersion(HTTP_VERSION.HTTP_1_1.toString()).setHttpMethod(method);
+			int query = path.indexOf('?');
+			if (query != -1) {
+				request.setParams(request.getGetParamsMap(), path.substring(query + 1));
+				path = path.substring(0, query);
+			}
+			request.setPath(path);
+		} catch (HTTPReqErr e) {
+			stream.parseError = e.getErrCode();
+		}
+		stream.request = request;
+	}
+
+	private void onData(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+		if (streamId == 0) {
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA of stream 0");
+		}
+		int length = payload.remaining();
+
+		//The whole frame counts, padding too
+		receivedBytes += length;
+		if (receivedBytes >= CONNECTION_RECEIVE_WINDOW / 2) {
+			queueWindowUpdate(0, receivedBytes);
+			receivedBytes = 0;
+		}
+
+		Stream stream = streams.get(streamId);
+		if (stream == null || stream.remoteClosed) {
+			if (streamId > lastStreamId) {
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA of an idle stream");
+			}
+			resetStream(streamId, Http2Exception.STREAM_CLOSED);
+			return;
+		}
+
+		removePadding(flags, payload);
+		if (stream.body == null) {
+			stream.body = new ByteArrayOutputStream();
+		}
+		if (stream.body.size() + payload.remaining() > HTTPRequestParser.MAX_BODY_BYTES) {
+			Log.d("Http2Connection : request body is too large");
+			stream.parseError = HTTP_CODE.ERR_400_BAD_REQUEST;
+		} else {
+			stream.body.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+		}
+
+		if ((flags & FLAG_END_STREAM) != 0) {
+			requestComplete(stream);
+		}
+	}
+
+	private void onWindowUpdate(int streamId, ByteBuffer payload, int length) throws Http2Exception {
+		if (length != 4) {
+			throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "bad WINDOW_UPDATE");
+		}
+		int increment = payload.getInt() & 0x7fffffff;
+
+		if (streamId == 0) {
+			if (increment == 0) {
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "WINDOW_UPDATE of 0");
+			}
+			sendWindow += increment;
+			if (sendWindow > MAX_WINDOW) {
+				throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "connection window overflow");
+			}
+			return;
+		}
+
+		Stream stream = streams.get(streamId);
+		if (stream == null) {
+			if (streamId > lastStreamId) {
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "WINDOW_UPDATE of an idle stream");
+			}
+			//Of a stream that was just finished
+			return;
+		}
+		if (increment == 0) {
+			resetStream(streamId, Http2Exception.PROTOCOL_ERROR);
+			return;
+		}
+		stream.sendWindow += increment;
+		if (stream.sendWindow > MAX_WINDOW) {
+			resetStream(streamId, Http2Exception.FLOW_CONTROL_ERROR);
+		}
+	}
+
+	private void applySettings(ByteBuffer payload, int length) throws Http2Exception {
+		for (int i = 0; i + 6 <= length; i += 6) {
+			int id = payload.getShort() & 0xffff;
+			long value = payload.getInt() & 0xffffffffL;
+
+			switch (id) {
+			case SETTINGS_HEADER_TABLE_SIZE:
+				encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+				break;
+			case SETTINGS_ENABLE_PUSH:
+				//The server never pushes
+				if (value > 1) {
+					throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "bad ENABLE_PUSH");
+				}
+				break;
+			case SETTINGS_INITIAL_WINDOW_SIZE:
+				if (value > MAX_WINDOW) {
+					throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "bad INITIAL_WINDOW_SIZE");
+				}
+				//Applies to the open streams too
+				int delta = (int) value - peerInitialWindow;
+				peerInitialWindow = (int) value;
+				for (Stream stream : streams.values()) {
+					stream.sendWindow += delta;
+					if (stream.sendWindow > MAX_WINDOW) {
+						throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "stream window overflow");
+					}
+				}
+				break;
+			case SETTINGS_MAX_FRAME_SIZE:
+				if (value < MAX_FRAME_SIZE || value > 0xffffff) {
+					throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "bad MAX_FRAME_SIZE");
+				}
+				//Frames bigger than the default gain little, and would hold up the other streams longer - never sent.
+				break;
+			default:
+				//MAX_CONCURRENT_STREAMS limits pushes, MAX_HEADER_LIST_SIZE is advisory. The rest are unknown.
+				break;
+			}
+		}
+	}
+
+	private void removePadding(int flags, ByteBuffer payload) throws Http2Exception {
+		if ((flags & FLAG_PADDED) == 0) {
+			return;
+		}
+		if (!payload.hasRemaining()) {
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "missing pad length");
+		}
+		int padLength = payload.get() & 0xff;
+		if (padLength > payload.remaining()) {
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "padding past the frame");
+		}
+		payload.limit(payload.limit() - padLength);
+	}
+
+	/**
+	 * The client sent all of the request - hand it to a worker.
+	 */
+	private void requestComplete(Stream stream) {
+		stream.remoteClosed = true;
+		if (stream.body != null) {
+			String body = new String(stream.body.toByteArray());
+			stream.request.setRequestBody(body);
+			stream.request.setRawRequestData(stream.request.getRawRequestData() + WebServer.CRLF + body);
+			ServerMetrics.bytesReceived.add(stream.body.size());
+			stream.body = null;
+		}
+		dispatch(stream);
+	}
+
+	private void dispatch(Stream stream) {
+		Log.d(stream.request.getRawRequestData());
+		ThreadPool workers = loop.getServer().getWorkers();
+		if (!AdmissionControl.admitRequest(workers)) {
+			//The client may retry a refused stream safely
+			resetStream(stream.id, Http2Exception.REFUSED_STREAM);
+			return;
+		}
+
+		stream.dispatched = true;
+		workers.submit(new Http2RequestTask(this, stream, stream.request, stream.parseError));
+	}
+
+	/**
+	 * Sends the headers of a response. Called by the worker thread.
+	 * @param fields - the header list, <code>:status</code> first.
+	 * @param endStream - <code>true</code> if the response has no body.
+	 * @param code - the response code, for the metrics.
+	 */
+	public void sendHeaders(final Stream stream, final List<String[]> fields, final boolean endStream, final HTTP_CODE code) {
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (closed || streams.get(stream.id) != stream) {
+					return;
+				}
+				stream.code = code;
+				queueHeaders(stream, fields, endStream);
+				flush();
+			}
+		});
+	}
+
+	/**
+	 * Opens the body of a response, after <code>sendHeaders</code>. Called by the worker thread.
+	 * @return the stream to write the body to. The response ends when it's closed.
+	 */
+	public OutputStream openBody(Stream stream) {
+		return new BodyStream(stream);
+	}
+
+	/**
+	 * Starts the crawl progress stream. Called by the worker thread. The loop pushes the events from then on,
+	 * until the crawl ends or the client resets the stream or leaves.
+	 */
+	public void startProgress(final Stream stream) {
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (closed || streams.get(stream.id) != stream) {
+					return;
+				}
+				ArrayList<String[]> fields = new ArrayList<>();
+				fields.add(new String[] { ":status", "200" });
+				fields.add(new String[] { "content-type", "text/event-stream" });
+				fields.add(new String[] { "cache-control", "no-cache" });
+				stream.code = HTTP_CODE.C200_OK;
+				stream.progress = true;
+				queueHeaders(stream, fields, false);
+				stream.data.add(ByteBuffer.wrap(CrawlProgressStream.buildRetry().getBytes()));
+				flush();
+			}
+		});
+	}
+
+	/**
+	 * Pushes a progress event to the progress streams, if it changed since the last one.
+	 * A stream is skipped while the client is still reading the last one.
+	 * @param ended - the crawl is not running: the event is the last one, and the streams end with it.
+	 */
+	void pushProgress(String event, boolean ended) {
+		for (Stream stream : streams.values()) {
+			if (!stream.progress || !stream.data.isEmpty()) {
+				continue;
+			}
+			if (ended) {
+				stream.data.add(ByteBuffer.wrap(CrawlProgressStream.buildLastEventBytes(event)));
+				stream.dataEnded = true;
+				stream.progress = false;
+			} else if (!event.equals(stream.lastEvent)) {
+				stream.lastEvent = event;
+				stream.idleTicks = 0;
+				stream.data.add(ByteBuffer.wrap(CrawlProgressStream.buildEventBytes(event)));
+			} else if (++stream.idleTicks >= HEARTBEAT_TICKS) {
+				stream.idleTicks = 0;
+				stream.data.add(ByteBuffer.wrap(HEARTBEAT));
+			}
+		}
+		flush();
+	}
+
+	/**
+	 * Ends a stream with RST_STREAM - the other streams go on. May be called by any thread.
+	 */
+	public void resetStream(final Stream stream, final int errorCode) {
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (!closed && streams.get(stream.id) == stream) {
+					resetStream(stream.id, errorCode);
+					flush();
+				}
+			}
+		});
+	}
+
+	private void resetStream(int streamId, int errorCode) {
+		queueRstStream(streamId, errorCode);
+		Stream stream = streams.remove(streamId);
+		if (stream != null) {
+			release(stream);
+			streamsChanged();
+		}
+	}
+
+	/**
+	 * Releases the worker of a stream that ended before its response.
+	 */
+	private void release(Stream stream) {
+		stream.data.clear();
+		if (stream.out != null) {
+			stream.out.streamClosed();
+			stream.out = null;
+		}
+		orphan(stream);
+	}
+
+	/**
+	 * Keeps counting a stream that left <code>streams</code> while its worker runs - otherwise a client
+	 * resetting its requests as soon as they're sent ("rapid reset") would get any number of them handled at once.
+	 */
+	private void orphan(Stream stream) {
+		if (stream.dispatched && !stream.workerDone && !stream.orphaned) {
+			stream.orphaned = true;
+			orphanedWorkers++;
+		}
+	}
+
+	/**
+	 * The worker of a stream returned. Called by the worker thread.
+	 */
+	public void workerDone(final Stream stream) {
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				stream.workerDone = true;
+				if (stream.orphaned) {
+					stream.orphaned = false;
+					orphanedWorkers--;
+				}
+			}
+		});
+	}
+
+	private void queueHeaders(Stream stream, List<String[]> fields, boolean endStream) {
+		byte[] block = encoder.encode(fields);
+		int offset = 0;
+		int type = HEADERS;
+		do {
+			int length = Math.min(block.length - offset, MAX_FRAME_SIZE);
+			boolean last = offset + length == block.length;
+			int flags = (last ? FLAG_END_HEADERS : 0) | (type == HEADERS && endStream ? FLAG_END_STREAM : 0);
+			ByteBuffer frame = frameHeader(length, type, flags, stream.id, length);
+			frame.put(block, offset, length);
+			frame.flip();
+			queue(frame);
+			offset += length;
+			type = CONTINUATION;
+		} while (offset < block.length);
+
+		stream.headersSent = true;
+		stream.bytesSent += block.length;
+		if (endStream) {
+			stream.endSent = true;
+			streamDone(stream);
+		}
+	}
+
+	private void queueSettings() {
+		ByteBuffer settings = ByteBuffer.allocate(4 * 6);
+		settings.putShort((short) SETTINGS_MAX_CONCURRENT_STREAMS).putInt(maxConcurrentStreams);
+		settings.putShort((short) SETTINGS_INITIAL_WINDOW_SIZE).putInt(STREAM_RECEIVE_WINDOW);
+		settings.putShort((short) SETTINGS_ENABLE_PUSH).putInt(0);
+		settings.putShort((short) SETTINGS_MAX_HEADER_LIST_SIZE).putInt(HTTPRequestParser.MAX_HEAD_BYTES);
+		queueFrame(SETTINGS, 0, 0, settings.array());
+		queueWindowUpdate(0, CONNECTION_RECEIVE_WINDOW - DEFAULT_WINDOW);
+	}
+
+	private void queueWindowUpdate(int streamId, int increment) {
+		queueFrame(WINDOW_UPDATE, 0, streamId, ByteBuffer.allocate(4).putInt(increment).array());
+	}
+
+	private void queueRstStream(int streamId, int errorCode) {
+		queueFrame(RST_STREAM, 0, streamId, ByteBuffer.allocate(4).putInt(errorCode).array());
+	}
+
+	private void queueFrame(int type, int flags, int streamId, byte[] payload) {
+		ByteBuffer frame = frameHeader(payload.length, type, flags, streamId, payload.length);
+		frame.put(payload);
+		frame.flip();
+		queue(frame);
+	}
+
+	/**
+	 * Queues the header of a frame whose payload is queued separately.
+	 */
+	private void queueHeader(int length, int type, int flags, int streamId) {
+		ByteBuffer header = frameHeader(length, type, flags, streamId, 0);
+		header.flip();
+		queue(header);
+	}
+
+	/**
+	 * @param room - the bytes to allocate after the header.
+	 * @return a buffer with the frame header, in write mode.
+	 */
+	private static ByteBuffer frameHeader(int length, int type, int flags, int streamId, int room) {
+		ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_LENGTH + room);
+		frame.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+		frame.put((byte) type).put((byte) flags).putInt(streamId);
+		return frame;
+	}
+
+	private void queue(ByteBuffer buffer) {
+		writeQueue.add(buffer);
+		queuedBytes += buffer.remaining();
+	}
+
+	/**
+	 * Makes DATA frames of what the workers wrote, within the flow-control windows, a frame per stream at a time,
+	 * while little is queued for the socket.
+	 */
+	private void frameData() {
+		boolean progress = true;
+		while (progress && queuedBytes < MAX_QUEUED_BYTES) {
+			progress = false;
+			for (Stream stream : new ArrayList<>(streams.values())) {
+				if (!stream.headersSent || stream.endSent) {
+					continue;
+				}
+
+				ByteBuffer buffer = stream.data.peek();
+				if (buffer == null) {
+					if (stream.dataEnded) {
+						//The body ended after its last frame was sent
+						queueHeader(0, DATA, FLAG_END_STREAM, stream.id);
+						stream.endSent = true;
+						streamDone(stream);
+						progress = true;
+					}
+					continue;
+				}
+
+				long window = Math.min(sendWindow, stream.sendWindow);
+				if (window <= 0) {
+					continue;
+				}
+				int length = (int) Math.min(Math.min(window, MAX_FRAME_SIZE), buffer.remaining());
+				boolean last = length == buffer.remaining() && stream.data.size() == 1 && stream.dataEnded;
+
+				queueHeader(length, DATA, last ? FLAG_END_STREAM : 0, stream.id);
+				ByteBuffer slice = buffer.duplicate();
+				slice.limit(slice.position() + length);
+				queue(slice);
+				buffer.position(buffer.position() + length);
+				if (!buffer.hasRemaining()) {
+					stream.data.poll();
+				}
+
+				sendWindow -= length;
+				stream.sendWindow -= length;
+				stream.bytesSent += FRAME_HEADER_LENGTH + length;
+				if (stream.out != null) {
+					stream.out.sent(length);
+				}
+				if (last) {
+					stream.endSent = true;
+					streamDone(stream);
+				}
+				progress = true;
+			}
+		}
+	}
+
+	private void streamDone(Stream stream) {
+		streams.remove(stream.id);
+		stream.out = null;
+		orphan(stream);
+		ServerMetrics.responseSent(stream.code, stream.bytesSent);
+		long nanos = System.nanoTime() - stream.startNanos;
+		ServerMetrics.requestTime.recordNanos(nanos);
+		AccessLog.log(connection.getClient(), stream.request, "HTTP/2.0", stream.code, stream.bytesSent, nanos);
+		stream.request = null;
+		streamsChanged();
+	}
+
+	private void streamsChanged() {
+		if (streams.isEmpty()) {
+			AdmissionControl.idle(connection);
+		}
+	}
+
+	void onWritable() {
+		flush();
+	}
+
+	/**
+	 * Frames and writes as much as the socket takes, then waits for OP_WRITE if it's full.
+	 */
+	private void flush() {
+		if (closed) {
+			return;
+		}
+		try {
+			while (true) {
+				frameData();
+				if (writeQueue.isEmpty()) {
+					writeBlocked = false;
+					break;
+				}
+				if (!writeQueued()) {
+					writeBlocked = true;
+					break;
+				}
+			}
+		} catch (IOException e) {
+			Log.d("Http2Connection.flush() : %s", e.getMessage());
+			connection.close();
+			return;
+		}
+
+		if ((goAwayReceived || goAwaySent) && streams.isEmpty() && writeQueue.isEmpty()) {
+			connection.close();
+			return;
+		}
+		connection.updateInterest();
+	}
+
+	/**
+	 * Writes the queued frames with a single gathering write.
+	 * @return <code>false</code> if not all of them were written.
+	 */
+	private boolean writeQueued() throws IOException {
+		int count = 0;
+		for (ByteBuffer buffer : writeQueue) {
+			if (count == gather.length) {
+				ByteBuffer[] bigger = new ByteBuffer[count * 2];
+				System.arraycopy(gather, 0, bigger, 0, count);
+				gather = bigger;
+			}
+			gather[count++] = buffer;
+		}
+
+		long written = channel.write(gather, 0, count);
+		for (int i = 0; i < count; i++) {
+			gather[i] = null;
+		}
+		if (written > 0) {
+			lastActivityMillis = System.currentTimeMillis();
+			queuedBytes -= written;
+		}
+
+		ByteBuffer buffer;
+		while ((buffer = writeQueue.peek()) != null && !buffer.hasRemaining()) {
+			writeQueue.poll();
+		}
+		return writeQueue.isEmpty();
+	}
+
+	/**
+	 * Ends the connection with a GOAWAY. The streams being answered are dropped.
+	 */
+	private void goAway(int errorCode) {
+		queueGoAway(errorCode);
+		for (Stream stream : streams.values()) {
+			release(stream);
+		}
+		streams.clear();
+		flush();
+	}
+
+	private void queueGoAway(int errorCode) {
+		goAwaySent = true;
+		queueFrame(GOAWAY, 0, 0, ByteBuffer.allocate(8).putInt(lastStreamId).putInt(errorCode).array());
+	}
+
+	/**
+	 * Called by the connection when it's closed: tells the client, if it can, and releases the waiting workers.
+	 */
+	void closed() {
+		if (closed) {
+			return;
+		}
+		if (!goAwaySent) {
+			queueGoAway(Http2Exception.NO_ERROR);
+			try {
+				//Best effort - the connection is closed anyway
+				writeQueued();
+			} catch (IOException e) {
+				Log.d("Http2Connection.closed() : %s", e.getMessage());
+			}
+		}
+		closed = true;
+		for (Stream stream : streams.values()) {
+			release(stream);
+		}
+		streams.clear();
+		writeQueue.clear();
+	}
+
+	/**
+	 * The body of a response: what the worker writes is queued to the loop, and sent in DATA frames.
+	 * The worker waits while more than MAX_PENDING_BYTES of its stream are unsent, so a slow client
+	 * (or a small flow-control window) bounds its memory.
+	 */
+	private class BodyStream extends OutputStream {
+
+		private final Stream stream;
+		private long pendingBytes = 0;
+		private boolean streamClosed = false;
+
+		BodyStream(final Stream stream) {
+			this.stream = stream;
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (closed || streams.get(stream.id) != stream) {
+						streamClosed();
+						return;
+					}
+					stream.out = BodyStream.this;
+				}
+			});
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return;
+			}
+
+			synchronized (this) {
+				while (pendingBytes > MAX_PENDING_BYTES && !streamClosed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						throw new IOException("Interrupted while waiting for the client");
+					}
+				}
+				if (streamClosed) {
+					throw new IOException("Stream closed");
+				}
+				pendingBytes += len;
+			}
+
+			final byte[] copy = new byte[len];
+			System.arraycopy(b, off, copy, 0, len);
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (closed || streams.get(stream.id) != stream) {
+						streamClosed();
+						return;
+					}
+					stream.data.add(ByteBuffer.wrap(copy));
+					Http2Connection.this.flush();
+				}
+			});
+		}
+
+		/**
+		 * Ends the response.
+		 */
+		@Override
+		public void close() {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (closed || streams.get(stream.id) != stream || stream.dataEnded) {
+						return;
+					}
+					stream.dataEnded = true;
+					Http2Connection.this.flush();
+				}
+			});
+		}
+
+		/**
+		 * Called by the loop when queued bytes were framed.
+		 */
+		synchronized void sent(int n) {
+			pendingBytes -= n;
+			notifyAll();
+		}
+
+		/**
+		 * Called by the loop when the stream or the connection is closed, to release the waiting worker.
+		 */
+		synchronized void streamClosed() {
+			streamClosed = true;
+			notifyAll();
+		}
+	}
+}
@@ -0,0 +1,31 @@
+import java.io.IOException;
+
+/**
+ * An HTTP/2 connection error. The connection is ended with a GOAWAY of the error code.
+ */
+public class Http2Exception extends IOException {
+
+	private static final long serialVersionUID = 6188236407815474101L;
+
+	//The error codes (RFC 7540, 7)
+	public static final int NO_ERROR = 0x0;
+	public static final int PROTOCOL_ERROR = 0x1;
+	public static final int INTERNAL_ERROR = 0x2;
+	public static final int FLOW_CONTROL_ERROR = 0x3;
+	public static final int STREAM_CLOSED = 0x5;
+	public static final int FRAME_SIZE_ERROR = 0x6;
+	public static final int REFUSED_STREAM = 0x7;
+	public static final int CANCEL = 0x8;
+	public static final int COMPRESSION_ERROR = 0x9;
+
+	private final int errorCode;
+
+	public Http2Exception(int errorCode, String message) {
+		super(message);
+		this.errorCode = errorCode;
+	}
+
+	public int getErrorCode() {
+		return errorCode;
+	}
+}
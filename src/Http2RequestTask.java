@@ -0,0 +1,84 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Handles a request stream of an HTTP/2 connection on a worker thread: validates the request and builds
+ * the response like for HTTP/1.x, then sends its headers and streams its body to the connection's event loop,
+ * which frames them.
+ */
+public class Http2RequestTask extends Task {
+
+	private Http2Connection mConnection;
+	private Http2Connection.Stream mStream;
+	private WebServerHttpRequest mHttpReq;
+
+	//Set if the request was malformed
+	private HTTP_CODE mParseError;
+
+	public Http2RequestTask(Http2Connection connection, Http2Connection.Stream stream, WebServerHttpRequest request, HTTP_CODE parseError) {
+		mConnection = connection;
+		mStream = stream;
+		mHttpReq = request;
+		mParseError = parseError;
+	}
+
+	@Override
+	public void run() {
+		try {
+			respond();
+		} finally {
+			mConnection.workerDone(mStream);
+		}
+	}
+
+	private void respond() {
+		HTTP_CODE httpCode = mParseError;
+
+		int retryAfter = RateLimiter.acquire(mConnection.getClient(), mHttpReq);
+		if (retryAfter > 0) {
+			httpCode = HTTP_CODE.ERR_429_TOO_MANY_REQUESTS;
+		} else if (httpCode == null) {
+			try {
+				HTTPRequestParseUtil.validateRequest(mHttpReq);
+				httpCode = HTTP_CODE.C200_OK;
+			} catch (HTTPReqErr e) {
+				httpCode = e.getErrCode();
+				Log.d(e.getMessage());
+			}
+		}
+
+		if (httpCode == HTTP_CODE.C200_OK && HTTPRequestParseUtil.isProgressRequest(mHttpReq)) {
+			//The loop pushes the events from now on.
+			mConnection.startProgress(mStream);
+			return;
+		}
+
+		WebServerHttpResponse response = new WebServerHttpResponse(httpCode);
+		response.setRetryAfter(retryAfter);
+		response.prepare(mHttpReq);
+		boolean hasBody = response.hasBody();
+		mConnection.sendHeaders(mStream, response.getHeaderFields(), !hasBody, response.getCode());
+		if (!hasBody) {
+			return;
+		}
+
+		//Written to the loop a frame at a time
+		OutputStream out = new BufferedOutputStream(mConnection.openBody(mStream), Http2Connection.MAX_FRAME_SIZE);
+		try {
+			response.writeContent(out);
+		} catch (IOException e) {
+			//Only this stream fails, the other streams of the connection go on.
+			Log.d("Http2RequestTask.run() : %s", e.getMessage());
+			mConnection.resetStream(mStream, Http2Exception.INTERNAL_ERROR);
+		}
+	}
+
+	/**
+	 * The connection belongs to its event loop, which closes it when the server stops.
+	 */
+	@Override
+	protected void shutdown() throws IOException {
+		Log.d("Http2RequestTask is shutting down.");
+	}
+}
@@ -0,0 +1,168 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram, in the spirit of HdrHistogram.
+ * Values are recorded in microseconds into log-linear buckets: every power of two is split into
+ * <code>SUB_BUCKETS</code> linear sub-buckets, so the relative error of a reported percentile is about 3%.
+ * Recording a sample is a couple of atomic increments - no locks and no allocations.
+ */
+public class LatencyHistogram {
+
+	//Each power of two is divided into 2^SUB_BUCKET_BITS linear buckets.
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** Highest trackable value (~134 seconds). Larger values are clamped. */
+	public static final long MAX_VALUE_MICROS = (1L << 27) - 1;
+
+	private static final int NUM_OF_BUCKETS = bucketIndex(MAX_VALUE_MICROS) + 1;
+
+	private final AtomicLongArray counts;
+	private final LongAdder totalCount;
+	private final LongAdder sum;
+	private final AtomicLong max;
+
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(NUM_OF_BUCKETS);
+		totalCount = new LongAdder();
+		sum = new LongAdder();
+		max = new AtomicLong();
+	}
+
+	/**
+	 * Records a single sample.
+	 * @param micros - the latency in microseconds. Negative values are ignored.
+	 */
+	public void record(long micros) {
+		if (micros < 0) {
+			return;
+		}
+		if (micros > MAX_VALUE_MICROS) {
+			micros = MAX_VALUE_MICROS;
+		}
+
+		counts.getAndIncrement(bucketIndex(micros));
+		totalCount.increment();
+		sum.add(micros);
+
+		//Only pay for a CAS when the maximum actually changes.
+		long currMax = max.get();
+		while (micros > currMax && !max.compareAndSet(currMax, micros)) {
+			currMax = max.get();
+		}
+	}
+
+	/**
+	 * Records a single sample, given in nanoseconds.
+	 */
+	public void recordNanos(long nanos) {
+		record(nanos / 1000);
+	}
+
+	public long getCount() {
+		return totalCount.sum();
+	}
+
+	/**
+	 * @return the sum of all recorded samples in microseconds.
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * @param micros - an upper bound
+	 * @return the number of samples whose bucket lies entirely at or below <code>micros</code>.
+	 */
+	public long getCountAtOrBelow(long micros) {
+		long result = 0;
+		for (int i = 0; i < NUM_OF_BUCKETS && highestEquivalentValue(i) <= micros; i++) {
+			result += counts.get(i);
+		}
+		return result;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return the mean of all recorded samples in microseconds, 0 if there are none.
+	 */
+	public double getMean() {
+		long count = totalCount.sum();
+		return count == 0 ? 0 : (double) sum.sum() / count;
+	}
+
+	/**
+	 * Returns the value at the given percentile. The returned value is the highest value
+	 * that is equivalent (shares a bucket) to the real one, and never more than the max.
+	 * @param percentile - between 0 and 100.
+	 * @return the value in microseconds, 0 if there are no samples.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long[] snapshot = new long[NUM_OF_BUCKETS];
+		long count = 0;
+		for (int i = 0; i < NUM_OF_BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+
+		if (count == 0) {
+			return 0;
+		}
+
+		long target = (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * count);
+		if (target < 1) {
+			target = 1;
+		}
+
+		long seen = 0;
+		for (int i = 0; i < NUM_OF_BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= target) {
+				return Math.min(highestEquivalentValue(i), max.get());
+			}
+		}
+
+		return max.get();
+	}
+
+	/**
+	 * Clears all the samples. Should not be called concurrently with <code>record</code>
+	 * if an exact reset is needed.
+	 */
+	public void reset() {
+		for (int i = 0; i < NUM_OF_BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		totalCount.reset();
+		sum.reset();
+		max.set(0);
+	}
+
+	/**
+	 * Values below SUB_BUCKETS map 1:1. Above that, the bucket is chosen by the position of the highest bit
+	 * and the next SUB_BUCKET_BITS bits under it.
+	 */
+	private static int bucketIndex(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		int shift = msb - SUB_BUCKET_BITS;
+		int mantissa = (int) (value >>> shift);
+		return (shift + 1) * SUB_BUCKETS + (mantissa - SUB_BUCKETS);
+	}
+
+	private static long highestEquivalentValue(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long mantissa = SUB_BUCKETS + index % SUB_BUCKETS;
+		return ((mantissa + 1) << shift) - 1;
+	}
+}
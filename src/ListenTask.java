@@ -1,21 +1,36 @@
-import java.io.DataOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.StringReader;
+import java.io.InputStream;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
 
 /**
  * ListenTask  manages the request-response flow.
  * ListenTask is in charge of keeping the connection alive, if instructed to, by the HTTP/1.x protocol.  
  *
  */
-public class ListenTask extends Task {
+public class ListenTask extends Task implements AdmissionControl.IdleConnection {
 
+	private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+	
 	private Socket mSocket;
+	private String mClient;
 	private WebServerHttpRequest mHttpReq;
 	
+	//Keeps the bytes read from the socket across the requests of the connection.
+	private HTTPRequestParser mParser = new HTTPRequestParser();
+	
+	//The responses to pipelined requests are flushed together: when the next request isn't read yet,
+	//or after WebServer.maxPipelinedRequests of them.
+	private BufferedOutputStream mOut;
+	private int mUnflushed = 0;
+	
+	//Set once a response was sent and the connection kept alive - from then on, waiting for a request is being idle.
+	private boolean mKeptAlive = false;
+	
 	//When true, the connection will never be closed because of the server,
 	//and after successful request-response cycle we will 'reset' the listen task,
 	//so we're able to receive new HTTP request on the same connection (if it's HTTP/1.1 of course)
@@ -23,6 +38,7 @@ public class ListenTask extends Task {
 
 	public ListenTask(Socket socket) {
 		mSocket = socket;
+		mClient = ServerSockets.clientAddress(socket);
 		mHttpReq = new WebServerHttpRequest();
 	}
 
@@ -37,8 +53,11 @@ public class ListenTask extends Task {
 		//If there's a socket error, we won't send response.
 		boolean socketError = false;
 		
+		//After a malformed request the rest of the stream can't be parsed, the connection is closed.
+		boolean parseError = false;
+		
 		try {
-			mSocket.setSoTimeout(WebServer.SOCKET_TIMEOUT_MILLIS);
+			mSocket.setSoTimeout(WebServer.idleTimeoutMillis);
 		} catch (SocketException e2) {
 			Log.d("Socket error while setting it's timeout. Closing connection");
 			keepAlive = false;
@@ -47,21 +66,24 @@ public class ListenTask extends Task {
 		}
 
 		while (keepAlive) {
+			long requestStartNanos = 0;
+			boolean requestRead = false;
+			int retryAfter = 0;
 			try {
 				
-				//A reader that reads until CRLF is read.
-				CRLFBufferedReader clientInputReader = new CRLFBufferedReader(new InputStreamReader(mSocket.getInputStream()));
-				
-				//read & print the request headers
-				String requestHeadersStr = readRequestHeaders(clientInputReader);
-				mHttpReq.setRawRequestData(requestHeadersStr);
-				Log.d(requestHeadersStr);
-				
-				//parse all the request
-				parseHTTPRequest(requestHeadersStr, clientInputReader);
+				//read & parse the request
+				mHttpReq = readRequest(mSocket.getInputStream());
+				requestRead = true;
+				requestStartNanos = System.nanoTime();
+				Log.d(mHttpReq.getRawRequestData());
 				
+				retryAfter = RateLimiter.acquire(mClient, mHttpReq);
+				if (retryAfter > 0) {
+					throw new HTTPReqErr(HTTP_CODE.ERR_429_TOO_MANY_REQUESTS);
+				}
+
 				//validate the HTTP request
-				validateHTTPRequest();
+				HTTPRequestParseUtil.validateRequest(mHttpReq);
 
 				httpCode = HTTP_CODE.C200_OK;
 			} catch (HTTPReqErr e) {
@@ -72,170 +94,201 @@ public class ListenTask extends Task {
 				
 				if (httpCode == HTTP_CODE.NO_RESPONSE) {
 					socketError = true;
+				} else if (!requestRead) {
+					//The request couldn't be parsed, respond with what was parsed of it.
+					mHttpReq = mParser.getRequest();
+					parseError = true;
+					Log.d(e.getMessage());
+					retryAfter = RateLimiter.acquire(mClient, mHttpReq);
+					if (retryAfter > 0) {
+						httpCode = HTTP_CODE.ERR_429_TOO_MANY_REQUESTS;
+					}
 				} else {
 					Log.d(e.getMessage());
 					//e.printStackTrace();
 				}
 				
 			} catch (IOException e) {
-				Log.d("ListenTask.run() : " + e.getMessage());
+				Log.d("ListenTask.run() : %s", e.getMessage());
 				socketError = true;
 				//e.printStackTrace();
 			} finally {				
 				try {
 					
-					if (!socketError) {
+					if (!socketError && httpCode == HTTP_CODE.C200_OK && HTTPRequestParseUtil.isProgressRequest(mHttpReq)) {
+						//The progress stream keeps the connection until the crawl ends or the client leaves.
+						streamProgress(requestStartNanos);
+					} else if (!socketError) {
 						//Sending the response back
 						WebServerHttpResponse response = new WebServerHttpResponse(httpCode);
-						DataOutputStream clientOutputWriter = new DataOutputStream(mSocket.getOutputStream());
-						clientOutputWriter.write(response.buildResponse(mHttpReq));
-						clientOutputWriter.flush();
+						response.setRetryAfter(retryAfter);
+						if (mOut == null) {
+							mOut = new BufferedOutputStream(mSocket.getOutputStream(), OUTPUT_BUFFER_SIZE);
+						}
+						byte[] responseBytes = response.buildResponse(mHttpReq);
+						mOut.write(responseBytes);
+						long responseLength = responseBytes.length;
+						if (response.isStreamed()) {
+							responseLength += response.writeBody(mOut);
+						}
+						if (response.getFileBody() != null) {
+							//The file goes straight to the socket, after what was buffered
+							flushResponses();
+							responseLength += sendFileBody(response.getFileBody());
+						} else if (++mUnflushed >= WebServer.maxPipelinedRequests) {
+							flushResponses();
+						}
+						
+						if (mHttpReq.getRawRequestData() != null) {
+							ServerMetrics.bytesReceived.add(mHttpReq.getRawRequestData().length());
+						}
+						ServerMetrics.responseSent(response.getCode(), responseLength);
+						long requestNanos = requestStartNanos != 0 ? System.nanoTime() - requestStartNanos : 0;
+						if (requestStartNanos != 0) {
+							ServerMetrics.requestTime.recordNanos(requestNanos);
+						}
+						AccessLog.log(mClient, mHttpReq, null, response.getCode(), responseLength, requestNanos);
 					}
 					
 					// persistent-connection support
-					if (checkKeepAlive() && !socketError) {
+					if (keepAlive && HTTPRequestParseUtil.isKeepAlive(mHttpReq) && !socketError && !parseError) {
 						mHttpReq = new WebServerHttpRequest();
+						mKeptAlive = true;
 					} else {
-						mSocket.close();
 						keepAlive = false;
+						try {
+							flushResponses();
+						} finally {
+							mSocket.close();
+						}
 						Log.d("ListenTask.run() : socket closed.");
 					}
 				} catch (IOException e1) {
-					Log.d("ListenTask.run() : cannot close socket");
+					Log.d("ListenTask.run() : %s", e1.getMessage());
 
 					keepAlive = false;
+					try { mSocket.close(); }
+					catch (IOException e) { Log.d("Error closing socket"); }
 					//e1.printStackTrace();
 				}
 			}
 		}
 		
+		ServerMetrics.connectionClosed();
 		Log.d("ListenTask.run() : listen thread have finished.");
 	}
 	
-	private void validateHTTPRequest() throws HTTPReqErr {
-		HTTPRequestParseUtil.validateHTTPVersion(mHttpReq);
-		HTTPRequestParseUtil.validateHTTPMethod(mHttpReq);
-		HTTPRequestParseUtil.validateHTTPPath(mHttpReq);
-	}
-
 	/**
-	 * Reads all the request, until the request body.
-	 * @param clientInputReader
-	 * @return a String holding the request-header section.
-	 * @throws IOException Thrown for any socket error
-	 * @throws HTTPReqErr - If the client disconnected, HTTPReqErr is thrown with code NO_RESPONSE. 
+	 * Sends a static file body after the response head, from the file straight to the socket.
+	 * @return the number of bytes sent.
+	 * @throws IOException for any file or socket error, or if fewer bytes than announced were sent.
 	 */
-	private String readRequestHeaders(CRLFBufferedReader clientInputReader) throws IOException, HTTPReqErr {
-		StringBuilder result = new StringBuilder();
-		
-		String line = clientInputReader.readCRLFLine();
-		
-		if (line == null) {
-			//Disconnect
-			throw new HTTPReqErr(HTTP_CODE.NO_RESPONSE);
+	private long sendFileBody(FileRegion fileBody) throws IOException {
+		if (fileBody == null) {
+			return 0;
 		}
 		
-		while (line != null && !line.equals(WebServer.CRLF)) {
-			result.append(line);
-			line = clientInputReader.readCRLFLine();
+		try {
+			SocketChannel channel = mSocket.getChannel();
+			long sent;
+			if (channel != null) {
+				sent = fileBody.transferTo(channel);
+			} else {
+				//A socket that wasn't accepted by a channel - no zero-copy
+				sent = fileBody.transferTo(Channels.newChannel(mSocket.getOutputStream()));
+			}
+			if (sent != fileBody.getCount()) {
+				//The client would take the next response for the rest of the body.
+				throw new IOException("sent " + sent + " of " + fileBody.getCount() + " bytes");
+			}
+			return sent;
+		} finally {
+			fileBody.close();
 		}
-		
-		return result.toString();
 	}
-
+	
 	/**
-	 * @return <code>true</code> if the connection should be kept alive, <code>false</code> otherwise.
+	 * Writes the buffered responses to the socket.
 	 */
-	private boolean checkKeepAlive(){
-		
-		HTTP_VERSION version = mHttpReq.getHttpVersion();
-		HashMap<String, String> headers = mHttpReq.getHeaders();
-		
-		if (version == null || headers == null) {
-			return false;
+	private void flushResponses() throws IOException {
+		if (mOut != null) {
+			mOut.flush();
 		}
-		
-		boolean http11 = version == HTTP_VERSION.HTTP_1_1;
-		
-		String connectionHeader = headers.get("connection");
-		boolean connectionKeepAlive = connectionHeader != null && connectionHeader.toLowerCase().equals("keep-alive");
-
-		return http11 && connectionKeepAlive;
+		mUnflushed = 0;
 	}
-
+	
 	/**
-	 * HTTP request parsing flow.
-	 * 
-	 * @param requestHeadersStr String including the request content, excluding the body.
-	 * @param clientInputReader The socket input reader
-	 * @throws HTTPReqErr Thrown if the request is invalid, or an internal error occurs 
-	 * @throws IOException Thrown if a socket error occurs
+	 * Streams the crawl progress until the crawl ends or the client disconnects. The connection is not reused afterwards.
 	 */
-	private void parseHTTPRequest(String requestHeadersStr, CRLFBufferedReader clientInputReader) throws HTTPReqErr, IOException {
-
-		//We use StringReader here because we already streamed input from the socket.
-		CRLFBufferedReader requestHeadersReader = new CRLFBufferedReader(new StringReader(requestHeadersStr));
-		
-		//Parse the request line
-		parseRequestLine(requestHeadersReader);
-
-		//Parse the headers, save the last line because it might be the first lie of request body.
-		parseRequestHeaders(requestHeadersReader);
-		
-		//Parse body - read the rest from the socket
-		parseRequestBody(clientInputReader);
+	private void streamProgress(long requestStartNanos) {
+		keepAlive = false;
+		CrawlProgressStream stream = null;
+		try {
+			flushResponses();
+			stream = new CrawlProgressStream(mSocket.getOutputStream());
+			stream.stream(mHttpReq.getHttpVersion());
+		} catch (IOException e) {
+			Log.d("ListenTask.streamProgress() : client left the progress stream");
+		} finally {
+			if (stream != null && stream.getCode() != null) {
+				ServerMetrics.responseSent(stream.getCode(), stream.getBytesWritten());
+				long requestNanos = System.nanoTime() - requestStartNanos;
+				ServerMetrics.requestTime.recordNanos(requestNanos);
+				AccessLog.log(mClient, mHttpReq, null, stream.getCode(), stream.getBytesWritten(), requestNanos);
+			}
+		}
 	}
 	
 	/**
-	 * Parses the request body.
-	 * @param clientInputReader The socket stream reader
-	 *  
+	 * Reads the next request. A request that was pipelined behind the previous one may be in the buffer already.
+	 * @param in The socket stream
+	 * @return the parsed request
 	 * @throws IOException Thrown for any socket error
+	 * @throws HTTPReqErr - If the client disconnected, HTTPReqErr is thrown with code NO_RESPONSE.
+	 * Any other code means the request is malformed. 
 	 */
-	private void parseRequestBody(CRLFBufferedReader clientInputReader) throws IOException {
-		
-		//Parse the request-body. Carefully with the content-length as someone may want to screw us :)
-		StringBuilder requestBodySB = new StringBuilder();
-		String expectedContentLengthStr = mHttpReq.getHeaders().get("content-length");
+	private WebServerHttpRequest readRequest(InputStream in) throws IOException, HTTPReqErr {
+		WebServerHttpRequest request = mParser.parse();
 		
-		if (expectedContentLengthStr != null && expectedContentLengthStr.matches("\\d+")) {
-			int expectedContentLength = Integer.valueOf(expectedContentLengthStr);
+		while (request == null) {
+			//Nothing more to answer before the client sends more - send what's buffered.
+			flushResponses();
+			ByteBuffer buffer = mParser.getReadBuffer();
 			
-			String content = clientInputReader.readUntil(expectedContentLength);
-			requestBodySB.append(content);
-			
-			mHttpReq.setRequestBody(requestBodySB.toString());
-			mHttpReq.setRawRequestData(mHttpReq.getRawRequestData() + requestBodySB.toString());
-		}
-	}
-
-	/**
-	 * Parses the request headers. The method returns the last line it read because it might contain request-body data.
-	 * 
-	 * @param clientInputReader
-	 * @return the last line read from the stream, which might be the first request-body line.
-	 * @throws IOException
-	 * @throws HTTPReqErr
-	 */
-	private String parseRequestHeaders(CRLFBufferedReader clientInputReader) throws IOException {
-		String line = clientInputReader.readCRLFLine();
-		while (line != null && !line.equals(WebServer.CRLF)) {
-			HTTPRequestParseUtil.parseHeaderLine(mHttpReq, line);
-			line = clientInputReader.readCRLFLine();
+			//Between requests the worker may be taken back for a connection that is waiting for one.
+			boolean idle = mKeptAlive && !mParser.hasBufferedBytes();
+			if (idle) {
+				AdmissionControl.idle(this);
+			}
+			int read;
+			try {
+				read = in.read(buffer.array(), buffer.position(), buffer.remaining());
+			} finally {
+				if (idle) {
+					AdmissionControl.busy(this);
+				}
+			}
+			if (read == -1) {
+				//Disconnect
+				throw new HTTPReqErr(HTTP_CODE.NO_RESPONSE);
+			}
+			buffer.position(buffer.position() + read);
+			request = mParser.parse();
 		}
 		
-		return line;
+		return request;
 	}
 
 	/**
-	 * Parses the first request line.
-	 * @param clientInputReader Socket input reader
-	 * @throws IOException Thrown for any socket error
-	 * @throws HTTPReqErr Thrown if the request is invalid, or internal error occurs while parsing the request
+	 * Closes an idle keep-alive connection, to make room. The read of the next request fails and the task ends.
 	 */
-	private void parseRequestLine(CRLFBufferedReader clientInputReader) throws IOException, HTTPReqErr {
-		String requestLine = clientInputReader.readCRLFLine();
-		HTTPRequestParseUtil.parseRequestLine(mHttpReq, requestLine);
+	@Override
+	public void reclaim() {
+		try {
+			mSocket.close();
+		} catch (IOException e) {
+			Log.d("ListenTask.reclaim() : cannot close socket");
+		}
 	}
 
 	/**
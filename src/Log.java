@@ -1,15 +1,247 @@
+import java.io.IOException;
 import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * An asynchronous, levelled logger.
+ * A log call below the configured level returns before anything is formatted.
+ * Otherwise the message, its format arguments and a timestamp are put in a lock-free ring buffer,
+ * and a background thread formats them and writes them in batches (to System.out or a rolling file).
+ * Only immutable arguments (strings, boxed primitives, enums) are formatted late - with any other,
+ * the message is formatted by the logging thread, before the caller can change the argument.
+ * So the worker threads never wait on each other or on the console.
+ * If the ring buffer is full the message is dropped, and the number of dropped messages is logged later.
+ */
 public class Log {
 
-	public static synchronized void d(String msg) {
-		Calendar c = Calendar.getInstance();
-		int hour = c.get(Calendar.HOUR_OF_DAY);
-		int minute = c.get(Calendar.MINUTE);
-		int second = c.get(Calendar.SECOND);
-		int millis = c.get(Calendar.MILLISECOND);
-		
-		String log = String.format("%d:%d:%d.%d (%d) : %s", hour, minute, second, millis, Thread.currentThread().getId(), msg);
-		System.out.println(log);
+	enum Level {
+		DEBUG, INFO, WARN, ERROR, OFF
+	}
+
+	private static final int RING_BUFFER_SIZE = 16 * 1024;
+
+	/** The longest the writer sleeps when there's nothing to write - a new record wakes it up sooner */
+	private static final long IDLE_PARK_NANOS = 1000 * 1000 * 1000L;
+
+	/**
+	 * A slot in the ring buffer. Filled by the logging thread, formatted by the writer thread.
+	 */
+	private static class LogEvent {
+		long timeMillis;
+		long threadId;
+		Level level;
+		String msg;
+		Object[] args;
+	}
+
+	private static volatile Level level = Level.DEBUG;
+
+	private static final RingBuffer<LogEvent> ringBuffer = new RingBuffer<>(RING_BUFFER_SIZE, new RingBuffer.EventFactory<LogEvent>() {
+		@Override
+		public LogEvent newEvent() {
+			return new LogEvent();
+		}
+	});
+
+	private static final AtomicLong dropped = new AtomicLong();
+
+	//Set by configure(), picked up by the writer thread.
+	private static volatile RollingFileWriter pendingOutput;
+
+	private static final LogWriter logWriter = new LogWriter();
+
+	static {
+		Thread writerThread = new Thread(logWriter, "log-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+
+		//Don't lose the tail of the log when the application exits.
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				logWriter.drainOnce();
+			}
+		});
+	}
+
+	/**
+	 * Sets the level and the output. Called once the config file is read.
+	 * @param newLevel - messages below it are skipped.
+	 * @param fileName - the log file, <code>null</code> or empty for System.out.
+	 * @param maxBytes - the file is rolled over when it is bigger than this.
+	 * @param maxFiles - number of rolled files to keep.
+	 */
+	public static void configure(Level newLevel, String fileName, long maxBytes, int maxFiles) {
+		level = newLevel;
+		pendingOutput = new RollingFileWriter(fileName, maxBytes, maxFiles);
+	}
+
+	public static boolean isLoggable(Level l) {
+		return l.ordinal() >= level.ordinal();
+	}
+
+	public static void d(String msg) {
+		log(Level.DEBUG, msg, null);
+	}
+
+	/**
+	 * Logs a debug message. The message is formatted with <code>String.format</code>, only if debug is enabled,
+	 * and on the writer thread if the arguments are immutable.
+	 */
+	public static void d(String format, Object... args) {
+		log(Level.DEBUG, format, args);
+	}
+
+	public static void i(String msg) {
+		log(Level.INFO, msg, null);
+	}
+
+	public static void i(String format, Object... args) {
+		log(Level.INFO, format, args);
+	}
+
+	public static void w(String msg) {
+		log(Level.WARN, msg, null);
+	}
+
+	public static void w(String format, Object... args) {
+		log(Level.WARN, format, args);
+	}
+
+	public static void e(String msg) {
+		log(Level.ERROR, msg, null);
+	}
+
+	public static void e(String format, Object... args) {
+		log(Level.ERROR, format, args);
+	}
+
+	private static void log(Level l, String msg, Object[] args) {
+		if (l.ordinal() < level.ordinal()) {
+			return;
+		}
+
+		long seq = ringBuffer.claim();
+		if (seq == -1) {
+			dropped.incrementAndGet();
+			return;
+		}
+
+		if (args != null && !isImmutable(args)) {
+			msg = format(msg, args);
+			args = null;
+		}
+
+		LogEvent event = ringBuffer.get(seq);
+		event.timeMillis = System.currentTimeMillis();
+		event.threadId = Thread.currentThread().getId();
+		event.level = l;
+		event.msg = msg;
+		event.args = args;
+		ringBuffer.publish(seq);
+	}
+
+	/**
+	 * @return <code>true</code> if the arguments print the same later, on the writer thread.
+	 */
+	private static boolean isImmutable(Object[] args) {
+		for (Object arg : args) {
+			if (arg == null || arg instanceof String || arg instanceof Enum) {
+				continue;
+			}
+			Class<?> c = arg.getClass();
+			if (c != Integer.class && c != Long.class && c != Double.class && c != Float.class && c != Short.class
+					&& c != Byte.class && c != Boolean.class && c != Character.class) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String format(String msg, Object[] args) {
+		try {
+			return args == null || args.length == 0 ? msg : String.format(msg, args);
+		} catch (RuntimeException e) {
+			return msg;
+		}
+	}
+
+	/**
+	 * The background thread: drains the ring buffer and writes the formatted lines.
+	 */
+	private static class LogWriter implements Runnable, RingBuffer.EventHandler<LogEvent> {
+
+		private RollingFileWriter output = new RollingFileWriter(null, 0, 0);
+		private final Calendar calendar = Calendar.getInstance();
+		private final StringBuilder line = new StringBuilder(256);
+
+		@Override
+		public void run() {
+			while (true) {
+				if (drainOnce() == 0) {
+					ringBuffer.await(IDLE_PARK_NANOS);
+				}
+			}
+		}
+
+		/**
+		 * Synchronized because the shutdown hook drains too, while the writer thread may still be running.
+		 */
+		synchronized int drainOnce() {
+			RollingFileWriter newOutput = pendingOutput;
+			if (newOutput != null) {
+				pendingOutput = null;
+				try {
+					output.close();
+				} catch (IOException e) {
+					//Nothing to do about it
+				}
+				output = newOutput;
+			}
+
+			int count = ringBuffer.drain(this);
+
+			long lost = dropped.getAndSet(0);
+			if (lost > 0) {
+				writeLine(System.currentTimeMillis(), Thread.currentThread().getId(), Level.WARN,
+						lost + " log messages were dropped, the log buffer was full", null);
+			}
+
+			if (count > 0 || lost > 0) {
+				try {
+					output.flush();
+				} catch (IOException e) {
+					//Nothing to do about it
+				}
+			}
+			return count;
+		}
+
+		@Override
+		public void onEvent(LogEvent event) {
+			writeLine(event.timeMillis, event.threadId, event.level, event.msg, event.args);
+			//Don't keep the arguments alive until the slot is reused.
+			event.msg = null;
+			event.args = null;
+		}
+
+		private void writeLine(long timeMillis, long threadId, Level l, String msg, Object[] args) {
+			String text = format(msg, args);
+
+			calendar.setTimeInMillis(timeMillis);
+			line.setLength(0);
+			line.append(calendar.get(Calendar.HOUR_OF_DAY)).append(':')
+				.append(calendar.get(Calendar.MINUTE)).append(':')
+				.append(calendar.get(Calendar.SECOND)).append('.')
+				.append(calendar.get(Calendar.MILLISECOND))
+				.append(" (").append(threadId).append(") ")
+				.append(l).append(" : ").append(text).append('\n');
+
+			try {
+				output.write(line);
+			} catch (IOException e) {
+				//Nothing to do about it
+			}
+		}
 	}
 }
@@ -0,0 +1,199 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A small metrics registry, exposed in the Prometheus text format on <code>WebServer.METRICS_PATH</code>.
+ * Registration takes a lock, but the returned Counter / LatencyHistogram objects are kept by the caller,
+ * so updating a metric is a single lock-free add - cheap enough to leave on all the time.
+ * Gauges are read only when the metrics page is built.
+ */
+public class Metrics {
+
+	/** Bucket bounds of the exported histograms, in seconds. */
+	private static final double[] HISTOGRAM_BOUNDS = {0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+	/**
+	 * A value that is sampled when the metrics are exposed.
+	 */
+	interface Gauge {
+		long value();
+	}
+
+	/**
+	 * A monotonic counter.
+	 */
+	public static class Counter {
+		private final LongAdder adder = new LongAdder();
+
+		public void inc() {
+			adder.increment();
+		}
+
+		public void add(long delta) {
+			adder.add(delta);
+		}
+
+		public long get() {
+			return adder.sum();
+		}
+	}
+
+	/**
+	 * All the series of a single metric name.
+	 */
+	private static class Family {
+		String help;
+		String type;
+		//labels (e.g. pool="downloaders") -> Counter, Gauge or LatencyHistogram
+		LinkedHashMap<String, Object> series = new LinkedHashMap<>();
+
+		Family(String help, String type) {
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	private static Metrics sInstance;
+
+	private final LinkedHashMap<String, Family> families = new LinkedHashMap<>();
+
+	private Metrics() {
+	}
+
+	public static synchronized Metrics getInstance() {
+		if (sInstance == null) {
+			sInstance = new Metrics();
+		}
+
+		return sInstance;
+	}
+
+	/**
+	 * Returns the counter of the given name & labels, creating it if needed.
+	 * @param labels - in the form <code>key="value",key2="value2"</code>, or an empty string.
+	 */
+	public Counter counter(String name, String help, String labels) {
+		return (Counter) getOrCreate(name, help, "counter", labels, new Counter());
+	}
+
+	public Counter counter(String name, String help) {
+		return counter(name, help, "");
+	}
+
+	/**
+	 * Returns the histogram of the given name & labels, creating it if needed.
+	 * Samples are recorded in microseconds and exported in seconds.
+	 */
+	public LatencyHistogram histogram(String name, String help, String labels) {
+		return (LatencyHistogram) getOrCreate(name, help, "histogram", labels, new LatencyHistogram());
+	}
+
+	/**
+	 * Exports an existing histogram, replacing a previous one with the same name & labels.
+	 */
+	public synchronized void histogram(String name, String help, String labels, LatencyHistogram histogram) {
+		getFamily(name, help, "histogram").series.put(labels, histogram);
+	}
+
+	/**
+	 * Registers a gauge, replacing a previous one with the same name & labels.
+	 */
+	public synchronized void gauge(String name, String help, String labels, Gauge gauge) {
+		getFamily(name, help, "gauge").series.put(labels, gauge);
+	}
+
+	/**
+	 * Removes a single series, for example a gauge of a thread pool that was shut down.
+	 */
+	public synchronized void unregister(String name, String labels) {
+		Family family = families.get(name);
+		if (family != null) {
+			family.series.remove(labels);
+		}
+	}
+
+	private synchronized Object getOrCreate(String name, String help, String type, String labels, Object newMetric) {
+		Family family = getFamily(name, help, type);
+		Object metric = family.series.get(labels);
+		if (metric == null) {
+			metric = newMetric;
+			family.series.put(labels, metric);
+		}
+		return metric;
+	}
+
+	private Family getFamily(String name, String help, String type) {
+		Family family = families.get(name);
+		if (family == null) {
+			family = new Family(help, type);
+			families.put(name, family);
+		}
+		return family;
+	}
+
+	/**
+	 * @return all the metrics in the Prometheus text exposition format (version 0.0.4).
+	 */
+	public String expose() {
+		//Copy under the lock, sample outside of it - gauges may take other locks.
+		LinkedHashMap<String, Family> snapshot = new LinkedHashMap<>();
+		synchronized (this) {
+			for (Map.Entry<String, Family> entry : families.entrySet()) {
+				Family copy = new Family(entry.getValue().help, entry.getValue().type);
+				copy.series.putAll(entry.getValue().series);
+				snapshot.put(entry.getKey(), copy);
+			}
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Family> entry : snapshot.entrySet()) {
+			String name = entry.getKey();
+			Family family = entry.getValue();
+
+			sb.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+			sb.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+
+			for (Map.Entry<String, Object> series : family.series.entrySet()) {
+				String labels = series.getKey();
+				Object metric = series.getValue();
+
+				if (metric instanceof Counter) {
+					sample(sb, name, labels, ((Counter) metric).get());
+				} else if (metric instanceof Gauge) {
+					sample(sb, name, labels, ((Gauge) metric).value());
+				} else if (metric instanceof LatencyHistogram) {
+					exposeHistogram(sb, name, labels, (LatencyHistogram) metric);
+				}
+			}
+		}
+
+		return sb.toString();
+	}
+
+	private void exposeHistogram(StringBuilder sb, String name, String labels, LatencyHistogram h) {
+		String sep = labels.isEmpty() ? "" : ",";
+		long count = h.getCount();
+
+		for (double bound : HISTOGRAM_BOUNDS) {
+			long bucketCount = h.getCountAtOrBelow((long) (bound * 1000000));
+			sb.append(name).append("_bucket{").append(labels).append(sep).append("le=\"").append(bound).append("\"} ")
+				.append(bucketCount).append('\n');
+		}
+		sb.append(name).append("_bucket{").append(labels).append(sep).append("le=\"+Inf\"} ").append(count).append('\n');
+		sb.append(name).append("_sum");
+		if (!labels.isEmpty()) {
+			sb.append('{').append(labels).append('}');
+		}
+		sb.append(' ').append(h.getSum() / 1000000.0).append('\n');
+		sample(sb, name + "_count", labels, count);
+	}
+
+	private void sample(StringBuilder sb, String name, String labels, long value) {
+		sb.append(name);
+		if (!labels.isEmpty()) {
+			sb.append('{').append(labels).append('}');
+		}
+		sb.append(' ').append(value).append('\n');
+	}
+}
@@ -0,0 +1,705 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * A client connection of the NIO server, owned by a single EventLoop.
+ * The loop parses the request bytes as they arrive, and hands every whole request (headers + content-length body)
+ * to a worker. Pipelined requests are parsed back to back and handled at the same time, up to
+ * <code>WebServer.maxPipelinedRequests</code> of them. Each has an Exchange in the pipeline, in request order,
+ * so the responses are written in order however the workers finish. The responses that are ready are written
+ * together, with one gathering write. A request that isn't safe (e.g. a POST) is handled alone - after the ones
+ * before it are answered, and before any after it is parsed.
+ * When the workers' queue is full, a request is answered with a 503 by the loop itself, and the connection is closed.
+ * A keep-alive connection that waits for its next request may be reclaimed by AdmissionControl.
+ * A client that starts with the HTTP/2 preface, or upgrades a request to h2c, is served by an Http2Connection from then on.
+ * All the methods, except <code>send</code>, <code>openResponseStream</code>, <code>startStream</code> & <code>abort</code>,
+ * must be called by the loop thread.
+ */
+public class NioConnection implements AdmissionControl.IdleConnection {
+
+	private static final int STATE_OPEN = 0;
+	private static final int STATE_STREAMING = 1;
+	private static final int STATE_CLOSED = 2;
+	private static final int STATE_HTTP2 = 3;
+
+	//A worker streaming a response waits while more than this is queued for the client.
+	private static final int MAX_PENDING_BYTES = 64 * 1024;
+
+	//When nothing changes, a comment is sent every HEARTBEAT_TICKS ticks - to find out if the client left.
+	private static final int HEARTBEAT_TICKS = 40;
+	private static final byte[] HEARTBEAT = ":\n\n".getBytes();
+
+	private final EventLoop loop;
+	private final SocketChannel channel;
+
+	private int state = STATE_OPEN;
+	private long lastActivityMillis;
+
+	//Holds the request bytes, including those of the next pipelined requests.
+	private final HTTPRequestParser parser = new HTTPRequestParser();
+
+	//The requests being handled, in order. The first one's response is the one being written.
+	private final ArrayDeque<Exchange> pipeline = new ArrayDeque<>();
+	//An unsafe request - nothing is parsed after it until it's answered. It waits out of the pipeline until the pipeline is empty.
+	private Exchange barrier;
+	//After a request that ends the connection, or turns it into the progress stream, nothing more is parsed.
+	private boolean stopParsing;
+	//The socket buffer is full, waiting for OP_WRITE.
+	private boolean writeBlocked;
+
+	//Reused by the gathering write
+	private ByteBuffer[] gather = new ByteBuffer[16];
+
+	//Until the first bytes show whether the client speaks HTTP/2 with prior knowledge.
+	private boolean prefaceChecked = !Http2Connection.enabled;
+	private Http2Connection http2;
+
+	//For the access log & the rate limiter
+	private final String client;
+
+	//The progress stream
+	private String lastEvent;
+	private int idleTicks;
+
+	/**
+	 * A request of the connection and its response, as the worker produces it.
+	 */
+	public class Exchange {
+		private final boolean keepAlive;
+		private final long startNanos;
+		private WebServerHttpRequest request;
+		private NioRequestTask task;
+
+		//The response: the head (and in-memory body), then the file body if any.
+		private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+		private FileRegion fileBody;
+		//The worker started the response
+		private boolean started;
+		//False while a streamed response is still being produced by the worker.
+		private boolean complete;
+		private boolean progressStream;
+		private ResponseStream stream;
+		private HTTP_CODE code;
+		private long bytesWritten;
+
+		Exchange(boolean keepAlive) {
+			this.keepAlive = keepAlive;
+			startNanos = System.nanoTime();
+		}
+
+		/**
+		 * @return <code>false</code> if the connection is closed once the response is written.
+		 */
+		public boolean isKeepAlive() {
+			return keepAlive;
+		}
+	}
+
+	public NioConnection(EventLoop loop, SocketChannel channel) throws IOException {
+		this.loop = loop;
+		this.channel = channel;
+		client = ServerSockets.clientAddress(channel.socket());
+		channel.configureBlocking(false);
+		lastActivityMillis = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return the client's address, <code>null</code> if not known.
+	 */
+	String getClient() {
+		return client;
+	}
+
+	public boolean isStreaming() {
+		return state == STATE_STREAMING || (state == STATE_HTTP2 && http2.isStreaming());
+	}
+
+	/**
+	 * @return <code>true</code> if the connection is waiting on the client, and was last active before the given time.
+	 */
+	public boolean isIdleSince(long millis) {
+		if (state == STATE_HTTP2) {
+			return http2.isIdleSince(millis);
+		}
+		return state == STATE_OPEN && (pipeline.isEmpty() || writeBlocked) && lastActivityMillis < millis;
+	}
+
+	void onReadable() {
+		if (state == STATE_HTTP2) {
+			http2.onReadable();
+			return;
+		}
+
+		ByteBuffer readBuffer = parser.getReadBuffer();
+		int read;
+		try {
+			read = channel.read(readBuffer);
+		} catch (IOException e) {
+			Log.d("NioConnection.onReadable() : %s", e.getMessage());
+			close();
+			return;
+		}
+
+		if (read == -1) {
+			close();
+			return;
+		}
+
+		lastActivityMillis = System.currentTimeMillis();
+		AdmissionControl.busy(this);
+
+		if (state == STATE_STREAMING) {
+			//Nothing is expected from a streaming client, only its disconnect.
+			readBuffer.clear();
+		} else if (state == STATE_OPEN) {
+			parseRequests();
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if another request may be parsed (and read) now.
+	 */
+	private boolean canParse() {
+		return state == STATE_OPEN && !stopParsing && barrier == null && pipeline.size() < WebServer.maxPipelinedRequests;
+	}
+
+	/**
+	 * Takes the requests that are all there out of the read buffer, and hands them to workers.
+	 */
+	private void parseRequests() {
+		while (canParse()) {
+			if (!prefaceChecked) {
+				int match = parser.matchPrefix(Http2Connection.PREFACE);
+				if (match == 0) {
+					//Not enough bytes to tell yet
+					break;
+				}
+				prefaceChecked = true;
+				if (match == 1) {
+					startHttp2(new Http2Connection(this, loop, channel, parser.takeBuffered()));
+					return;
+				}
+			}
+
+			WebServerHttpRequest request;
+			HTTP_CODE parseError = null;
+			try {
+				request = parser.parse();
+				if (request == null) {
+					break;
+				}
+				Log.d(request.getRawRequestData());
+				ServerMetrics.bytesReceived.add(request.getRawRequestData().length());
+				prefaceChecked = true;
+				if (pipeline.isEmpty() && barrier == null && Http2Connection.isUpgrade(request)) {
+					try {
+						startHttp2(Http2Connection.upgrade(this, loop, channel, request, parser.takeBuffered()));
+						return;
+					} catch (Http2Exception e) {
+						//Answered over HTTP/1.1, as if it didn't ask
+						Log.d("NioConnection : not upgrading to h2c: %s", e.getMessage());
+					}
+				}
+			} catch (HTTPReqErr e) {
+				//Answered with what was parsed of it, and the connection is closed after.
+				request = parser.getRequest();
+				parseError = e.getErrCode();
+			}
+
+			//The progress stream ends with the connection.
+			Exchange exchange = new Exchange(parseError == null && HTTPRequestParseUtil.isKeepAlive(request)
+					&& !HTTPRequestParseUtil.isProgressRequest(request));
+			exchange.request = request;
+			exchange.task = new NioRequestTask(this, exchange, request, parseError);
+			if (!exchange.keepAlive) {
+				stopParsing = true;
+			}
+
+			if (!AdmissionControl.admitRequest(loop.getServer().getWorkers())) {
+				reject(request);
+				onWritable();
+				return;
+			}
+
+			if (!isSafe(request)) {
+				barrier = exchange;
+				if (!pipeline.isEmpty()) {
+					//Submitted once the requests before it are answered
+					break;
+				}
+			}
+			submit(exchange);
+		}
+
+		updateInterest();
+	}
+
+	/**
+	 * Hands the connection over to HTTP/2, for good.
+	 */
+	private void startHttp2(Http2Connection connection) {
+		Log.d("NioConnection : switching to HTTP/2");
+		AdmissionControl.busy(this);
+		http2 = connection;
+		state = STATE_HTTP2;
+		http2.start();
+	}
+
+	/**
+	 * Answers with a 503 instead of handing the request to the workers, and closes the connection after.
+	 */
+	private void reject(WebServerHttpRequest request) {
+		Exchange exchange = new Exchange(false);
+		exchange.request = request;
+		exchange.code = HTTP_CODE.ERR_503_SERVICE_UNAVAILABLE;
+		exchange.writeQueue.add(ByteBuffer.wrap(AdmissionControl.serviceUnavailable()));
+		exchange.started = true;
+		exchange.complete = true;
+		pipeline.add(exchange);
+		stopParsing = true;
+	}
+
+	private void submit(Exchange exchange) {
+		pipeline.add(exchange);
+		loop.getServer().getWorkers().submit(exchange.task);
+		exchange.task = null;
+	}
+
+	/**
+	 * @return <code>true</code> if the request doesn't change anything on the server, so it may be handled along with others.
+	 */
+	private static boolean isSafe(WebServerHttpRequest request) {
+		HTTP_METHOD method = request.getHttpMethod();
+		return method == null || method == HTTP_METHOD.GET || method == HTTP_METHOD.HEAD
+				|| method == HTTP_METHOD.OPTIONS || method == HTTP_METHOD.TRACE;
+	}
+
+	/**
+	 * Sends a response. Called by the worker thread - the write itself is done by the loop.
+	 * @param exchange - the request it answers.
+	 * @param response - the response bytes.
+	 * @param responseFileBody - a file to send after the response bytes, or <code>null</code>.
+	 * @param code - the response code, for the metrics.
+	 */
+	public void send(final Exchange exchange, final byte[] response, final FileRegion responseFileBody, final HTTP_CODE code) {
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (state == STATE_CLOSED) {
+					if (responseFileBody != null) {
+						responseFileBody.close();
+					}
+					return;
+				}
+				exchange.code = code;
+				exchange.fileBody = responseFileBody;
+				exchange.writeQueue.add(ByteBuffer.wrap(response));
+				exchange.started = true;
+				exchange.complete = true;
+				onWritable();
+			}
+		});
+	}
+
+	/**
+	 * Starts a response whose body is produced by the worker while it's being sent. Called by the worker thread.
+	 * @param exchange - the request it answers.
+	 * @param head - the response head.
+	 * @param code - the response code, for the metrics.
+	 * @return the stream to write the rest of the response to. The response ends when it's closed.
+	 */
+	public OutputStream openResponseStream(final Exchange exchange, byte[] head, final HTTP_CODE code) throws IOException {
+		final ResponseStream stream = new ResponseStream(exchange);
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (state == STATE_CLOSED) {
+					stream.connectionClosed();
+					return;
+				}
+				exchange.code = code;
+				exchange.stream = stream;
+				exchange.started = true;
+			}
+		});
+
+		stream.write(head);
+		return stream;
+	}
+
+	/**
+	 * Closes the connection in the middle of a streamed response that failed. Called by the worker thread.
+	 */
+	public void abort() {
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				close();
+			}
+		});
+	}
+
+	/**
+	 * Switches the connection to the crawl progress stream, once the responses before it are written.
+	 * Called by the worker thread. The loop pushes the events from then on, until the crawl ends or the client leaves.
+	 */
+	public void startStream(final Exchange exchange, final HTTP_VERSION version) {
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (state == STATE_CLOSED) {
+					return;
+				}
+				exchange.progressStream = true;
+				exchange.started = true;
+				exchange.code = HTTP_CODE.C200_OK;
+				exchange.writeQueue.add(ByteBuffer.wrap(CrawlProgressStream.buildHead(version)));
+				lastEvent = null;
+				idleTicks = 0;
+				onWritable();
+			}
+		});
+	}
+
+	/**
+	 * Pushes a progress event, if it changed since the last one. Skipped while the client is still reading the last one.
+	 * @param ended - the crawl is not running: the event is the last one, and the response is done once it's written.
+	 */
+	void pushProgress(String event, boolean ended) {
+		if (state == STATE_HTTP2) {
+			http2.pushProgress(event, ended);
+			return;
+		}
+		Exchange exchange = pipeline.peek();
+		if (exchange == null || !exchange.writeQueue.isEmpty()) {
+			return;
+		}
+
+		if (ended) {
+			exchange.writeQueue.add(ByteBuffer.wrap(CrawlProgressStream.buildLastEventBytes(event)));
+			exchange.progressStream = false;
+			exchange.complete = true;
+			state = STATE_OPEN;
+			onWritable();
+		} else if (!event.equals(lastEvent)) {
+			lastEvent = event;
+			idleTicks = 0;
+			exchange.writeQueue.add(ByteBuffer.wrap(CrawlProgressStream.buildEventBytes(event)));
+			onWritable();
+		} else if (++idleTicks >= HEARTBEAT_TICKS) {
+			idleTicks = 0;
+			exchange.writeQueue.add(ByteBuffer.wrap(HEARTBEAT));
+			onWritable();
+		}
+	}
+
+	/**
+	 * Writes what's ready of the responses, in order, and finishes the responses that were written whole.
+	 */
+	void onWritable() {
+		if (state == STATE_CLOSED) {
+			return;
+		}
+		if (state == STATE_HTTP2) {
+			http2.onWritable();
+			return;
+		}
+
+		try {
+			while (!pipeline.isEmpty()) {
+				if (!writeReady()) {
+					//The socket buffer is full - continue when it's writable.
+					block();
+					return;
+				}
+
+				Exchange head = pipeline.peek();
+				if (!head.started || !head.writeQueue.isEmpty()) {
+					//Waiting for the worker
+					break;
+				}
+				if (head.progressStream) {
+					state = STATE_STREAMING;
+					break;
+				}
+				if (head.fileBody != null) {
+					if (head.fileBody.transferTo(channel) > 0) {
+						lastActivityMillis = System.currentTimeMillis();
+					}
+					if (!head.fileBody.isDone()) {
+						block();
+						return;
+					}
+				}
+				if (!head.complete) {
+					//Wait for the worker to produce more of the response.
+					break;
+				}
+
+				writeDone(head);
+				if (state == STATE_CLOSED) {
+					return;
+				}
+			}
+		} catch (IOException e) {
+			Log.d("NioConnection.onWritable() : %s", e.getMessage());
+			close();
+			return;
+		}
+
+		writeBlocked = false;
+		//Room in the pipeline - a pipelined request may be waiting in the buffer already.
+		parseRequests();
+	}
+
+	/**
+	 * Writes the queued bytes of the responses, from the first, with a single gathering write.
+	 * It stops at a response with a file body, or one that the worker is still producing - what follows must wait for it.
+	 * @return <code>false</code> if not all of them were written.
+	 */
+	private boolean writeReady() throws IOException {
+		int count = 0;
+		for (Exchange exchange : pipeline) {
+			if (!exchange.started) {
+				break;
+			}
+			for (ByteBuffer buffer : exchange.writeQueue) {
+				if (count == gather.length) {
+					ByteBuffer[] bigger = new ByteBuffer[count * 2];
+					System.arraycopy(gather, 0, bigger, 0, count);
+					gather = bigger;
+				}
+				gather[count++] = buffer;
+			}
+			if (exchange.fileBody != null || !exchange.complete) {
+				break;
+			}
+		}
+		if (count == 0) {
+			return true;
+		}
+
+		long written = channel.write(gather, 0, count);
+		for (int i = 0; i < count; i++) {
+			gather[i] = null;
+		}
+		if (written > 0) {
+			lastActivityMillis = System.currentTimeMillis();
+		}
+
+		//Drop what was written
+		for (Exchange exchange : pipeline) {
+			ByteBuffer buffer;
+			while ((buffer = exchange.writeQueue.peek()) != null && !buffer.hasRemaining()) {
+				exchange.writeQueue.poll();
+				exchange.bytesWritten += buffer.limit();
+				if (exchange.stream != null) {
+					exchange.stream.written(buffer.limit());
+				}
+			}
+			if (buffer != null) {
+				return false;
+			}
+			if (exchange.fileBody != null || !exchange.complete) {
+				return true;
+			}
+		}
+		return true;
+	}
+
+	private void block() {
+		writeBlocked = true;
+		updateInterest();
+	}
+
+	private void writeDone(Exchange exchange) {
+		pipeline.poll();
+		long written = exchange.bytesWritten;
+		if (exchange.fileBody != null) {
+			written += exchange.fileBody.getCount();
+			exchange.fileBody.close();
+			exchange.fileBody = null;
+		}
+
+		ServerMetrics.responseSent(exchange.code, written);
+		long nanos = System.nanoTime() - exchange.startNanos;
+		ServerMetrics.requestTime.recordNanos(nanos);
+		AccessLog.log(client, exchange.request, null, exchange.code, written, nanos);
+		exchange.request = null;
+
+		if (!exchange.keepAlive) {
+			close();
+			return;
+		}
+
+		if (exchange == barrier) {
+			barrier = null;
+		} else if (barrier != null && pipeline.isEmpty()) {
+			//The requests before the unsafe one are answered
+			submit(barrier);
+		}
+		lastActivityMillis = System.currentTimeMillis();
+
+		if (pipeline.isEmpty() && !parser.hasBufferedBytes()) {
+			//Waiting for the next request
+			AdmissionControl.idle(this);
+		}
+	}
+
+	/**
+	 * Closes the connection if it's still waiting for a request. May be called by any thread.
+	 */
+	@Override
+	public void reclaim() {
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				boolean idle = state == STATE_HTTP2 ? http2.hasNoStreams() : pipeline.isEmpty() && !parser.hasBufferedBytes();
+				if (idle) {
+					close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * The body of a streamed response: what the worker writes is queued to the loop.
+	 * The worker waits while more than MAX_PENDING_BYTES are queued, so a slow client bounds its memory.
+	 */
+	private class ResponseStream extends OutputStream {
+
+		private final Exchange exchange;
+		private long pendingBytes = 0;
+		private boolean closed = false;
+
+		ResponseStream(Exchange exchange) {
+			this.exchange = exchange;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return;
+			}
+
+			synchronized (this) {
+				while (pendingBytes > MAX_PENDING_BYTES && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						throw new IOException("Interrupted while waiting for the client");
+					}
+				}
+				if (closed) {
+					throw new IOException("Connection closed");
+				}
+				pendingBytes += len;
+			}
+
+			final byte[] copy = new byte[len];
+			System.arraycopy(b, off, copy, 0, len);
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (state == STATE_CLOSED) {
+						connectionClosed();
+						return;
+					}
+					exchange.writeQueue.add(ByteBuffer.wrap(copy));
+					onWritable();
+				}
+			});
+		}
+
+		/**
+		 * Ends the response.
+		 */
+		@Override
+		public void close() {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (state == STATE_CLOSED) {
+						return;
+					}
+					exchange.stream = null;
+					exchange.complete = true;
+					onWritable();
+				}
+			});
+		}
+
+		/**
+		 * Called by the loop when queued bytes were written.
+		 */
+		synchronized void written(int n) {
+			pendingBytes -= n;
+			notifyAll();
+		}
+
+		/**
+		 * Called by the loop when the connection is closed, to release the waiting worker.
+		 */
+		synchronized void connectionClosed() {
+			closed = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Reads while more requests may be parsed (or to find out when a streaming client leaves),
+	 * and waits for OP_WRITE while the socket buffer is full. An HTTP/2 connection always reads - flow control bounds it.
+	 */
+	void updateInterest() {
+		int ops = 0;
+		if (state == STATE_HTTP2 ? !http2.isReadBlocked() : state == STATE_STREAMING || canParse()) {
+			ops |= SelectionKey.OP_READ;
+		}
+		if (state == STATE_HTTP2 ? http2.isWriteBlocked() : writeBlocked) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+
+		SelectionKey key = channel.keyFor(loop.getSelector());
+		if (key != null && key.isValid()) {
+			key.interestOps(ops);
+		}
+	}
+
+	public void close() {
+		if (state == STATE_CLOSED) {
+			return;
+		}
+		if (http2 != null) {
+			http2.closed();
+		}
+		state = STATE_CLOSED;
+		AdmissionControl.busy(this);
+		for (Exchange exchange : pipeline) {
+			if (exchange.fileBody != null) {
+				exchange.fileBody.close();
+				exchange.fileBody = null;
+			}
+			exchange.writeQueue.clear();
+			if (exchange.stream != null) {
+				exchange.stream.connectionClosed();
+				exchange.stream = null;
+			}
+		}
+		pipeline.clear();
+		barrier = null;
+
+		EventLoop.closeQuietly(channel);
+		loop.remove(this);
+		ServerMetrics.connectionClosed();
+		Log.d("NioConnection.close() : connection closed.");
+	}
+}
@@ -0,0 +1,76 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Handles a request of the NIO server on a worker thread: validates it and builds the response,
+ * then hands the response back to the connection's event loop, which writes it in its turn.
+ */
+public class NioRequestTask extends Task {
+
+	private NioConnection mConnection;
+	//The request's place in the connection's pipeline
+	private NioConnection.Exchange mExchange;
+	private WebServerHttpRequest mHttpReq;
+
+	//Set if the request could not be parsed. The connection is closed after the error response.
+	private HTTP_CODE mParseError;
+
+	public NioRequestTask(NioConnection connection, NioConnection.Exchange exchange, WebServerHttpRequest request, HTTP_CODE parseError) {
+		mConnection = connection;
+		mExchange = exchange;
+		mHttpReq = request;
+		mParseError = parseError;
+	}
+
+	@Override
+	public void run() {
+		HTTP_CODE httpCode = mParseError;
+
+		int retryAfter = RateLimiter.acquire(mConnection.getClient(), mHttpReq);
+		if (retryAfter > 0) {
+			httpCode = HTTP_CODE.ERR_429_TOO_MANY_REQUESTS;
+		} else if (httpCode == null) {
+			try {
+				HTTPRequestParseUtil.validateRequest(mHttpReq);
+				httpCode = HTTP_CODE.C200_OK;
+			} catch (HTTPReqErr e) {
+				httpCode = e.getErrCode();
+				Log.d(e.getMessage());
+			}
+		}
+
+		if (httpCode == HTTP_CODE.C200_OK && HTTPRequestParseUtil.isProgressRequest(mHttpReq)) {
+			//The loop pushes the events from now on.
+			mConnection.startStream(mExchange, mHttpReq.getHttpVersion());
+			return;
+		}
+
+		WebServerHttpResponse response = new WebServerHttpResponse(httpCode);
+		response.setRetryAfter(retryAfter);
+		byte[] responseBytes = response.buildResponse(mHttpReq);
+		
+		if (!response.isStreamed()) {
+			mConnection.send(mExchange, responseBytes, response.getFileBody(), response.getCode());
+			return;
+		}
+		
+		//The chunks are sent as they are produced.
+		try {
+			OutputStream out = mConnection.openResponseStream(mExchange, responseBytes, response.getCode());
+			response.writeBody(out);
+			out.close();
+		} catch (IOException e) {
+			//The body was cut in the middle, the client must not take it as whole.
+			Log.d("NioRequestTask.run() : %s", e.getMessage());
+			mConnection.abort();
+		}
+	}
+
+	/**
+	 * The connection belongs to its event loop, which closes it when the server stops.
+	 */
+	@Override
+	protected void shutdown() throws IOException {
+		Log.d("NioRequestTask is shutting down.");
+	}
+}
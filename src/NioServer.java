@@ -0,0 +1,146 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The non-blocking front end of the web server.
+ * A few EventLoop threads multiplex all the client connections, so an idle keep-alive connection costs no thread.
+ * Only the request handling (validating, reading files, building pages) is dispatched to the worker pool.
+ * The first loops also accept the new connections - as many as there are acceptors, if each may have a listener
+ * of its own (SO_REUSEPORT), or else only the first - and deal them to the loops round-robin.
+ * A connection over the AdmissionControl limit is answered with a 503 and closed right away.
+ */
+public class NioServer {
+
+	private final int port;
+	private final int acceptors;
+	private final ThreadPool workers;
+	private final EventLoop[] loops;
+
+	private ServerSocketChannel[] listeners;
+	private Metrics.Counter[] acceptCounters;
+
+	//Shared by the accepting loops
+	private final AtomicInteger nextLoop = new AtomicInteger();
+
+	/**
+	 * @param port - the port to listen on.
+	 * @param numOfLoops - number of event loop threads.
+	 * @param acceptors - number of the loops that accept connections.
+	 * @param workers - the pool that handles the requests.
+	 * @throws IOException if a selector cannot be opened.
+	 */
+	public NioServer(int port, int numOfLoops, int acceptors, ThreadPool workers) throws IOException {
+		this.port = port;
+		this.workers = workers;
+		loops = new EventLoop[Math.max(1, numOfLoops)];
+		this.acceptors = Math.max(1, Math.min(acceptors, loops.length));
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop(this, "event-loop-" + i);
+		}
+	}
+
+	public ThreadPool getWorkers() {
+		return workers;
+	}
+
+	/**
+	 * Binds the port and starts the loops.
+	 * @throws IOException if the port cannot be bound.
+	 */
+	public void start() throws IOException {
+		//A single listener is accepted by a single loop - more would only race for the same connections.
+		listeners = ServerSockets.open(port, acceptors);
+		acceptCounters = new Metrics.Counter[listeners.length];
+		for (int i = 0; i < listeners.length; i++) {
+			listeners[i].configureBlocking(false);
+			acceptCounters[i] = ServerMetrics.acceptorCounter(i);
+		}
+
+		for (EventLoop loop : loops) {
+			loop.start();
+		}
+		for (int i = 0; i < listeners.length; i++) {
+			loops[i].registerAcceptor(listeners[i]);
+		}
+
+		Log.d("NIO server is listening on port %d with %d event loops, %d accepting", port, loops.length, listeners.length);
+	}
+
+	/**
+	 * Accepts all the pending connections. Called by the accepting loop of the channel.
+	 */
+	void accept(ServerSocketChannel channel) {
+		Metrics.Counter accepted = null;
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i] == channel) {
+				accepted = acceptCounters[i];
+			}
+		}
+
+		while (true) {
+			SocketChannel client;
+			try {
+				client = channel.accept();
+			} catch (IOException e) {
+				Log.d("NioServer.accept() : %s", e.getMessage());
+				return;
+			}
+
+			if (client == null) {
+				return;
+			}
+			ServerMetrics.accepted(accepted);
+
+			if (!AdmissionControl.admitConnection()) {
+				reject(client);
+				continue;
+			}
+
+			Log.d("New connection accepted!");
+			ServerSockets.configure(client);
+			loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length].register(client);
+		}
+	}
+
+	/**
+	 * Fails a connection fast with a 503. Called by the accepting loop.
+	 */
+	private void reject(SocketChannel client) {
+		Log.d("NioServer.accept() : overloaded, rejecting a connection");
+		byte[] response = AdmissionControl.serviceUnavailable();
+		try {
+			client.configureBlocking(false);
+			//Small enough for the socket buffer
+			client.write(ByteBuffer.wrap(response));
+		} catch (IOException e) {
+			Log.d("NioServer.reject() : %s", e.getMessage());
+		} finally {
+			EventLoop.closeQuietly(client);
+		}
+		ServerMetrics.responseSent(HTTP_CODE.ERR_503_SERVICE_UNAVAILABLE, response.length);
+		AccessLog.log(ServerSockets.clientAddress(client.socket()), null, null, HTTP_CODE.ERR_503_SERVICE_UNAVAILABLE, response.length, 0);
+	}
+
+	/**
+	 * Waits until all the loops have stopped.
+	 */
+	public void awaitTermination() throws InterruptedException {
+		for (EventLoop loop : loops) {
+			loop.join();
+		}
+	}
+
+	/**
+	 * Stops accepting, and stops the loops - which close their connections.
+	 */
+	public void shutdown() {
+		ServerSockets.close(listeners);
+
+		for (EventLoop loop : loops) {
+			loop.shutDown();
+		}
+	}
+}
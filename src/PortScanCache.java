@@ -0,0 +1,242 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * The open ports of the hosts scanned lately, so a crawl of a host that was scanned less than
+ * <code>ttlSeconds</code> ago skips the scan. Like CrawlHistory, it's an append-only file in the root,
+ * a line per scan, loaded into memory once at startup. The newest scan of a host wins; the file is
+ * rewritten with only those when it's mostly stale lines - the older scans, and the scans past the TTL,
+ * which are dropped from memory too.
+ */
+public class PortScanCache {
+
+	public static final String CACHE_FILE = "port_scan_cache.idx";
+
+	/** How long a scan is reused. 0 disables the cache. */
+	public static long ttlSeconds = 24 * 60 * 60;
+
+	private static final String SEPARATOR = "\t";
+	private static final String PORT_SEPARATOR = ",";
+	private static final int NUM_OF_FIELDS = 5;
+
+	//Compacted when there are more lines than this many times the hosts
+	private static final int COMPACT_RATIO = 4;
+
+	/**
+	 * A scan of a host: when it was made, the port range and the ports found open in it.
+	 */
+	private static class Entry {
+		private final String host;
+		private final long timeMillis;
+		private final int firstPort;
+		private final int lastPort;
+		private final ArrayList<Integer> openedPorts;
+
+		Entry(String host, long timeMillis, int firstPort, int lastPort, ArrayList<Integer> openedPorts) {
+			this.host = host;
+			this.timeMillis = timeMillis;
+			this.firstPort = firstPort;
+			this.lastPort = lastPort;
+			this.openedPorts = openedPorts;
+		}
+
+		private boolean isExpired(long now) {
+			return now - timeMillis > ttlSeconds * 1000;
+		}
+
+		private String toLine() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(host).append(SEPARATOR).append(timeMillis).append(SEPARATOR).append(firstPort)
+				.append(SEPARATOR).append(lastPort).append(SEPARATOR);
+			for (int i = 0; i < openedPorts.size(); i++) {
+				if (i > 0) {
+					sb.append(PORT_SEPARATOR);
+				}
+				sb.append(openedPorts.get(i));
+			}
+			return sb.toString();
+		}
+
+		/**
+		 * @return the entry of a cache line, or <code>null</code> if the line is malformed (e.g. cut by a crash).
+		 */
+		private static Entry fromLine(String line) {
+			//-1 keeps the empty last field of a scan with no open ports
+			String[] fields = line.split(SEPARATOR, -1);
+			if (fields.length != NUM_OF_FIELDS) {
+				return null;
+			}
+			try {
+				ArrayList<Integer> ports = new ArrayList<>();
+				if (!fields[4].isEmpty()) {
+					for (String port : fields[4].split(PORT_SEPARATOR)) {
+						ports.add(Integer.parseInt(port));
+					}
+				}
+				return new Entry(fields[0], Long.parseLong(fields[1]), Integer.parseInt(fields[2]),
+						Integer.parseInt(fields[3]), ports);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+	}
+
+	private static PortScanCache sInstance;
+
+	private final File cacheFile;
+	private final HashMap<String, Entry> byHost = new HashMap<>();
+	private int numOfLines = 0;
+
+	private PortScanCache() {
+		cacheFile = new File(WebServer.root, CACHE_FILE);
+		if (cacheFile.exists()) {
+			load();
+		}
+		Log.d("PortScanCache : scans of %d hosts", byHost.size());
+	}
+
+	/**
+	 * @return the cache. The first call loads the file, after the root is configured.
+	 */
+	public static synchronized PortScanCache getInstance() {
+		if (sInstance == null) {
+			sInstance = new PortScanCache();
+		}
+
+		return sInstance;
+	}
+
+	/**
+	 * @param host - the scanned host.
+	 * @param firstPort - port range start, inclusive
+	 * @param lastPort - port range end, inclusive
+	 * @return the open ports of the range, from a scan younger than the TTL that covered it,
+	 * or <code>null</code> if there's none.
+	 */
+	public synchronized ArrayList<Integer> get(String host, int firstPort, int lastPort) {
+		Entry entry = byHost.get(host);
+		if (ttlSeconds <= 0 || entry == null || entry.firstPort > firstPort || entry.lastPort < lastPort
+				|| entry.isExpired(System.currentTimeMillis())) {
+			return null;
+		}
+
+		ArrayList<Integer> result = new ArrayList<>();
+		for (int port : entry.openedPorts) {
+			if (port >= firstPort && port <= lastPort) {
+				result.add(port);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Records a scan that was just made.
+	 */
+	public synchronized void put(String host, int firstPort, int lastPort, ArrayList<Integer> openedPorts) {
+		if (ttlSeconds <= 0) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		Entry entry = new Entry(host, now, firstPort, lastPort, new ArrayList<>(openedPorts));
+		byHost.put(host, entry);
+		try {
+			if (numOfLines + 1 > COMPACT_RATIO * countFresh(now)) {
+				compact();
+			} else {
+				append(entry);
+			}
+		} catch (IOException e) {
+			Log.e("PortScanCache : cannot write %s: %s", cacheFile.getPath(), e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the hosts whose scan is within the TTL - the lines of the file that aren't stale.
+	 */
+	private int countFresh(long now) {
+		int fresh = 0;
+		for (Entry entry : byHost.values()) {
+			if (!entry.isExpired(now)) {
+				fresh++;
+			}
+		}
+		return fresh;
+	}
+
+	private void load() {
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(cacheFile));
+			try {
+				long now = System.currentTimeMillis();
+				String line;
+				while ((line = reader.readLine()) != null) {
+					numOfLines++;
+					Entry entry = Entry.fromLine(line);
+					if (entry != null && entry.isExpired(now)) {
+						//A stale line, dropped by the next compaction
+						byHost.remove(entry.host);
+					} else if (entry != null) {
+						byHost.put(entry.host, entry);
+					} else if (!line.isEmpty()) {
+						Log.w("PortScanCache : skipping a malformed line of %s", cacheFile.getPath());
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			Log.e("PortScanCache : cannot read %s: %s", cacheFile.getPath(), e.getMessage());
+		}
+	}
+
+	private void append(Entry entry) throws IOException {
+		Writer writer = new FileWriter(cacheFile, true);
+		try {
+			writer.write(entry.toLine());
+			writer.write('\n');
+		} finally {
+			writer.close();
+		}
+		numOfLines++;
+	}
+
+	/**
+	 * Drops the scans past the TTL, then rewrites the file with the newest scan of every other host, and swaps it in.
+	 */
+	private void compact() throws IOException {
+		long now = System.currentTimeMillis();
+		Iterator<Entry> it = byHost.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().isExpired(now)) {
+				it.remove();
+			}
+		}
+
+		File tmp = new File(cacheFile.getPath() + ".tmp");
+		Writer writer = new FileWriter(tmp);
+		try {
+			for (Entry entry : byHost.values()) {
+				writer.write(entry.toLine());
+				writer.write('\n');
+			}
+		} finally {
+			writer.close();
+		}
+		if (!tmp.renameTo(cacheFile)) {
+			//Windows doesn't replace on rename
+			cacheFile.delete();
+			if (!tmp.renameTo(cacheFile)) {
+				throw new IOException("cannot replace " + cacheFile.getPath());
+			}
+		}
+		numOfLines = byHost.size();
+	}
+}
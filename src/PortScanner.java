@@ -1,199 +1,407 @@
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.net.MalformedURLException;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 
 /**
- * Port scanner. Given a port range, asynchronously scans it.
- * The number of scan-threads is defined by <code>MAX_THREADS</code>.
- * The scanner starts PortScanTask bounded to a single port, testing if it's open.
- * When the port scan is finished, a listener is notified and is given a list of opened ports.
+ * Port scanner. Given a port range, scans it with non-blocking connects on a single Selector.
+ * Up to <code>maxConcurrentConnects</code> connects are in flight at a time; each one that completes
+ * (open), is refused (closed) or times out (filtered) makes room for the next port.
+ * The timeouts are kept in a TimeoutWheel, so expiring them costs the same with thousands in flight.
+ * They adapt to the host's round-trip time (RttEstimator), as do the retries of the ports that time out.
+ * A listener is told about every port as soon as it's known.
  */
 public class PortScanner {
-	
-	boolean isShutDown = false;
-	
+
+	private volatile boolean isShutDown = false;
+
 	interface IOnSinglePortScanned {
 		void onSinglePortScanned(int port, boolean isOpen);
 	}
-	
-	interface IOnPortScanFinished {
-		void onPortScanFinished(ArrayList<Integer> openedPorts);
-	}
-	
-	private final static int MAX_THREADS = 10;
-	
-	/** Timeout for a single port scan. */
-	private final static int SINGLE_PORT_TIMEOUT = 500;
-	
-	final Object waitForCompletion = new Object();
-	
+
+	/** Connects in flight at a time. Each is a file descriptor - this leaves most of a 1024 fd limit to the server. */
+	public static int maxConcurrentConnects = 256;
+
+	/** Timeout for a single port scan before the host's round-trip time is known, and the longest one after. */
+	public static int connectTimeoutMillis = 1000;
+
+	/** The shortest timeout, however fast the host answers */
+	public static int minTimeoutMillis = 50;
+
+	/** Times a port that timed out is tried again, while the host seems to drop rather than filter */
+	public static int maxRetries = 2;
+
+	/** The ports a crawl scans, inclusive. The full range (up to 65535) is opt-in, in config.ini. */
+	public static int firstPort = 1;
+	public static int lastPort = 1024;
+
+	//The resolution of the connect timeouts
+	private static final int TICK_MILLIS = 10;
+
+	//How often the progress is logged, in ports
+	private static final int PROGRESS_LOG_INTERVAL = 1024;
+
+	private static final Metrics.Counter portsScanned =
+			Metrics.getInstance().counter("portscanner_ports_scanned_total", "Ports probed by the port scanner.");
+	private static final Metrics.Counter portsOpen =
+			Metrics.getInstance().counter("portscanner_ports_open_total", "Ports found open by the port scanner.");
+
 	private String host;
-	private ThreadPool threadPool;
-	private ArrayList<Integer> openedPorts;
-	
+	private Selector selector;
+
 	/** Listener for when a single-port scan have finished */
 	private IOnSinglePortScanned onSinglePortScannedListener;
-	
+
 	/**
-	 * Creates a new PortScanner instance, and raises a threadpool of <code>MAX_THREADS</code> workers.
-	 * @param host - he host to scan.
+	 * A connect in flight.
 	 */
-	public PortScanner(String host) {
-		this.host = host.replace("http://", "");
-		if (this.host.endsWith("/")) {
-			this.host = this.host.substring(0, this.host.length() - 1);
-		}
-		openedPorts = new ArrayList<>();
-		
-		threadPool = new ThreadPool(MAX_THREADS);
-		threadPool.start();
-		Log.d("Port scanner is ready");
+	private static class Probe {
+		final int port;
+		SocketChannel channel;
+		//0 for the first connect, then the number of the retry
+		int attempt;
+		long sentNanos;
+		long deadlineMillis;
+		//Completed before its deadline
+		boolean finished;
+
+		Probe(int port) {
+			this.port = port;
+		}
 	}
-	
+
 	/**
-	 * Starts a synchronous multi-threaded port scan. The port scanning is multithreaded, but the caller
-	 * of this method will wait until the end of execution.
-	 * @param start - port range start, inclusive
-	 * @param end - port range end, inclusive
-	 * @return a list of opened ports
-	 * @throws PortScannerException if any error arises while scanning.
+	 * The connect timeout and the retries of a host, from the round-trip times it answered in - refused or accepted.
+	 * The timeout is estimated like TCP's retransmission timeout (RFC 6298): the smoothed RTT plus four times its
+	 * variation, within [minTimeoutMillis, connectTimeoutMillis]. Until the first answer it's connectTimeoutMillis.
+	 * Timed out ports are retried up to maxRetries times - but if enough retries were sent and none was answered,
+	 * the host filters rather than drops, and the ports that time out are taken as filtered right away.
 	 */
-	public ArrayList<Integer> getOpennedPortsSync(int start, int end) throws PortScannerException {
-		
-		final ArrayList<Integer> result = new ArrayList<>();
-		
-		//A listener for the port scanning process. When the scan is finished, it notifies that
-		//the caller function can continue.
-		IOnPortScanFinished finishScanningAll = new IOnPortScanFinished() {
-			@Override
-			public void onPortScanFinished(ArrayList<Integer> openedPorts) {
-				synchronized (waitForCompletion) {
-					result.addAll(openedPorts);
-					waitForCompletion.notifyAll();
+	private static class RttEstimator {
+		//Retries that aren't answered before the host is taken for filtering
+		private static final int RETRIES_TO_JUDGE = 32;
+
+		private double srttMillis = -1;
+		private double rttvarMillis;
+		private long timeoutMillis = connectTimeoutMillis;
+		private int retriesSent;
+		private int retriesAnswered;
+
+		void sample(long rttNanos) {
+			double rttMillis = rttNanos / 1e6;
+			if (srttMillis < 0) {
+				srttMillis = rttMillis;
+				rttvarMillis = rttMillis / 2;
+			} else {
+				rttvarMillis = 0.75 * rttvarMillis + 0.25 * Math.abs(srttMillis - rttMillis);
+				srttMillis = 0.875 * srttMillis + 0.125 * rttMillis;
+			}
+			timeoutMillis = Math.max(minTimeoutMillis, Math.min(connectTimeoutMillis, (long) Math.ceil(srttMillis + 4 * rttvarMillis)));
+		}
+
+		long timeoutMillis() {
+			return timeoutMillis;
+		}
+
+		void retried() {
+			retriesSent++;
+		}
+
+		void answeredRetry() {
+			retriesAnswered++;
+		}
+
+		int retryLimit() {
+			if (retriesAnswered == 0 && retriesSent >= RETRIES_TO_JUDGE) {
+				return 0;
+			}
+			return maxRetries;
+		}
+	}
+
+	/**
+	 * A hashed timing wheel of the probes' deadlines: a slot per tick, a probe is put in the slot of its deadline.
+	 * A deadline further away than a turn of the wheel just waits for more turns.
+	 * A probe that completes isn't looked for in the wheel - it's marked finished, and dropped when its slot expires.
+	 */
+	private static class TimeoutWheel {
+		private final ArrayList<ArrayList<Probe>> slots;
+		private long tick;
+
+		TimeoutWheel(int numOfSlots, long nowMillis) {
+			slots = new ArrayList<>(numOfSlots);
+			for (int i = 0; i < numOfSlots; i++) {
+				slots.add(new ArrayList<Probe>());
+			}
+			tick = nowMillis / TICK_MILLIS;
+		}
+
+		void add(Probe probe) {
+			//Never in the slot being expired, or a tick already past.
+			long at = Math.max(tick + 1, (probe.deadlineMillis + TICK_MILLIS - 1) / TICK_MILLIS);
+			slots.get((int) (at % slots.size())).add(probe);
+		}
+
+		/**
+		 * Moves the unfinished probes whose deadline passed to <code>expired</code>, the ones of a later turn stay.
+		 */
+		void expire(long nowMillis, ArrayList<Probe> expired) {
+			long nowTick = nowMillis / TICK_MILLIS;
+			//At most a turn - beyond that every slot was visited already.
+			long last = Math.min(nowTick, tick + slots.size());
+			for (; tick <= last; tick++) {
+				ArrayList<Probe> slot = slots.get((int) (tick % slots.size()));
+				for (int i = slot.size() - 1; i >= 0; i--) {
+					Probe probe = slot.get(i);
+					if (probe.finished || probe.deadlineMillis <= nowMillis) {
+						//Swap-remove, the order of a slot doesn't matter.
+						slot.set(i, slot.get(slot.size() - 1));
+						slot.remove(slot.size() - 1);
+						if (!probe.finished) {
+							expired.add(probe);
+						}
+					}
 				}
 			}
-		};
-		
-		startScanAsync(start, end, finishScanningAll);
-		
+			tick = nowTick;
+		}
+	}
+
+	/**
+	 * Creates a new PortScanner instance.
+	 * @param host - the host to scan, or a URL on it.
+	 */
+	public PortScanner(String host) {
 		try {
-			synchronized (waitForCompletion) {
-				//Block until all port range is finished.
-				waitForCompletion.wait();
-			}
-		} catch (InterruptedException e) {
-			throw new PortScannerException("Unknown error");
+			this.host = new HttpUrl(host).getHost();
+		} catch (MalformedURLException e) {
+			this.host = host;
 		}
-		
-		return result;
+		Log.d("Port scanner is ready");
+	}
+
+	/**
+	 * @param listener - told about every port as soon as it's scanned, on the scanning thread.
+	 */
+	public void setOnSinglePortScannedListener(IOnSinglePortScanned listener) {
+		onSinglePortScannedListener = listener;
 	}
-	
+
 	/**
-	 * Scans a given port range asynchronously.
-	 * @param start
-	 * @param end
-	 * @param listener - listener when all ports were scanned
-	 * @throws PortScannerException - if the port scanner is shutdown or the given port range is illegal.
+	 * Scans a port range. The scan runs on the calling thread, which waits until the end of it.
+	 * @param start - port range start, inclusive
+	 * @param end - port range end, inclusive
+	 * @return a sorted list of opened ports
+	 * @throws PortScannerException if any error arises while scanning.
 	 */
-	private void startScanAsync(int start, int end, final IOnPortScanFinished listener) throws PortScannerException {
-		
+	public ArrayList<Integer> getOpennedPortsSync(int start, int end) throws PortScannerException {
 		if (isShutDown) {
 			throw new PortScannerException("Port scanner is shutdown. Instansiate a new one.");
 		}
-		
-		Log.d(String.format("Starting port scan asynchronously from %d to %d.", start, end));
-		
+
 		//Check if something is wrong with the given port range
 		if (end < 0 || start < 0 || end > 65535 || start > 65535 || end < start) {
 			throw new PortScannerException(String.format("Illegal port range: end=%d, start=%d.", end, start));
 		}
-		
-		final int numOfPorts = end - start;
-		Log.d(String.format("numOfPorts = %d", numOfPorts));
-		
-		//When a port was scanned, the single-port listener is notified
-		onSinglePortScannedListener = new IOnSinglePortScanned() {
-			
-			int scannedPortCount = 0;
-			
-			@Override
-			public synchronized void onSinglePortScanned(int port, boolean isOpen) {
-				if (isOpen) {
-					//port is open --> add it to the list.
-					openedPorts.add(port);
-					Log.d(String.format("Port %d is open!", port));
+
+		InetAddress address;
+		try {
+			address = InetAddress.getByName(host);
+		} catch (UnknownHostException e) {
+			throw new PortScannerException("Unknown host " + host);
+		}
+
+		try {
+			selector = Selector.open();
+		} catch (IOException e) {
+			throw new PortScannerException("Cannot open a selector: " + e.getMessage());
+		}
+
+		Log.d("Starting port scan of %s from %d to %d.", address, start, end);
+		long startMillis = System.currentTimeMillis();
+		try {
+			ArrayList<Integer> openedPorts = scan(address, start, end);
+			Collections.sort(openedPorts);
+			Log.d("Port scan of %s finished in %d ms, %d ports are open.", address,
+					System.currentTimeMillis() - startMillis, openedPorts.size());
+			return openedPorts;
+		} finally {
+			closeAll();
+		}
+	}
+
+	private ArrayList<Integer> scan(InetAddress address, int start, int end) throws PortScannerException {
+		ArrayList<Integer> openedPorts = new ArrayList<>();
+		ArrayList<Probe> done = new ArrayList<>();
+		//Timed out probes to send again, before any new port
+		ArrayDeque<Probe> retries = new ArrayDeque<>();
+		RttEstimator rtt = new RttEstimator();
+		TimeoutWheel wheel = new TimeoutWheel(Math.max(64, connectTimeoutMillis / TICK_MILLIS + 1), System.currentTimeMillis());
+		int window = Math.max(1, maxConcurrentConnects);
+		int inFlight = 0;
+		int nextPort = start;
+		int scanned = 0;
+		int total = end - start + 1;
+
+		while (scanned < total) {
+			if (isShutDown) {
+				throw new PortScannerException("Port scanner is shutdown.");
+			}
+
+			//Fill the window
+			long now = System.currentTimeMillis();
+			while (inFlight < window && (!retries.isEmpty() || nextPort <= end)) {
+				Probe probe = retries.isEmpty() ? new Probe(nextPort++) : retries.poll();
+				try {
+					probe.channel = SocketChannel.open();
+				} catch (IOException e) {
+					//Out of file descriptors - go on with the connects in flight only.
+					if (inFlight == 0) {
+						throw new PortScannerException("Cannot open a socket: " + e.getMessage());
+					}
+					retries.addFirst(probe);
+					window = inFlight;
+					Log.d("PortScanner : cannot open a socket (%s), %d connects at a time from now on", e.getMessage(), window);
+					break;
 				}
-				
-				if (scannedPortCount >= numOfPorts) {
-					//Finished the scan, wer'e good.
-					listener.onPortScanFinished(openedPorts);
+
+				inFlight++;
+				try {
+					probe.channel.configureBlocking(false);
+					probe.sentNanos = System.nanoTime();
+					if (probe.channel.connect(new InetSocketAddress(address, probe.port))) {
+						done.add(probe);
+						continue;
+					}
+					probe.channel.register(selector, SelectionKey.OP_CONNECT, probe);
+					//Backs off on every retry
+					probe.deadlineMillis = now + Math.min(connectTimeoutMillis, rtt.timeoutMillis() << probe.attempt);
+					probe.finished = false;
+					wheel.add(probe);
+				} catch (IOException e) {
+					//Refused right away
+					closeQuietly(probe);
+					inFlight--;
+					scanned++;
+					report(probe.port, false, openedPorts);
 				}
-				
-				scannedPortCount++;
-				Log.d(String.format("scannedPortCount = %d", scannedPortCount));
 			}
-		};
-		
-		//Enqueue a single-port check.
-		for(int port = start; port <= end; port++) {
-			threadPool.submit(new PortScanTask(port, onSinglePortScannedListener));
-		}
-		
-		Log.d("Port scan was sent to threadpool.");
-	}
-	
-	/**
-	 * PortScanTask tries to connect the given <code>host</code> to a single <code>port</code>.
-	 * It notifies the registered <code>IOnSinglePortScanned</code> listener with the results.
-	 */
-	class PortScanTask extends Task {
-		
-		private int port;
-		IOnSinglePortScanned listener;
-		Socket socket = new Socket();
-		
-		/**
-		 * Creates a PortScanTask on a given port. When it is finish the <code>listener</code>
-		 * is notified.
-		 * @param port
-		 * @param listener
-		 */
-		public PortScanTask(int port, IOnSinglePortScanned listener) {
-			this.port = port;
-			this.listener = listener;
-		}
-		
-		@Override
-		public void run() {
+
+			for (Probe probe : done) {
+				closeQuietly(probe);
+				inFlight--;
+				scanned++;
+				report(probe.port, true, openedPorts);
+			}
+			done.clear();
+
+			//Wait for connects until the next tick
 			try {
-				socket.connect(new InetSocketAddress(host, port), SINGLE_PORT_TIMEOUT);
-				if (socket.isConnected() && listener != null) {
-					listener.onSinglePortScanned(port, true);
+				selector.select(TICK_MILLIS);
+			} catch (IOException e) {
+				throw new PortScannerException("Select failed: " + e.getMessage());
+			}
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				Probe probe = (Probe) key.attachment();
+				boolean isOpen;
+				try {
+					isOpen = probe.channel.finishConnect();
+				} catch (IOException e) {
+					//Refused (or unreachable)
+					isOpen = false;
 				}
-			} catch (Exception e) {
-				//e.printStackTrace();
-				Log.d(String.format("Port %d is closed", port));
-				if (listener != null) {
-					listener.onSinglePortScanned(port, false);
+				//Either way the host answered. A retried probe's time is ambiguous (Karn), so it's not sampled.
+				if (probe.attempt == 0) {
+					rtt.sample(System.nanoTime() - probe.sentNanos);
+				} else {
+					rtt.answeredRetry();
 				}
+				probe.finished = true;
+				closeQuietly(probe);
+				inFlight--;
+				scanned++;
+				report(probe.port, isOpen, openedPorts);
 			}
-		}
 
-		@Override
-		protected void shutdown() throws IOException {
-			listener = null;
-			try {
-				socket.close();
-			} catch (IOException e) {
-				e.printStackTrace();
+			//Nobody answered in time - sent again while the host seems to drop, else filtered.
+			wheel.expire(System.currentTimeMillis(), done);
+			for (Probe probe : done) {
+				closeQuietly(probe);
+				inFlight--;
+				if (probe.attempt < rtt.retryLimit()) {
+					probe.attempt++;
+					rtt.retried();
+					retries.add(probe);
+					continue;
+				}
+				scanned++;
+				report(probe.port, false, openedPorts);
+			}
+			done.clear();
+
+			if (scanned / PROGRESS_LOG_INTERVAL != (scanned - 1) / PROGRESS_LOG_INTERVAL || scanned == total) {
+				Log.d("PortScanner : %d/%d ports scanned, %d open, timeout %d ms, %d retries", scanned, total,
+						openedPorts.size(), rtt.timeoutMillis(), rtt.retryLimit());
 			}
 		}
-		
+
+		return openedPorts;
+	}
+
+	private void report(int port, boolean isOpen, ArrayList<Integer> openedPorts) {
+		portsScanned.inc();
+		if (isOpen) {
+			portsOpen.inc();
+			openedPorts.add(port);
+			Log.d("Port %d is open!", port);
+		}
+
+		IOnSinglePortScanned listener = onSinglePortScannedListener;
+		if (listener != null) {
+			listener.onSinglePortScanned(port, isOpen);
+		}
+	}
+
+	private static void closeQuietly(Probe probe) {
+		try {
+			//Also cancels its key
+			probe.channel.close();
+		} catch (IOException e) {
+			Log.d("PortScanner : cannot close the socket of port %d", probe.port);
+		}
 	}
-	
+
+	private void closeAll() {
+		for (SelectionKey key : selector.keys()) {
+			closeQuietly((Probe) key.attachment());
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			Log.d("PortScanner : cannot close the selector");
+		}
+	}
+
+	/**
+	 * Stops a scan in progress. May be called by any thread.
+	 */
 	public void shutdown() {
 		isShutDown = true;
-		threadPool.shutDown();
+		Selector s = selector;
+		if (s != null) {
+			s.wakeup();
+		}
 	}
 }
@@ -0,0 +1,155 @@
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-client rate limiting, with a token bucket per client address and path class.
+ * A request takes a token of its class; the tokens are refilled at the class's rate, up to its burst.
+ * A client without a token is answered with a 429 and a Retry-After of when it will have one.
+ * The classes are the crawls (POSTs to execResult.html, each starting a crawl) and everything else.
+ * A client's buckets are dropped once they'd be full again anyway, by whichever request finds the sweep due,
+ * so the map only holds the clients seen lately.
+ */
+public class RateLimiter {
+
+	public static boolean enabled = true;
+
+	/** Requests a client may send per second, and in a burst */
+	public static double requestsPerSecond = 50;
+	public static int requestBurst = 100;
+
+	/** Crawls a client may start per minute, and in a burst */
+	public static double crawlsPerMinute = 6;
+	public static int crawlBurst = 2;
+
+	private static final String CRAWL_PATH = "/execResult.html";
+
+	private static final long SWEEP_INTERVAL_NANOS = 10 * 1000 * 1000 * 1000L;
+
+	/**
+	 * The buckets of a client: the tokens left of each class, and when they were last refilled.
+	 */
+	private static final class Buckets {
+		private double requestTokens = requestBurst;
+		private double crawlTokens = crawlBurst;
+		private long refillNanos;
+
+		Buckets(long now) {
+			refillNanos = now;
+		}
+
+		/**
+		 * @return 0 if the request took its tokens, or the nanoseconds until it could.
+		 */
+		synchronized long take(boolean crawl, long now) {
+			double seconds = (now - refillNanos) / 1e9;
+			refillNanos = now;
+			requestTokens = Math.min(requestBurst, requestTokens + seconds * requestsPerSecond);
+			crawlTokens = Math.min(crawlBurst, crawlTokens + seconds * crawlsPerMinute / 60);
+
+			long wait = 0;
+			if (requestTokens < 1) {
+				wait = nanosUntil(1 - requestTokens, requestsPerSecond);
+			}
+			if (crawl && crawlTokens < 1) {
+				wait = Math.max(wait, nanosUntil(1 - crawlTokens, crawlsPerMinute / 60));
+			}
+			if (wait > 0) {
+				return wait;
+			}
+
+			requestTokens--;
+			if (crawl) {
+				crawlTokens--;
+			}
+			return 0;
+		}
+
+		synchronized long getRefillNanos() {
+			return refillNanos;
+		}
+	}
+
+	private static final ConcurrentHashMap<String, Buckets> sBuckets = new ConcurrentHashMap<>();
+	private static final AtomicLong sNextSweep = new AtomicLong(System.nanoTime() + SWEEP_INTERVAL_NANOS);
+
+	private static final Metrics.Counter limitedRequests = Metrics.getInstance().counter("webserver_rate_limited_total",
+			"Requests answered with 429, by path class.", "class=\"request\"");
+	private static final Metrics.Counter limitedCrawls = Metrics.getInstance().counter("webserver_rate_limited_total",
+			"Requests answered with 429, by path class.", "class=\"crawl\"");
+
+	static {
+		Metrics.getInstance().gauge("webserver_rate_limited_clients", "Clients with a rate limiter bucket.", "", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return sBuckets.size();
+			}
+		});
+	}
+
+	/**
+	 * Takes the tokens of a request. Called before the request is validated, so the ones answered
+	 * with an error (404, 400...) are limited too.
+	 * @param client - the client's address, <code>null</code> if not known (not limited then).
+	 * @param request - the request, maybe malformed. Not limited if its method and path weren't parsed.
+	 * @return 0 if the request may go on, or the seconds the client should wait before retrying.
+	 */
+	public static int acquire(String client, WebServerHttpRequest request) {
+		if (!enabled || client == null || request == null || request.getHttpMethod() == null || request.getPath() == null) {
+			return 0;
+		}
+
+		long now = System.nanoTime();
+		sweepIfDue(now);
+
+		Buckets buckets = sBuckets.get(client);
+		if (buckets == null) {
+			Buckets created = new Buckets(now);
+			buckets = sBuckets.putIfAbsent(client, created);
+			if (buckets == null) {
+				buckets = created;
+			}
+		}
+
+		boolean crawl = HTTP_METHOD.POST.equals(request.getHttpMethod()) && CRAWL_PATH.equals(request.getPath());
+		long wait = buckets.take(crawl, now);
+		if (wait == 0) {
+			return 0;
+		}
+
+		if (crawl) {
+			limitedCrawls.inc();
+		} else {
+			limitedRequests.inc();
+		}
+		Log.d("RateLimiter : %s is over its limit, retry in %d ms", client, wait / 1000000);
+		return (int) Math.min(Integer.MAX_VALUE, Math.max(1, (wait + 999999999L) / 1000000000L));
+	}
+
+	private static long nanosUntil(double tokens, double perSecond) {
+		if (perSecond <= 0) {
+			return Long.MAX_VALUE / 2;
+		}
+		return (long) Math.ceil(tokens / perSecond * 1e9);
+	}
+
+	/**
+	 * Drops the buckets that are full again - a new client gets the same.
+	 * Run by a single request every SWEEP_INTERVAL_NANOS. A request racing with the sweep may take a token
+	 * from a dropped bucket, which only lets it through once more.
+	 */
+	private static void sweepIfDue(long now) {
+		long next = sNextSweep.get();
+		if (now - next < 0 || !sNextSweep.compareAndSet(next, now + SWEEP_INTERVAL_NANOS)) {
+			return;
+		}
+
+		long idleNanos = Math.max(nanosUntil(requestBurst, requestsPerSecond), nanosUntil(crawlBurst, crawlsPerMinute / 60));
+		Iterator<Buckets> it = sBuckets.values().iterator();
+		while (it.hasNext()) {
+			if (now - it.next().getRefillNanos() > idleNanos) {
+				it.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/**
+ * Phase timings of a single crawler request, captured with <code>System.nanoTime()</code>.
+ * A phase that was never reached (a failed DNS lookup, a read timeout before the first byte) is -1.
+ */
+public class RequestTimings {
+
+	/** Resolving the host name */
+	public static final int PHASE_DNS = 0;
+	/** TCP handshake */
+	public static final int PHASE_CONNECT = 1;
+	/** Writing the request into the socket */
+	public static final int PHASE_WRITE = 2;
+	/** From the end of the write until the first response byte - the server's "think" time */
+	public static final int PHASE_FIRST_BYTE = 3;
+	/** From the first response byte until the last one - the body transfer */
+	public static final int PHASE_LAST_BYTE = 4;
+	/** From the start of the DNS lookup until the last byte */
+	public static final int PHASE_TOTAL = 5;
+	public static final int NUM_OF_PHASES = 6;
+
+	public static final String[] PHASE_NAMES = {"dns", "connect", "write", "first byte", "last byte", "total"};
+
+	private final long[] nanos;
+	private boolean timedOut;
+
+	//Timestamps of the phase boundaries, -1 until reached.
+	private long startNanos = -1;
+	private long resolvedNanos = -1;
+	private long connectedNanos = -1;
+	private long sentNanos = -1;
+	private long firstByteNanos = -1;
+	private long lastByteNanos = -1;
+
+	public RequestTimings() {
+		nanos = new long[NUM_OF_PHASES];
+	}
+
+	public void markStart() {
+		startNanos = System.nanoTime();
+	}
+
+	public void markResolved() {
+		resolvedNanos = System.nanoTime();
+	}
+
+	public void markConnected() {
+		connectedNanos = System.nanoTime();
+	}
+
+	public void markSent() {
+		sentNanos = System.nanoTime();
+	}
+
+	public void markFirstByte() {
+		firstByteNanos = System.nanoTime();
+		lastByteNanos = firstByteNanos;
+	}
+
+	/**
+	 * Should be called after every successful read, so a read timeout does not count as transfer time.
+	 */
+	public void markLastByte() {
+		lastByteNanos = System.nanoTime();
+	}
+
+	public void markTimedOut() {
+		timedOut = true;
+	}
+
+	/**
+	 * Computes the phase durations from the marks. Called once, after the response was read.
+	 */
+	public void finish() {
+		nanos[PHASE_DNS] = between(startNanos, resolvedNanos);
+		nanos[PHASE_CONNECT] = between(resolvedNanos, connectedNanos);
+		nanos[PHASE_WRITE] = between(connectedNanos, sentNanos);
+		nanos[PHASE_FIRST_BYTE] = between(sentNanos, firstByteNanos);
+		nanos[PHASE_LAST_BYTE] = between(firstByteNanos, lastByteNanos);
+		nanos[PHASE_TOTAL] = between(startNanos, lastByteNanos);
+	}
+
+	private static long between(long from, long to) {
+		return from == -1 || to == -1 ? -1 : to - from;
+	}
+
+	/**
+	 * @param phase - one of PHASE_*
+	 * @return the phase duration in nanoseconds, -1 if the phase was not reached.
+	 */
+	public long getNanos(int phase) {
+		return nanos[phase];
+	}
+
+	/**
+	 * @return <code>true</code> if the read timed out, so the last byte is the last one received before the timeout.
+	 */
+	public boolean isTimedOut() {
+		return timedOut;
+	}
+}
@@ -0,0 +1,135 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free, multi-producer single-consumer ring buffer of pre-allocated events
+ * (Dmitry Vyukov's bounded queue, with the slots reused in place instead of holding references).
+ * A producer claims a sequence, fills the event of that sequence and publishes it.
+ * The single consumer drains the published events in order.
+ * When the buffer is full the producer does not block - <code>claim()</code> returns -1 and the caller decides.
+ * When it's empty the consumer may park in <code>await()</code>, and the next publish wakes it up.
+ *
+ * @param <T> the event type.
+ */
+public class RingBuffer<T> {
+
+	/**
+	 * Creates the events that fill the ring once, at construction.
+	 */
+	interface EventFactory<T> {
+		T newEvent();
+	}
+
+	/**
+	 * Handles a published event. The event is reused after the handler returns.
+	 */
+	interface EventHandler<T> {
+		void onEvent(T event);
+	}
+
+	private final Object[] events;
+	private final AtomicLongArray sequences;
+	private final int mask;
+
+	//Next sequence to claim, shared by the producers.
+	private final AtomicLong tail = new AtomicLong();
+
+	//Next sequence to consume. Only the consumer thread touches it.
+	private long head = 0;
+
+	//The consumer, while it's parked in await()
+	private volatile Thread waiting;
+
+	/**
+	 * @param capacity - rounded up to a power of two.
+	 * @param factory - creates the events.
+	 */
+	public RingBuffer(int capacity, EventFactory<T> factory) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		events = new Object[size];
+		sequences = new AtomicLongArray(size);
+		mask = size - 1;
+
+		for (int i = 0; i < size; i++) {
+			events[i] = factory.newEvent();
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Claims the next slot.
+	 * @return the claimed sequence, or -1 if the buffer is full.
+	 */
+	public long claim() {
+		long pos = tail.get();
+		while (true) {
+			long seq = sequences.get((int) pos & mask);
+			long dif = seq - pos;
+			if (dif == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					return pos;
+				}
+				pos = tail.get();
+			} else if (dif < 0) {
+				//The consumer hasn't freed this slot yet - full.
+				return -1;
+			} else {
+				//Another producer took it
+				pos = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * @return the event of a claimed sequence, to be filled before <code>publish</code>.
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(long sequence) {
+		return (T) events[(int) sequence & mask];
+	}
+
+	/**
+	 * Makes a claimed & filled event visible to the consumer, and wakes it up if it's parked.
+	 */
+	public void publish(long sequence) {
+		//A volatile write, so either the consumer sees the event before parking, or this sees it parking.
+		sequences.set((int) sequence & mask, sequence + 1);
+		Thread consumer = waiting;
+		if (consumer != null) {
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	/**
+	 * Parks the consumer thread until an event is published, or for at most <code>maxNanos</code>.
+	 * Returns at once if there's one already.
+	 */
+	public void await(long maxNanos) {
+		waiting = Thread.currentThread();
+		if (sequences.get((int) head & mask) != head + 1) {
+			LockSupport.parkNanos(this, maxNanos);
+		}
+		waiting = null;
+	}
+
+	/**
+	 * Hands all the published events to the handler, in order. Must be called by a single consumer thread.
+	 * @return the number of events handled.
+	 */
+	public int drain(EventHandler<T> handler) {
+		int count = 0;
+		while (true) {
+			int slot = (int) head & mask;
+			if (sequences.get(slot) != head + 1) {
+				return count;
+			}
+
+			handler.onEvent(get(head));
+			//Frees the slot for the producer that will claim head + capacity.
+			sequences.lazySet(slot, head + events.length);
+			head++;
+			count++;
+		}
+	}
+}
@@ -0,0 +1,91 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * A buffered text writer over a file, that rolls the file over when it grows beyond <code>maxBytes</code>:
+ * name -> name.1 -> name.2 ... up to <code>maxFiles</code> old files.
+ * Without a file name it writes to System.out (and never rolls).
+ * Not thread-safe - it is meant to be owned by a single background writer thread.
+ */
+public class RollingFileWriter {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final String fileName;
+	private final long maxBytes;
+	private final int maxFiles;
+
+	private Writer writer;
+	private long written;
+
+	/**
+	 * @param fileName - the file to write, <code>null</code> or empty for System.out.
+	 * @param maxBytes - roll over when the file is bigger than this.
+	 * @param maxFiles - number of rolled files to keep.
+	 */
+	public RollingFileWriter(String fileName, long maxBytes, int maxFiles) {
+		this.fileName = fileName == null || fileName.length() == 0 ? null : fileName;
+		this.maxBytes = maxBytes;
+		this.maxFiles = maxFiles;
+	}
+
+	public void write(CharSequence text) throws IOException {
+		if (writer == null) {
+			open();
+		}
+
+		writer.append(text);
+		written += text.length();
+
+		if (fileName != null && written > maxBytes) {
+			roll();
+		}
+	}
+
+	public void flush() throws IOException {
+		if (writer != null) {
+			writer.flush();
+		}
+	}
+
+	public void close() throws IOException {
+		if (writer != null) {
+			writer.flush();
+			if (fileName != null) {
+				writer.close();
+			}
+			writer = null;
+		}
+	}
+
+	private void open() throws IOException {
+		if (fileName == null) {
+			writer = new BufferedWriter(new OutputStreamWriter(System.out), BUFFER_SIZE);
+			return;
+		}
+
+		File file = new File(fileName);
+		written = file.length();
+		writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true)), BUFFER_SIZE);
+	}
+
+	private void roll() throws IOException {
+		close();
+
+		//Shift name.(n-1) -> name.n, dropping the oldest one.
+		new File(fileName + "." + maxFiles).delete();
+		for (int i = maxFiles - 1; i >= 1; i--) {
+			File older = new File(fileName + "." + i);
+			if (older.exists()) {
+				older.renameTo(new File(fileName + "." + (i + 1)));
+			}
+		}
+		new File(fileName).renameTo(new File(fileName + ".1"));
+
+		open();
+	}
+}
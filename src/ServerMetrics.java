@@ -0,0 +1,116 @@
+import java.util.EnumMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The web server's metrics, shared by every connection handler.
+ * All the metric objects are created once, so recording is a plain lock-free add.
+ */
+public class ServerMetrics {
+
+	public static final Metrics.Counter connectionsAccepted =
+			Metrics.getInstance().counter("webserver_connections_accepted_total", "Connections accepted.");
+	public static final Metrics.Counter bytesReceived =
+			Metrics.getInstance().counter("webserver_bytes_received_total", "Request bytes received.");
+	public static final Metrics.Counter bytesSent =
+			Metrics.getInstance().counter("webserver_bytes_sent_total", "Response bytes sent.");
+	public static final LatencyHistogram requestTime =
+			Metrics.getInstance().histogram("webserver_request_seconds", "Time from a parsed request until its response was written.", "");
+
+	private static final AtomicInteger openConnections = new AtomicInteger();
+	private static final AtomicLong accepts = new AtomicLong();
+	private static final EnumMap<HTTP_CODE, Metrics.Counter> responsesByCode = new EnumMap<>(HTTP_CODE.class);
+
+	static {
+		Metrics metrics = Metrics.getInstance();
+		metrics.gauge("webserver_connections_open", "Connections accepted and not yet closed.", "", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return openConnections.get();
+			}
+		});
+
+		metrics.gauge("webserver_accepts_per_second", "Connections accepted per second, since the previous scrape.", "", new Metrics.Gauge() {
+			private long lastAccepts = 0;
+			private long lastNanos = System.nanoTime();
+
+			@Override
+			public synchronized long value() {
+				long now = System.nanoTime();
+				long count = accepts.get();
+				long rate = now > lastNanos ? (count - lastAccepts) * 1000000000L / (now - lastNanos) : 0;
+				lastAccepts = count;
+				lastNanos = now;
+				return rate;
+			}
+		});
+
+		for (HTTP_CODE code : HTTP_CODE.values()) {
+			if (code != HTTP_CODE.NO_RESPONSE) {
+				String labels = String.format("code=\"%s\"", code.toString().substring(0, 3));
+				responsesByCode.put(code, metrics.counter("webserver_responses_total", "Responses sent, by HTTP code.", labels));
+			}
+		}
+	}
+
+	/**
+	 * @return the counter of the connections an acceptor accepted, the rejected ones included.
+	 */
+	public static Metrics.Counter acceptorCounter(int acceptor) {
+		return Metrics.getInstance().counter("webserver_accepts_total", "Connections accepted, by acceptor.",
+				String.format("acceptor=\"%d\"", acceptor));
+	}
+
+	/**
+	 * Called by an acceptor for every connection it accepts.
+	 */
+	public static void accepted(Metrics.Counter acceptorCounter) {
+		acceptorCounter.inc();
+		accepts.incrementAndGet();
+	}
+
+	/**
+	 * Takes the slot of a new connection if fewer than <code>max</code> are open. Atomic, as the acceptors
+	 * admit connections concurrently. The slot is the connection's until connectionClosed().
+	 * @return <code>false</code> if <code>max</code> connections are open.
+	 */
+	public static boolean tryOpenConnection(int max) {
+		while (true) {
+			int open = openConnections.get();
+			if (open >= max) {
+				return false;
+			}
+			if (openConnections.compareAndSet(open, open + 1)) {
+				connectionsAccepted.inc();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Takes the slot of a new connection over the limit - one that's admitted in place of a reclaimed one.
+	 */
+	public static void connectionOpened() {
+		connectionsAccepted.inc();
+		openConnections.incrementAndGet();
+	}
+
+	public static void connectionClosed() {
+		openConnections.decrementAndGet();
+	}
+	
+	/**
+	 * @return the connections accepted and not yet closed.
+	 */
+	public static int getOpenConnections() {
+		return openConnections.get();
+	}
+
+	public static void responseSent(HTTP_CODE code, long bytes) {
+		Metrics.Counter counter = responsesByCode.get(code);
+		if (counter != null) {
+			counter.inc();
+		}
+		bytesSent.add(bytes);
+	}
+}
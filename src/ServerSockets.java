@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The listening sockets of the server, and the options of the sockets they accept.
+ * With more than one acceptor, every acceptor gets a listener of its own bound with SO_REUSEPORT, and the kernel
+ * spreads the incoming connections between them - so they don't contend on one accept queue.
+ * Where SO_REUSEPORT isn't there (older JDKs, Windows), there's a single listener the acceptors share.
+ */
+public class ServerSockets {
+
+	/** Threads (or NIO loops) that accept connections */
+	public static int acceptors = 1;
+
+	/** The accept queue length of a listener. 0 is the OS default. */
+	public static int backlog = 1024;
+
+	public static boolean tcpNoDelay = true;
+
+	/** SO_SNDBUF & SO_RCVBUF of the accepted sockets, in bytes. 0 is the OS default. */
+	public static int sendBufferSize = 0;
+	public static int receiveBufferSize = 0;
+
+	//Looked up by name, as StandardSocketOptions.SO_REUSEPORT is missing before Java 9.
+	private static final String SO_REUSEPORT = "SO_REUSEPORT";
+
+	/**
+	 * Opens and binds the listeners of the acceptors.
+	 * @param port - the port to listen on.
+	 * @param count - the number of acceptors.
+	 * @return a listener per acceptor, or a single listener to share if SO_REUSEPORT is not supported.
+	 * @throws IOException if the port cannot be bound.
+	 */
+	public static ServerSocketChannel[] open(int port, int count) throws IOException {
+		ServerSocketChannel first = ServerSocketChannel.open();
+		SocketOption<Boolean> reusePort = count > 1 ? findReusePort(first) : null;
+		if (reusePort == null) {
+			if (count > 1) {
+				Log.i("ServerSockets : SO_REUSEPORT is not supported, the %d acceptors share one listener", count);
+			}
+			return new ServerSocketChannel[] { bind(first, port, null) };
+		}
+
+		ServerSocketChannel[] listeners = new ServerSocketChannel[count];
+		try {
+			listeners[0] = bind(first, port, reusePort);
+			for (int i = 1; i < count; i++) {
+				listeners[i] = bind(ServerSocketChannel.open(), port, reusePort);
+			}
+		} catch (IOException e) {
+			close(listeners);
+			throw e;
+		}
+		Log.i("ServerSockets : %d listeners on port %d with SO_REUSEPORT", count, port);
+		return listeners;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> findReusePort(ServerSocketChannel channel) {
+		for (SocketOption<?> option : channel.supportedOptions()) {
+			if (option.name().equals(SO_REUSEPORT)) {
+				return (SocketOption<Boolean>) option;
+			}
+		}
+		return null;
+	}
+
+	private static ServerSocketChannel bind(ServerSocketChannel channel, int port, SocketOption<Boolean> reusePort)
+			throws IOException {
+		try {
+			channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			if (reusePort != null) {
+				channel.setOption(reusePort, true);
+			}
+			if (receiveBufferSize > 0) {
+				//Set on the listener, so the accepted sockets have it before the handshake (for the TCP window scale).
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+			}
+			channel.bind(new InetSocketAddress(port), backlog);
+			return channel;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Applies the configured options to an accepted socket.
+	 */
+	public static void configure(SocketChannel channel) {
+		try {
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+			if (sendBufferSize > 0) {
+				channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+			}
+			if (receiveBufferSize > 0) {
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+			}
+		} catch (IOException e) {
+			Log.d("ServerSockets.configure() : %s", e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the address of the client of a connected socket, for the access log & the rate limiter.
+	 */
+	public static String clientAddress(Socket socket) {
+		InetAddress address = socket.getInetAddress();
+		return address != null ? address.getHostAddress() : null;
+	}
+
+	public static void close(ServerSocketChannel[] listeners) {
+		if (listeners == null) {
+			return;
+		}
+		for (ServerSocketChannel listener : listeners) {
+			try {
+				if (listener != null) {
+					listener.close();
+				}
+			} catch (IOException e) {
+				Log.d("ServerSockets.close() : cannot close a listener");
+			}
+		}
+	}
+}
@@ -0,0 +1,440 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of the files the server serves: their metadata, their content (small files only),
+ * and the content-type & content-length header lines, pre-built.
+ * The validators of conditional requests - the ETag and the Last-Modified date - are made from the metadata on load.
+ * Compressed variants of the text files are made on their first request, and cached with the file.
+ * A hot file is then served with no filesystem calls at all.
+ * The cache holds up to <code>maxBytes</code> of content, and evicts the least recently used files beyond it.
+ * The entries are keyed by the normalized absolute path, so "/./a.html" and "/b/../a.html" are one entry.
+ * An entry is dropped as soon as a WatchService reports its file changed. The entry's mtime is also checked,
+ * at most once every REVALIDATE_MILLIS - for the directories that cannot be watched, and for the paths
+ * the watcher's events don't name (e.g. a path in another case, on Windows).
+ */
+public class StaticResourceCache {
+
+	/** Total bytes of cached content */
+	public static long maxBytes = 16 * 1024 * 1024;
+
+	/** Files bigger than this are cached without their content (and are sent from the disk) */
+	public static int maxEntryBytes = 256 * 1024;
+
+	private static final long REVALIDATE_MILLIS = 1000;
+
+	//Bookkeeping bytes per entry, so that many empty files cannot fill the memory.
+	private static final int ENTRY_OVERHEAD = 256;
+
+	/**
+	 * The content of a cached file in some encoding, with its header lines.
+	 */
+	public static class Variant {
+		private final byte[] content;
+		private final String headerBlock;
+		private final int encoding;
+
+		Variant(byte[] content, String headerBlock, int encoding) {
+			this.content = content;
+			this.headerBlock = headerBlock;
+			this.encoding = encoding;
+		}
+
+		/**
+		 * @return the Compression.ENCODING_ the content is in - identity when compressing didn't make it smaller.
+		 */
+		public int getEncoding() {
+			return encoding;
+		}
+
+		public byte[] getContent() {
+			return content;
+		}
+
+		public String getHeaderBlock() {
+			return headerBlock;
+		}
+	}
+
+	/**
+	 * A cached file.
+	 */
+	public static class Entry {
+		private final String key;
+		private final String contentType;
+		private final Variant[] compressed = new Variant[Compression.NUM_OF_ENCODINGS];
+		private final long length;
+		private final long lastModified;
+		private final byte[] content;
+		private final String headerBlock;
+		private final String etag;
+		private final String[] encodedETags = new String[Compression.NUM_OF_ENCODINGS];
+		private final String lastModifiedDate;
+		private volatile long checkedAtMillis;
+
+		Entry(String key, String contentType, long length, long lastModified, byte[] content, String headerBlock) {
+			this.key = key;
+			this.contentType = contentType;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.content = content;
+			this.headerBlock = headerBlock;
+			checkedAtMillis = System.currentTimeMillis();
+
+			//A changed file has a new mtime or length, hence a new tag.
+			String tag = Long.toHexString(length) + "-" + Long.toHexString(lastModified);
+			etag = "\"" + tag + "\"";
+			for (int encoding = 0; encoding < Compression.NUM_OF_ENCODINGS; encoding++) {
+				encodedETags[encoding] = "\"" + tag + "-" + Compression.ENCODING_NAMES[encoding] + "\"";
+			}
+			lastModifiedDate = HTTPRequestParseUtil.formatHttpDate(lastModified);
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * @return the file content, or <code>null</code> if the file is too big to be cached. Must not be modified.
+		 */
+		public byte[] getContent() {
+			return content;
+		}
+
+		/**
+		 * @return the content-type & content-length header lines of the file, each ending with CRLF.
+		 */
+		public String getHeaderBlock() {
+			return headerBlock;
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+
+		/**
+		 * @param encoding - the Compression.ENCODING_ the file is sent with. Each encoding is a representation of its own.
+		 * @return the quoted entity tag of the file.
+		 */
+		public String getETag(int encoding) {
+			return encoding == Compression.ENCODING_IDENTITY ? etag : encodedETags[encoding];
+		}
+
+		/**
+		 * @return the mtime of the file, as an HTTP date.
+		 */
+		public String getLastModifiedDate() {
+			return lastModifiedDate;
+		}
+
+		private int weight() {
+			int weight = ENTRY_OVERHEAD + (content == null ? 0 : content.length);
+			for (Variant variant : compressed) {
+				if (variant != null && variant.content != content) {
+					weight += variant.content.length;
+				}
+			}
+			return weight;
+		}
+	}
+
+	private static StaticResourceCache sInstance;
+
+	//In access order - the eldest entry is the least recently used.
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+	private long usedBytes = 0;
+
+	//Incremented on every invalidation, so a file that changed while it was loaded isn't cached.
+	private long generation = 0;
+
+	private WatchService watchService;
+	private final HashSet<Path> watchedDirs = new HashSet<>();
+
+	private final Metrics.Counter hits = Metrics.getInstance().counter("webserver_static_cache_hits_total", "Static files served from the cache.");
+	private final Metrics.Counter misses = Metrics.getInstance().counter("webserver_static_cache_misses_total", "Static files loaded into the cache.");
+
+	private StaticResourceCache() {
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+			Thread watcher = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					watch();
+				}
+			}, "resource-cache-watcher");
+			watcher.setDaemon(true);
+			watcher.start();
+		} catch (IOException e) {
+			Log.w("StaticResourceCache : no WatchService, falling back to mtime checks");
+			watchService = null;
+		}
+
+		Metrics.getInstance().gauge("webserver_static_cache_bytes", "Bytes of file content in the static cache.", "", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				synchronized (StaticResourceCache.this) {
+					return usedBytes;
+				}
+			}
+		});
+	}
+
+	public static synchronized StaticResourceCache getInstance() {
+		if (sInstance == null) {
+			sInstance = new StaticResourceCache();
+		}
+
+		return sInstance;
+	}
+
+	/**
+	 * Returns the cached file, loading it if needed.
+	 * @param file - the file.
+	 * @return the entry, or <code>null</code> if the file doesn't exist, isn't a regular file or cannot be read.
+	 */
+	public Entry get(File file) {
+		String key = keyOf(file);
+		if (key == null) {
+			//There can't be such a file
+			return null;
+		}
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(key);
+		}
+
+		if (entry != null && isValid(file, entry)) {
+			hits.inc();
+			return entry;
+		}
+
+		misses.inc();
+		long loadGeneration;
+		synchronized (this) {
+			loadGeneration = generation;
+		}
+		entry = load(file, key);
+
+		synchronized (this) {
+			if (generation != loadGeneration) {
+				//Something changed during the load - serve it, but don't keep it.
+				return entry;
+			}
+			Entry old = entry == null ? entries.remove(key) : entries.put(key, entry);
+			if (old != null) {
+				usedBytes -= old.weight();
+			}
+			if (entry != null) {
+				usedBytes += entry.weight();
+				evict();
+			}
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Returns the content of a cached file in the given encoding, compressing it the first time.
+	 * If the compressed content isn't smaller, the variant is the file content as is.
+	 * @param entry - an entry that has its content cached.
+	 * @param encoding - one of the Compression.ENCODING_ constants, but identity.
+	 */
+	public Variant getCompressed(Entry entry, int encoding) {
+		Variant variant = entry.compressed[encoding];
+		if (variant != null) {
+			return variant;
+		}
+
+		byte[] content = Compression.compress(entry.content, encoding);
+		if (content.length < entry.content.length) {
+			StringBuilder headerBlock = new StringBuilder();
+			headerBlock.append("content-type: ").append(entry.contentType).append(WebServer.CRLF);
+			headerBlock.append("content-length: ").append(content.length).append(WebServer.CRLF);
+			headerBlock.append("content-encoding: ").append(Compression.ENCODING_NAMES[encoding]).append(WebServer.CRLF);
+			variant = new Variant(content, headerBlock.toString(), encoding);
+		} else {
+			variant = new Variant(entry.content, entry.headerBlock, Compression.ENCODING_IDENTITY);
+		}
+
+		synchronized (this) {
+			if (entry.compressed[encoding] != null) {
+				//Another thread was first
+				return entry.compressed[encoding];
+			}
+			boolean cached = entries.get(entry.key) == entry;
+			if (cached) {
+				usedBytes -= entry.weight();
+			}
+			entry.compressed[encoding] = variant;
+			if (cached) {
+				usedBytes += entry.weight();
+				evict();
+			}
+		}
+		return variant;
+	}
+
+	/**
+	 * @return the cache key of a file: its absolute path, normalized. <code>null</code> if it's not a valid path
+	 * of the filesystem (e.g. a request path with characters it cannot have).
+	 */
+	public static String keyOf(File file) {
+		try {
+			return file.toPath().toAbsolutePath().normalize().toString();
+		} catch (InvalidPathException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Drops the entry of the given file, if it's cached.
+	 * @param key - the key of the file, see keyOf().
+	 */
+	public synchronized void invalidate(String key) {
+		generation++;
+		Entry old = entries.remove(key);
+		if (old != null) {
+			usedBytes -= old.weight();
+			Log.d("StaticResourceCache : %s changed, dropped from the cache", key);
+		}
+	}
+
+	public synchronized void clear() {
+		generation++;
+		entries.clear();
+		usedBytes = 0;
+	}
+
+	private boolean isValid(File file, Entry entry) {
+		long now = System.currentTimeMillis();
+		if (now - entry.checkedAtMillis < REVALIDATE_MILLIS) {
+			return true;
+		}
+
+		if (file.lastModified() == entry.lastModified && file.length() == entry.length) {
+			entry.checkedAtMillis = now;
+			return true;
+		}
+		return false;
+	}
+
+	private Entry load(File file, String key) {
+		if (!file.isFile()) {
+			return null;
+		}
+
+		//Watch before reading, so a change during the read isn't missed.
+		watchDirectoryOf(key);
+
+		long lastModified = file.lastModified();
+		long length = file.length();
+		byte[] content = null;
+
+		if (length <= maxEntryBytes) {
+			try {
+				content = Files.readAllBytes(file.toPath());
+			} catch (IOException e) {
+				Log.d("StaticResourceCache : cannot read %s", file.getPath());
+				return null;
+			}
+			length = content.length;
+		}
+
+		String contentType = WebServerHttpResponse.contentTypeOf(file.getName()).toString();
+		StringBuilder headerBlock = new StringBuilder();
+		headerBlock.append("content-type: ").append(contentType).append(WebServer.CRLF);
+		headerBlock.append("content-length: ").append(length).append(WebServer.CRLF);
+
+		return new Entry(key, contentType, length, lastModified, content, headerBlock.toString());
+	}
+
+	/**
+	 * Evicts the least recently used entries until the cache is within its budget. Called with the lock held.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (usedBytes > maxBytes && it.hasNext()) {
+			Map.Entry<String, Entry> eldest = it.next();
+			usedBytes -= eldest.getValue().weight();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Has the watcher report the changes in the file's directory. The directory is registered by its normalized
+	 * path, so the paths of the events are in the form of the keys.
+	 * @param key - the key of the file.
+	 */
+	private void watchDirectoryOf(String key) {
+		if (watchService == null) {
+			return;
+		}
+
+		Path dir = Paths.get(key).getParent();
+		if (dir == null) {
+			return;
+		}
+
+		synchronized (watchedDirs) {
+			if (watchedDirs.contains(dir)) {
+				return;
+			}
+			try {
+				dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+				watchedDirs.add(dir);
+			} catch (IOException e) {
+				Log.d("StaticResourceCache : cannot watch %s", dir);
+			}
+		}
+	}
+
+	/**
+	 * The watcher thread: drops the entries of the changed files.
+	 */
+	private void watch() {
+		while (true) {
+			WatchKey key;
+			try {
+				key = watchService.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			Path dir = (Path) key.watchable();
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					//Events were lost, we don't know what changed.
+					clear();
+				} else {
+					invalidate(dir.resolve((Path) event.context()).toString());
+				}
+			}
+
+			if (!key.reset()) {
+				//The directory is gone - drop its entries, all of them to be safe.
+				synchronized (watchedDirs) {
+					watchedDirs.remove(dir);
+				}
+				clear();
+			}
+		}
+	}
+}
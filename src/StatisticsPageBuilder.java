@@ -1,6 +1,4 @@
-import java.io.File;
 import java.io.FileWriter;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.Calendar;
@@ -13,6 +11,8 @@ import java.util.List;
  */
 public class StatisticsPageBuilder {
 	
+	private static final int SLOWEST_HOSTS_COUNT = 10;
+	
 	CrawlData cd;
 	
 	public StatisticsPageBuilder(CrawlData crawlData) {
@@ -37,15 +37,20 @@ public class StatisticsPageBuilder {
 			connectedDomains(htmlSb);
 			openedPorts(htmlSb);
 			avgRtt(htmlSb);
+			latencies(htmlSb);
+			slowestHosts(htmlSb);
 			linkToMainPage(htmlSb);
 			
 			htmlSb.append("</body></html>");
 			
-			FileWriter writer = new FileWriter(getFileName());
+			String fileName = getFileName();
+			FileWriter writer = new FileWriter(fileName);
 			writer.write(htmlSb.toString());
 			writer.flush();
 			writer.close();
 			
+			CrawlHistory.getInstance().reportWritten(fileName, cd);
+			
 			return true;
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -92,8 +97,65 @@ public class StatisticsPageBuilder {
 	 * @param htmlSb
 	 */
 	private void avgRtt(StringBuilder htmlSb) {
-		String avgRtt = cd.get(CrawlData.AVG_RTT).toString();
-		htmlSb.append(String.format("<p>Average RTT: %s ms.</p>", avgRtt));
+		double avgRtt = cd.getLatency(RequestTimings.PHASE_FIRST_BYTE).getMean() / 1000.0;
+		htmlSb.append(String.format("<p>Average RTT: %.1f ms.</p>", avgRtt));
+	}
+	
+	/**
+	 * Insert the latency percentiles table (per resource type and phase) to the HTML builder
+	 * @param htmlSb
+	 */
+	private void latencies(StringBuilder htmlSb) {
+		String[] typeNames = {"Pages", "Images", "Videos", "Documents"};
+		
+		htmlSb.append("<p>Latency (ms):<br><table border=\"1\">");
+		htmlSb.append("<tr><th>Resource</th><th>Phase</th><th>#</th><th>p50</th><th>p90</th><th>p99</th><th>max</th></tr>");
+		for (int type = 0; type < DownloaderTask.NUM_OF_RESOURCE_TYPES; type++) {
+			for (int phase = 0; phase < RequestTimings.NUM_OF_PHASES; phase++) {
+				LatencyHistogram h = cd.getLatency(type, phase);
+				if (h.getCount() > 0) {
+					latencyRow(htmlSb, typeNames[type], phase, h);
+				}
+			}
+		}
+		for (int phase = 0; phase < RequestTimings.NUM_OF_PHASES; phase++) {
+			latencyRow(htmlSb, "All", phase, cd.getLatency(phase));
+		}
+		htmlSb.append("</table></p>");
+	}
+	
+	/**
+	 * Insert the hosts with the worst total time to the HTML builder, with the 90th percentile of every phase.
+	 * DNS & connect point at the network, first byte at the server, last byte at the bandwidth.
+	 * @param htmlSb
+	 */
+	private void slowestHosts(StringBuilder htmlSb) {
+		List<String> hosts = cd.getSlowestHosts(SLOWEST_HOSTS_COUNT);
+		if (hosts.isEmpty()) {
+			return;
+		}
+		
+		htmlSb.append("<p>Slowest hosts (p90, ms):<br><table border=\"1\"><tr><th>Host</th><th>#</th>");
+		for (String phaseName : RequestTimings.PHASE_NAMES) {
+			htmlSb.append(String.format("<th>%s</th>", phaseName));
+		}
+		htmlSb.append("</tr>");
+		
+		for (String host : hosts) {
+			htmlSb.append(String.format("<tr><td>%s</td><td>%d</td>", host, cd.getHostLatency(host, RequestTimings.PHASE_TOTAL).getCount()));
+			for (int phase = 0; phase < RequestTimings.NUM_OF_PHASES; phase++) {
+				htmlSb.append(String.format("<td>%.1f</td>", cd.getHostLatency(host, phase).getValueAtPercentile(90) / 1000.0));
+			}
+			htmlSb.append("</tr>");
+		}
+		htmlSb.append("</table></p>");
+	}
+	
+	private void latencyRow(StringBuilder htmlSb, String name, int phase, LatencyHistogram h) {
+		htmlSb.append(String.format("<tr><td>%s</td><td>%s</td><td>%d</td><td>%.1f</td><td>%.1f</td><td>%.1f</td><td>%.1f</td></tr>",
+				name, RequestTimings.PHASE_NAMES[phase], h.getCount(),
+				h.getValueAtPercentile(50) / 1000.0, h.getValueAtPercentile(90) / 1000.0,
+				h.getValueAtPercentile(99) / 1000.0, h.getMax() / 1000.0));
 	}
 	
 	/**
@@ -121,30 +183,14 @@ public class StatisticsPageBuilder {
 	 * @param htmlSb
 	 */
 	private void connectedDomains(StringBuilder htmlSb) {
-		String root = WebServer.root;
-		File rootFolder = new File(root);
-		File[] files = rootFolder.listFiles(new FilenameFilter() {
-			
-			@Override
-			public boolean accept(File dir, String name) {
-				return name.matches("^.+_\\d+_\\d+\\.html");
-			}
-		});	
-		
-		HashSet<String> historyDomains = new HashSet<>();
-		if (files != null) {
-			for (File f : files) {
-				String fname = f.getName();
-				historyDomains.add(fname.substring(0, fname.indexOf('_')));
-			}
-		}
+		CrawlHistory history = CrawlHistory.getInstance();
 		
 		HashSet<String> connectedDomains = (HashSet<String>) cd.get(CrawlData.CONNECTED_DOMAINS);
 		htmlSb.append("<p>Connected domains:<br><ul>");
 		
 		for (String domain : connectedDomains) {
 			htmlSb.append("<li>");
-			if (historyDomains.contains(domain)) {
+			if (history.hasDomain(domain)) {
 				htmlSb.append(String.format("<a href=\"http://%s/\">%s</a>", domain, domain));
 			} else {
 				htmlSb.append(domain);
@@ -6,6 +6,9 @@ import java.io.IOException;
  */
 public abstract class Task implements Runnable {
 	
+	//When the task was submitted to a ThreadPool, for measuring the queue wait.
+	long submitNanos;
+	
 	/**
 	 * This method is called when the thread pool is closing.
 	 * Any subclass should take care for closing its own stuff. 
@@ -0,0 +1,145 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A page template, parsed once into its static byte segments and the placeholders between them.
+ * The syntax is the one of String.format that the pages use: %s is a placeholder, %% is a literal %.
+ * Rendering writes the segments and the values straight to the output, with no String of the page in between.
+ * Parsed templates are kept by file, and a template is parsed again only when its file changes -
+ * that is, when the StaticResourceCache entry of the file is replaced.
+ */
+public class Template {
+
+	private static final ConcurrentHashMap<String, Template> sTemplates = new ConcurrentHashMap<>();
+
+	//The cache entry of the file this template was parsed from
+	private final StaticResourceCache.Entry source;
+
+	//One more segment than placeholders: segment, placeholder, segment, ..., segment
+	private final byte[][] segments;
+	private final int staticLength;
+
+	private Template(StaticResourceCache.Entry source, byte[][] segments) {
+		this.source = source;
+		this.segments = segments;
+		int length = 0;
+		for (byte[] segment : segments) {
+			length += segment.length;
+		}
+		staticLength = length;
+	}
+
+	/**
+	 * Returns the parsed template of a file, parsing it if it's new or changed.
+	 * @return the template, or <code>null</code> if the file cannot be read.
+	 */
+	public static Template get(File file) {
+		StaticResourceCache.Entry entry = StaticResourceCache.getInstance().get(file);
+		if (entry == null) {
+			return null;
+		}
+
+		Template template = sTemplates.get(file.getPath());
+		if (template != null && template.source == entry) {
+			return template;
+		}
+
+		byte[] bytes = entry.getContent();
+		if (bytes == null) {
+			//Too big to be cached
+			try {
+				bytes = Files.readAllBytes(file.toPath());
+			} catch (IOException e) {
+				Log.d("Template.get() : cannot read %s", file.getPath());
+				return null;
+			}
+		}
+
+		template = parse(entry, bytes);
+		sTemplates.put(file.getPath(), template);
+		Log.d("Template.get() : parsed %s", file.getPath());
+		return template;
+	}
+
+	private static Template parse(StaticResourceCache.Entry source, byte[] bytes) {
+		ArrayList<byte[]> segments = new ArrayList<>();
+		ByteArrayOutputStream segment = new ByteArrayOutputStream();
+		int start = 0;
+
+		for (int i = 0; i < bytes.length - 1; i++) {
+			if (bytes[i] != '%') {
+				continue;
+			}
+			if (bytes[i + 1] == 's') {
+				segment.write(bytes, start, i - start);
+				segments.add(segment.toByteArray());
+				segment.reset();
+				start = i + 2;
+				i++;
+			} else if (bytes[i + 1] == '%') {
+				//Keep one of the two
+				segment.write(bytes, start, i + 1 - start);
+				start = i + 2;
+				i++;
+			}
+		}
+		segment.write(bytes, start, bytes.length - start);
+		segments.add(segment.toByteArray());
+
+		return new Template(source, segments.toArray(new byte[segments.size()][]));
+	}
+
+	/**
+	 * Encodes the values of the placeholders, once for both <code>length</code> and <code>render</code>.
+	 */
+	public static byte[][] values(String... values) {
+		byte[][] encoded = new byte[values.length][];
+		for (int i = 0; i < values.length; i++) {
+			encoded[i] = values[i] == null ? new byte[0] : values[i].getBytes();
+		}
+		return encoded;
+	}
+
+	/**
+	 * @return the length of the page rendered with the given values.
+	 */
+	public int length(byte[][] values) {
+		int length = staticLength;
+		for (int i = 0; i < values.length && i < segments.length - 1; i++) {
+			length += values[i].length;
+		}
+		return length;
+	}
+
+	/**
+	 * Writes the page. A placeholder with no value is left empty, extra values are ignored.
+	 */
+	public void render(OutputStream out, byte[][] values) throws IOException {
+		out.write(segments[0]);
+		for (int i = 1; i < segments.length; i++) {
+			if (i - 1 < values.length) {
+				out.write(values[i - 1]);
+			}
+			out.write(segments[i]);
+		}
+	}
+
+	/**
+	 * @return the page rendered with the given values.
+	 */
+	public byte[] render(byte[][] values) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length(values));
+		try {
+			render(out, values);
+		} catch (IOException e) {
+			//Cannot happen with a ByteArrayOutputStream
+			Log.e("Template.render() : %s", e.getMessage());
+		}
+		return out.toByteArray();
+	}
+}
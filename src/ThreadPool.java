@@ -1,24 +1,66 @@
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A thread pool.
  * Holds <code>maxThreads</code active threads for executing task in its blocking-queue.
+ * The queue depth, active workers and the task wait & run times are exported to Metrics, labeled by the pool name.
  *
  */
 public class ThreadPool {
 	
+	private String mName;
 	private int mMaxThreads;
 	private boolean closed = false;
 	private LinkedBlockingQueue<Task> mQ;
 	private boolean started = false;
 	private ArrayList<WorkerThread> workers;
 	
+	//Number of workers that are executing a task right now.
+	private final AtomicInteger activeWorkers = new AtomicInteger();
+	
+	private final String metricLabels;
+	private final LatencyHistogram taskWaitTime;
+	private final LatencyHistogram taskRunTime;
+	
 	public ThreadPool(int maxThreads) {
+		this("pool", maxThreads);
+	}
+	
+	/**
+	 * @param name - the pool name, used as the "pool" label of its metrics.
+	 * @param maxThreads - number of worker threads.
+	 */
+	public ThreadPool(String name, int maxThreads) {
+		mName = name;
 		mMaxThreads = maxThreads;
 		mQ = new LinkedBlockingQueue<>();
 		workers = new ArrayList<>();
+		
+		metricLabels = String.format("pool=\"%s\"", name);
+		Metrics metrics = Metrics.getInstance();
+		taskWaitTime = metrics.histogram("threadpool_task_wait_seconds", "Time tasks spent in the queue.", metricLabels);
+		taskRunTime = metrics.histogram("threadpool_task_run_seconds", "Time tasks spent running.", metricLabels);
+	}
+	
+	public String getName() {
+		return mName;
+	}
+	
+	/**
+	 * @return the number of tasks waiting in the queue.
+	 */
+	public int getQueueSize() {
+		return mQ.size();
+	}
+	
+	/**
+	 * @return the number of workers that are busy executing a task.
+	 */
+	public int getActiveWorkers() {
+		return activeWorkers.get();
 	}
 
 	/**
@@ -28,6 +70,7 @@ public class ThreadPool {
 	public void submit(Task task) {
 		if (!closed) {
 			try {
+				task.submitNanos = System.nanoTime();
 				mQ.put(task);
 			} catch (InterruptedException e) {
 				Log.d("ThreadPool.submit(task) : Could not put task in queue!");
@@ -63,6 +106,11 @@ public class ThreadPool {
 		
 		workers.clear();
 		
+		Metrics metrics = Metrics.getInstance();
+		metrics.unregister("threadpool_queue_depth", metricLabels);
+		metrics.unregister("threadpool_active_workers", metricLabels);
+		metrics.unregister("threadpool_workers", metricLabels);
+		
 		Log.d("Thread pool is shutting down");
 	}
 	
@@ -77,6 +125,26 @@ public class ThreadPool {
 		
 		started = true;
 		
+		Metrics metrics = Metrics.getInstance();
+		metrics.gauge("threadpool_queue_depth", "Tasks waiting in the queue.", metricLabels, new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return getQueueSize();
+			}
+		});
+		metrics.gauge("threadpool_active_workers", "Workers executing a task.", metricLabels, new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return getActiveWorkers();
+			}
+		});
+		metrics.gauge("threadpool_workers", "Worker threads of the pool.", metricLabels, new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return mMaxThreads;
+			}
+		});
+		
 		for (int i = 0; i < mMaxThreads; i++) {
 			WorkerThread worker = new WorkerThread();
 			workers.add(worker);
@@ -102,7 +170,15 @@ public class ThreadPool {
 			while (!closed) {
 				try {
 					Task t = mQ.take();
-					t.run();
+					long startNanos = System.nanoTime();
+					taskWaitTime.recordNanos(startNanos - t.submitNanos);
+					activeWorkers.incrementAndGet();
+					try {
+						t.run();
+					} finally {
+						activeWorkers.decrementAndGet();
+						taskRunTime.recordNanos(System.nanoTime() - startNanos);
+					}
 				} catch (InterruptedException e) {
 					if (!silentInterruption) {
 						Log.d("WorkerThread.run() : Cannot pull task from queue!");
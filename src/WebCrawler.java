@@ -1,12 +1,9 @@
-import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -52,6 +49,10 @@ public class WebCrawler {
 	private ThreadPool downloadersPool;
 	private ThreadPool analyzersPool;
 	
+	//The port scan runs alongside the crawl, the report waits for it.
+	private ThreadPool portScanPool;
+	private volatile boolean portScanPending = false;
+	
 	private ArrayList<Integer> opennedPorts;
 	
 	private HashSet<String> visitedUrls;
@@ -65,8 +66,9 @@ public class WebCrawler {
 	 * Creates the WebCrawler instance. Starting the downloaders & analyzer pools.
 	 */
 	private WebCrawler() {
-		downloadersPool = new ThreadPool(maxDownloaders);
-		analyzersPool = new ThreadPool(maxAnalyzers);
+		downloadersPool = new ThreadPool("downloaders", maxDownloaders);
+		analyzersPool = new ThreadPool("analyzers", maxAnalyzers);
+		portScanPool = new ThreadPool("portscanner", 1);
 		
 		visitedUrls = new HashSet<>();
 		opennedPorts = new ArrayList<>();
@@ -75,6 +77,54 @@ public class WebCrawler {
 		
 		downloadersPool.start();
 		analyzersPool.start();
+		portScanPool.start();
+		
+		registerMetrics();
+	}
+	
+	/**
+	 * Exports the crawl counters and the request phase histograms of the current crawl.
+	 * They are reset when a crawl finishes.
+	 */
+	private void registerMetrics() {
+		Metrics metrics = Metrics.getInstance();
+		
+		for (final String key : crawlData.getCounters().keySet()) {
+			metrics.gauge("crawler_" + key.toLowerCase(), "Counter of the current crawl.", "", new Metrics.Gauge() {
+				@Override
+				public long value() {
+					return (Long) crawlData.get(key);
+				}
+			});
+		}
+		metrics.gauge("crawler_running", "1 if a crawl is running.", "", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return getState() == State.RUNNING ? 1 : 0;
+			}
+		});
+		metrics.gauge("crawler_port_scan_running", "1 if a port scan of the current crawl is running.", "", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return isPortScanPending() ? 1 : 0;
+			}
+		});
+		metrics.gauge("crawler_downloaders_alive", "Downloader tasks queued or running.", "", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return DownloaderTask.getNumOfDownloadersAlive();
+			}
+		});
+		metrics.gauge("crawler_analyzers_alive", "Analyzer tasks queued or running.", "", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return AnalyzerTask.getNumOfAnalyzersAlive();
+			}
+		});
+		for (int phase = 0; phase < RequestTimings.NUM_OF_PHASES; phase++) {
+			String labels = String.format("phase=\"%s\"", RequestTimings.PHASE_NAMES[phase].replace(' ', '_'));
+			metrics.histogram("crawler_request_phase_seconds", "Crawler request phases of the current crawl.", labels, crawlData.getLatency(phase));
+		}
 	}
 
 	public static WebCrawler getInstance() {
@@ -107,7 +157,7 @@ public class WebCrawler {
 	 */
 	private void setState(State s) {
 		synchronized(stateLock) {
-			Log.d("Crawler state is " + s.toString());
+			Log.d("Crawler state is %s", s);
 			state = s;
 		}
 	}
@@ -123,6 +173,21 @@ public class WebCrawler {
 		return crawlData;
 	}
 	
+	public ThreadPool getDownloadersPool() {
+		return downloadersPool;
+	}
+	
+	public ThreadPool getAnalyzersPool() {
+		return analyzersPool;
+	}
+	
+	/**
+	 * @return <code>true</code> while the port scan of the current crawl is running.
+	 */
+	public boolean isPortScanPending() {
+		return portScanPending;
+	}
+	
 	public HashSet<String> getVisitedUrls() {
 		return visitedUrls;
 	}
@@ -132,45 +197,10 @@ public class WebCrawler {
 	}
 	
 	/**
-	 * @return a list of past crawled domains.
+	 * @return the report files of the past crawls, sorted.
 	 */
-	public ArrayList<String> getCrawlingHistory() {
-		ArrayList<String> result = new ArrayList<>();
-		
-		try {
-			String root = WebServer.root;
-			File rootFolder = new File(root);
-			
-			//List files with a certain name pattern (of statistics pages).
-			File[] files = rootFolder.listFiles(new FilenameFilter() {
-				
-				@Override
-				public boolean accept(File dir, String name) {
-					//list the file only if the name matches the pattern
-					return name.matches("^.+_\\d+_\\d+\\.html");
-				}
-			});	
-			
-			//Convert the array into a list
-			if (files != null) {
-				for (File f : files) {
-					result.add(f.getName());
-				}
-			}
-			
-			//Sort the list for the good sake.
-			Collections.sort(result, new Comparator<String>() {
-
-				@Override
-				public int compare(String o1, String o2) {
-					return o1.compareTo(o2);
-				}
-			});
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		
-		return result;
+	public List<String> getCrawlingHistory() {
+		return CrawlHistory.getInstance().getReportFiles();
 	}
 	
 	/**
@@ -190,25 +220,28 @@ public class WebCrawler {
 	}
 	
 	/**
-	 * Starts the crawling process. If requested a port scan is made, and also handling robots.txt as requested.
+	 * Starts the crawling process. If requested a port scan is started alongside it, and also handling robots.txt as requested.
 	 * 
 	 * @param aHost - the given host to crawl on.
 	 * @param portScan - if to perform a port scan
+	 * @param forceRescan - if to scan even when a recent scan of the host is cached
 	 * @param disrespectRobotsTxt
 	 * @throws CrawlingException if there's an error accessing the given host.
 	 */
-	public void start(String aHost, boolean portScan, boolean disrespectRobotsTxt) throws CrawlingException {
-		Log.d(String.format("WebCrawler.start -> host = %s", aHost));
+	public void start(String aHost, boolean portScan, boolean forceRescan, boolean disrespectRobotsTxt) throws CrawlingException {
+		Log.d("WebCrawler.start -> host = %s", aHost);
 		
 		//complete the host url
 		String fixedHost = getFixedHostUrl(aHost);
 		
-		Log.d(String.format("WebCrawler.start -> fixed host = %s", fixedHost));
+		Log.d("WebCrawler.start -> fixed host = %s", fixedHost);
 		
+		String host;
 		try {
 			//Make sure that the host is reachable.
 			HttpUrl hostUrlObj = new HttpUrl(fixedHost);
-			InetAddress.getByName(hostUrlObj.getHost()).isReachable(1000);
+			host = hostUrlObj.getHost();
+			InetAddress.getByName(host).isReachable(1000);
 			hostUrl = fixedHost;
 		} catch (UnknownHostException e) {
 			throw new CrawlingException("Host is unknown");
@@ -217,13 +250,16 @@ public class WebCrawler {
 		}
 		
 		if (portScan) {
-			//Starts the multi-threaded port scan
-			try {
-				PortScanner ps = new PortScanner(fixedHost);
-				opennedPorts = ps.getOpennedPortsSync(1, 1024);
+			ArrayList<Integer> cachedPorts = forceRescan ? null
+					: PortScanCache.getInstance().get(host, PortScanner.firstPort, PortScanner.lastPort);
+			if (cachedPorts != null) {
+				Log.d("WebCrawler.start -> the ports of %s were scanned lately, not scanning", host);
+				opennedPorts = cachedPorts;
 				crawlData.put(CrawlData.OPENNED_PORTS, opennedPorts);
-			} catch (PortScannerException e) {
-				e.printStackTrace();
+			} else {
+				//The crawl doesn't wait for it, checkIfFinished does.
+				portScanPending = true;
+				portScanPool.submit(new PortScanTask(host));
 			}
 		}
 		
@@ -241,13 +277,14 @@ public class WebCrawler {
 	}
 	
 	/**
-	 * Each time a downloader or analyzer task is finished, it checks if the process is done.
+	 * Each time a downloader or analyzer task (or the port scan) is finished, it checks if the process is done.
 	 * When it is, th statistics page is built and the crawler resets.
 	 */
 	public synchronized void checkIfFinished() {
-		if (getState().equals(State.RUNNING) && AnalyzerTask.getNumOfAnalyzersAlive() == 0 && DownloaderTask.getNumOfDownloadersAlive() == 0) {
+		if (getState().equals(State.RUNNING) && AnalyzerTask.getNumOfAnalyzersAlive() == 0 && DownloaderTask.getNumOfDownloadersAlive() == 0
+				&& !portScanPending) {
 			buildStatisticsPage();
-			Log.d("Finished crawling! Sending email to " + email);
+			Log.d("Finished crawling! Sending email to %s", email);
 			sendEmail();
 			reset();
 		}
@@ -296,10 +333,51 @@ public class WebCrawler {
 		}
 	}
 	
+	/**
+	 * Scans the ports of the crawled host on the port scan pool, and joins the open ports into the CrawlData
+	 * (and the PortScanCache). Its progress is counted as it goes.
+	 */
+	private class PortScanTask extends Task {
+
+		private final String host;
+		private final PortScanner scanner;
+
+		PortScanTask(String host) {
+			this.host = host;
+			scanner = new PortScanner(host);
+		}
+
+		@Override
+		public void run() {
+			scanner.setOnSinglePortScannedListener(new PortScanner.IOnSinglePortScanned() {
+				@Override
+				public void onSinglePortScanned(int port, boolean isOpen) {
+					crawlData.add(CrawlData.NUM_OF_PORTS_SCANNED, 1);
+				}
+			});
+
+			try {
+				opennedPorts = scanner.getOpennedPortsSync(PortScanner.firstPort, PortScanner.lastPort);
+				crawlData.put(CrawlData.OPENNED_PORTS, opennedPorts);
+				PortScanCache.getInstance().put(host, PortScanner.firstPort, PortScanner.lastPort, opennedPorts);
+			} catch (PortScannerException e) {
+				Log.w("WebCrawler : port scan failed: %s", e.getMessage());
+			} finally {
+				portScanPending = false;
+				checkIfFinished();
+			}
+		}
+
+		@Override
+		protected void shutdown() throws IOException {
+			scanner.shutdown();
+		}
+	}
+
 	private void buildStatisticsPage() {
 		StatisticsPageBuilder pageBuilder = new StatisticsPageBuilder(crawlData);
 		if (!pageBuilder.build()) {
-			Log.d(String.format("Error creating statistics page for %s!", hostUrl));
+			Log.d("Error creating statistics page for %s!", hostUrl);
 		}
 	}
 
@@ -1,8 +1,9 @@
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 
 /**
@@ -18,11 +19,44 @@ public class WebServer {
 	public static String root = "C:/serverroot/";
 	public static String defaultPage = "index.html";
 	
-	public static final int SOCKET_TIMEOUT_MILLIS = 30*1000;
+	/** The largest chunk of a chunked response, in bytes */
+	public static int chunkSize = 1024;
+	
+	/** The most pipelined requests of a connection that are handled before their responses are all sent */
+	public static int maxPipelinedRequests = 8;
+	
+	/** How long a connection may wait on the client before it is closed */
+	public static int idleTimeoutMillis = 30*1000;
+	
 	public final static String CRLF = "\r\n";
 	
-	private ServerSocket mServerSocket;
-	private boolean stopListening = false;
+	/** Server-sent events of the crawl progress. Not a file, so it is not looked up in root. */
+	public static final String PROGRESS_PATH = "/crawlProgress";
+	
+	/** Metrics in the Prometheus text format. Not a file either. */
+	public static final String METRICS_PATH = "/metrics";
+	
+	//Logging configuration, applied once the config file is read.
+	private Log.Level logLevel = Log.Level.DEBUG;
+	private String logFile = null;
+	private long logMaxBytes = 10 * 1024 * 1024;
+	private int logMaxFiles = 5;
+	private String accessLogFile = "access.log";
+	private long accessLogMaxBytes = 10 * 1024 * 1024;
+	private int accessLogMaxFiles = 5;
+	
+	/** Accepts on a blocking ServerSocket, a ListenTask (and a worker thread) per connection */
+	public static final String SERVER_MODE_BLOCKING = "blocking";
+	
+	/** Event loops multiplex the connections, workers only handle requests */
+	public static final String SERVER_MODE_NIO = "nio";
+	
+	private String serverMode = SERVER_MODE_BLOCKING;
+	private int eventLoops = 2;
+	
+	private ServerSocketChannel[] mListeners;
+	private NioServer mNioServer;
+	private volatile boolean stopListening = false;
 
 	/**
 	 * Reads the configuration file and starts the thread pool.
@@ -32,25 +66,47 @@ public class WebServer {
 	 */
 	public WebServer(String configFilePath) throws NumberFormatException, IOException {
 		parseConfigFile(configFilePath);
+		//Loads the crawl history index of the root
+		CrawlHistory.getInstance();
 		startThreadPool();
 	}
 	
 	/**
-	 * Initizlising a <code>ServerSocket</code>, accepting new connections until the web server is closed
+	 * Initizlising the listening sockets, accepting new connections until the web server is closed.
+	 * There are <code>ServerSockets.acceptors</code> accepting threads, this one included.
 	 * @throws IOException
 	 */
 	private void startListening() throws IOException {
 		
+		if (SERVER_MODE_NIO.equals(serverMode)) {
+			startNioServer();
+			return;
+		}
+		
 		try {
-			Log.d(String.format("Server is listening on port %d", port));
+			Log.d("Server is listening on port %d", port);
 			
-			mServerSocket = new ServerSocket(port);
+			//Accepted through channels, so that static files can be sent with FileChannel.transferTo
+			mListeners = ServerSockets.open(port, Math.max(1, ServerSockets.acceptors));
 			
-			while (!stopListening) {
-				Socket socket = mServerSocket.accept();
-				Log.d("New connection accepted! Submitting to queue");
-				pool.submit(new ListenTask(socket));
+			for (int i = 1; i < ServerSockets.acceptors; i++) {
+				final int acceptor = i;
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							acceptConnections(acceptor);
+						} catch (IOException e) {
+							if (!stopListening) {
+								Log.e("Acceptor %d stopped: %s", acceptor, e.getMessage());
+							}
+						}
+					}
+				}, "acceptor-" + i);
+				thread.setDaemon(true);
+				thread.start();
 			}
+			acceptConnections(0);
 			
 			Log.d("Server finished listening successfully. Shutting down...");
 			shutdown();
@@ -61,19 +117,85 @@ public class WebServer {
 		}
 	}
 	
+	/**
+	 * Accepts connections and submits them to the pool, until the server is closed.
+	 * @param acceptor - the number of the accepting thread.
+	 * @throws IOException if the listener fails, or is closed.
+	 */
+	private void acceptConnections(int acceptor) throws IOException {
+		ServerSocketChannel listener = mListeners[acceptor % mListeners.length];
+		Metrics.Counter accepted = ServerMetrics.acceptorCounter(acceptor);
+		
+		while (!stopListening) {
+			SocketChannel channel = listener.accept();
+			ServerMetrics.accepted(accepted);
+			
+			//A connection holds a worker for as long as it's open, so the queue is of connections.
+			if (!AdmissionControl.admitConnection()) {
+				rejectConnection(channel);
+				continue;
+			}
+			if (!AdmissionControl.admitRequest(pool)) {
+				ServerMetrics.connectionClosed();
+				rejectConnection(channel);
+				continue;
+			}
+			
+			Log.d("New connection accepted! Submitting to queue");
+			ServerSockets.configure(channel);
+			pool.submit(new ListenTask(channel.socket()));
+		}
+	}
+	
+	/**
+	 * Fails a connection fast with a 503, when the server is over its limits.
+	 */
+	private void rejectConnection(SocketChannel channel) {
+		Log.d("Server is overloaded, rejecting a connection");
+		try {
+			//Small enough for the socket buffer - this doesn't wait for the client.
+			channel.configureBlocking(false);
+			channel.write(ByteBuffer.wrap(AdmissionControl.serviceUnavailable()));
+		} catch (IOException e) {
+			Log.d("WebServer.rejectConnection() : %s", e.getMessage());
+		} finally {
+			EventLoop.closeQuietly(channel);
+		}
+		ServerMetrics.responseSent(HTTP_CODE.ERR_503_SERVICE_UNAVAILABLE, AdmissionControl.serviceUnavailable().length);
+		AccessLog.log(ServerSockets.clientAddress(channel.socket()), null, null, HTTP_CODE.ERR_503_SERVICE_UNAVAILABLE,
+				AdmissionControl.serviceUnavailable().length, 0);
+	}
+	
+	/**
+	 * Starts the event loops, and waits on them until the server is shut down.
+	 * @throws IOException if the port cannot be bound.
+	 */
+	private void startNioServer() throws IOException {
+		try {
+			mNioServer = new NioServer(port, eventLoops, ServerSockets.acceptors, pool);
+			mNioServer.start();
+			mNioServer.awaitTermination();
+			
+			Log.d("Server finished listening successfully. Shutting down...");
+			shutdown();
+		} catch (InterruptedException e) {
+			Log.d("Interrupted while listening. Shutting down...");
+			shutdown();
+		} catch (IOException e) {
+			Log.d("Error while listening!");
+			throw e;
+		}
+	}
+	
 	/**
 	 * Shutdown the server. Kill the SocketServer & thread pool.
 	 */
 	private void shutdown() {
 		stopListening = true;
-		try {
-			if (mServerSocket != null) {
-				// This case is possible because the constructor may throw exception
-				mServerSocket.close();
-			}
-		} catch (IOException e) {
-			Log.d("WebServer.shutdown() : cannot close server socket!");
-			//e.printStackTrace();
+		// mListeners may be null, because the constructor may throw exception
+		ServerSockets.close(mListeners);
+		if (mNioServer != null) {
+			mNioServer.shutdown();
 		}
 		if (pool != null) {
 			pool.shutDown();
@@ -86,7 +208,7 @@ public class WebServer {
 	 */
 	private void startThreadPool() {
 		Log.d("Starting thread pool");
-		pool = new ThreadPool(maxThreads);
+		pool = new ThreadPool("webserver", maxThreads);
 		// creates the threads and runs them
 		pool.start();
 	}
@@ -123,15 +245,100 @@ public class WebServer {
 						WebCrawler.maxDownloaders = Integer.valueOf(val);
 					} else if (key.equals("maxAnalyzers")) {
 						WebCrawler.maxAnalyzers = Integer.valueOf(val);
+					} else if (key.equals("portScanConcurrency")) {
+						PortScanner.maxConcurrentConnects = Math.max(1, Integer.valueOf(val));
+					} else if (key.equals("portScanTimeoutMillis")) {
+						PortScanner.connectTimeoutMillis = Integer.valueOf(val);
+					} else if (key.equals("portScanMinTimeoutMillis")) {
+						PortScanner.minTimeoutMillis = Integer.valueOf(val);
+					} else if (key.equals("portScanMaxRetries")) {
+						PortScanner.maxRetries = Math.max(0, Integer.valueOf(val));
+					} else if (key.equals("portScanCacheTtlSeconds")) {
+						PortScanCache.ttlSeconds = Long.valueOf(val);
+					} else if (key.equals("portScanFirstPort")) {
+						PortScanner.firstPort = Integer.valueOf(val);
+					} else if (key.equals("portScanLastPort")) {
+						PortScanner.lastPort = Integer.valueOf(val);
 					} else if (key.equals("imageExtensions")) {
 						WebCrawler.imageExtensions = extStringToList(val);
 					} else if (key.equals("videoExtensions")) {
 						WebCrawler.videoExtensions = extStringToList(val);
 					} else if (key.equals("documentExtensions")) {
 						WebCrawler.documentExtensions = extStringToList(val);
+					} else if (key.equals("serverMode")) {
+						serverMode = val.toLowerCase();
+					} else if (key.equals("eventLoops")) {
+						eventLoops = Integer.valueOf(val);
+					} else if (key.equals("compression")) {
+						Compression.enabled = Boolean.valueOf(val);
+					} else if (key.equals("compressionMinBytes")) {
+						Compression.minBytes = Integer.valueOf(val);
+					} else if (key.equals("chunkSize")) {
+						chunkSize = Integer.valueOf(val);
+					} else if (key.equals("maxConnections")) {
+						AdmissionControl.maxConnections = Integer.valueOf(val);
+					} else if (key.equals("maxQueuedRequests")) {
+						AdmissionControl.maxQueuedRequests = Integer.valueOf(val);
+					} else if (key.equals("retryAfterSeconds")) {
+						AdmissionControl.retryAfterSeconds = Integer.valueOf(val);
+					} else if (key.equals("progressMaxBlockingStreams")) {
+						CrawlProgressStream.maxBlockingStreams = Math.max(1, Integer.valueOf(val));
+					} else if (key.equals("acceptors")) {
+						ServerSockets.acceptors = Math.max(1, Integer.valueOf(val));
+					} else if (key.equals("backlog")) {
+						ServerSockets.backlog = Integer.valueOf(val);
+					} else if (key.equals("tcpNoDelay")) {
+						ServerSockets.tcpNoDelay = Boolean.valueOf(val);
+					} else if (key.equals("sendBufferSize")) {
+						ServerSockets.sendBufferSize = Integer.valueOf(val);
+					} else if (key.equals("receiveBufferSize")) {
+						ServerSockets.receiveBufferSize = Integer.valueOf(val);
+					} else if (key.equals("idleTimeoutMillis")) {
+						idleTimeoutMillis = Integer.valueOf(val);
+					} else if (key.equals("http2")) {
+						Http2Connection.enabled = Boolean.valueOf(val);
+					} else if (key.equals("http2MaxConcurrentStreams")) {
+						Http2Connection.maxConcurrentStreams = Math.max(1, Integer.valueOf(val));
+					} else if (key.equals("maxPipelinedRequests")) {
+						maxPipelinedRequests = Math.max(1, Integer.valueOf(val));
+					} else if (key.equals("cacheMaxBytes")) {
+						StaticResourceCache.maxBytes = Long.valueOf(val);
+					} else if (key.equals("cacheMaxEntryBytes")) {
+						StaticResourceCache.maxEntryBytes = Integer.valueOf(val);
+					} else if (key.equals("logLevel")) {
+						logLevel = Log.Level.valueOf(val.toUpperCase());
+					} else if (key.equals("logFile")) {
+						logFile = val;
+					} else if (key.equals("logMaxBytes")) {
+						logMaxBytes = Long.valueOf(val);
+					} else if (key.equals("logMaxFiles")) {
+						logMaxFiles = Integer.valueOf(val);
+					} else if (key.equals("rateLimit")) {
+						RateLimiter.enabled = Boolean.valueOf(val);
+					} else if (key.equals("rateLimitRequestsPerSecond")) {
+						RateLimiter.requestsPerSecond = Double.valueOf(val);
+					} else if (key.equals("rateLimitRequestBurst")) {
+						RateLimiter.requestBurst = Math.max(1, Integer.valueOf(val));
+					} else if (key.equals("rateLimitCrawlsPerMinute")) {
+						RateLimiter.crawlsPerMinute = Double.valueOf(val);
+					} else if (key.equals("rateLimitCrawlBurst")) {
+						RateLimiter.crawlBurst = Math.max(1, Integer.valueOf(val));
+					} else if (key.equals("accessLog")) {
+						AccessLog.enabled = Boolean.valueOf(val);
+					} else if (key.equals("accessLogFile")) {
+						accessLogFile = val;
+					} else if (key.equals("accessLogMaxBytes")) {
+						accessLogMaxBytes = Long.valueOf(val);
+					} else if (key.equals("accessLogMaxFiles")) {
+						accessLogMaxFiles = Integer.valueOf(val);
 					}
 				}
 			}
+			
+			Log.configure(logLevel, logFile, logMaxBytes, logMaxFiles);
+			if (AccessLog.enabled) {
+				AccessLog.configure(accessLogFile, accessLogMaxBytes, accessLogMaxFiles);
+			}
 		} catch (Exception e) {
 			Log.d("Error in reading or parsing config file");
 			//e.printStackTrace();
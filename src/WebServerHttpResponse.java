@@ -2,9 +2,14 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 public class WebServerHttpResponse {
 
@@ -14,11 +19,25 @@ public class WebServerHttpResponse {
     protected HashMap<String, String> headers;
     protected String path;
     protected byte[] body;
+    //A static file body, sent after the head by the caller instead of being read into body.
+    protected FileRegion fileBody;
+    //The content-type & content-length lines of a cached file, replacing those headers.
+    protected String headerBlock;
+    //The encoding the client accepts (Compression.ENCODING_), and the one a chunked body is compressed with while streamed.
+    protected int acceptedEncoding = Compression.ENCODING_IDENTITY;
+    protected int streamEncoding = Compression.ENCODING_IDENTITY;
     protected boolean isChunked;
-    private final int CHUNK_SIZE = 1024;
+    //A static file streamed as a chunked body, instead of being read into body.
+    protected File chunkedFile;
+    //A page template and its values, rendered straight to the output instead of into body.
+    protected Template template;
+    protected byte[][] templateValues;
 
     WebServerHttpRequest request;
 
+    //The Retry-After of a 429, in seconds
+    private int retryAfterSeconds = 1;
+
     public WebServerHttpResponse(HTTP_CODE code) {
         this.code = code;
         headers = new HashMap<>();
@@ -27,6 +46,25 @@ public class WebServerHttpResponse {
     public void setCode(HTTP_CODE code) {
         this.code = code;
     }
+
+    /**
+     * Sets the Retry-After of a 429.
+     */
+    public void setRetryAfter(int seconds) {
+        this.retryAfterSeconds = seconds;
+    }
+
+    public HTTP_CODE getCode() {
+        return code;
+    }
+
+    /**
+     * @return the file to send right after the bytes returned by <code>buildResponse</code>,
+     * or <code>null</code> if the response is all in them. The caller must close it.
+     */
+    public FileRegion getFileBody() {
+        return fileBody;
+    }
     
     private void validateHTTPCode() {
 		if (code == null) {
@@ -71,8 +109,10 @@ public class WebServerHttpResponse {
                 isChunked = true;
             } else {
                 isChunked = false;
-                if (body != null ) {
-                    contentLength = body.length;
+                if (fileBody != null) {
+                    headers.put("content-length", String.valueOf(fileBody.getCount()));
+                } else if (body != null || template != null) {
+                    contentLength = bodyLength();
                     headers.put("content-length", String.valueOf(contentLength));
                 } else {
                     contentLength = 0;
@@ -100,47 +140,38 @@ public class WebServerHttpResponse {
             	return;
             }
 
-            // determine content-type
-            if (path.endsWith(".jpg") || path.endsWith(".png") || path.endsWith(".bmp") || path.endsWith(".gif")) {
-                headers.put("content-type", CONTENT_TYPE.IMAGE.toString());
-            } else if (path.endsWith(".html")) {
-                headers.put("content-type", CONTENT_TYPE.TEXT_HTML.toString());
-            } else if (path.endsWith(".ico")) {
-                headers.put("content-type", CONTENT_TYPE.ICON.toString());
-            } else {
-                headers.put("content-type", CONTENT_TYPE.APP_OCTSTREAM.toString());
-            }
+            headers.put("content-type", contentTypeOf(path).toString());
+        }
+    }
+
+    /**
+     * Determines the content type by the file extension
+     */
+    public static CONTENT_TYPE contentTypeOf(String path) {
+        if (path.endsWith(".jpg") || path.endsWith(".png") || path.endsWith(".bmp") || path.endsWith(".gif")) {
+            return CONTENT_TYPE.IMAGE;
+        } else if (path.endsWith(".html")) {
+            return CONTENT_TYPE.TEXT_HTML;
+        } else if (path.endsWith(".ico")) {
+            return CONTENT_TYPE.ICON;
+        } else {
+            return CONTENT_TYPE.APP_OCTSTREAM;
         }
     }
 
     /**
      * Reads from the given file into a byte[]
-     * and sets params_info with the sent content from the request
-     * when params_info is requested
      * @param file the file to read from
      * @return byte[] with the bytes of the file which was read
      */
     private byte[] readFile(File file) {
         byte[] bFile;
         try {
-            FileInputStream fis = new FileInputStream(file);
-            bFile = new byte[(int)file.length()];
-            // read until the end of the stream.
-            while(fis.available() != 0) {
-                fis.read(bFile, 0, bFile.length);
-            }
-
-            if (file.getAbsolutePath().endsWith("params_info.html")) {
-                //If the file is params_info.html we fill the content with the POST data
-            	bFile = buildParamsInfo(bFile);
-            } else if (file.getAbsolutePath().endsWith("index.html")) {
-            	bFile = buildIndex(bFile);
-            } else if (file.getAbsolutePath().endsWith("execResult.html")) {
-            	//Starts the crawl
-            	bFile = startCrawler(bFile);
-            }
-            if (fis != null) {
-                fis.close();
+            StaticResourceCache.Entry cached = StaticResourceCache.getInstance().get(file);
+            if (cached != null && cached.getContent() != null) {
+                bFile = cached.getContent();
+            } else {
+                bFile = Files.readAllBytes(file.toPath());
             }
         }
         catch(IOException e) {
@@ -151,16 +182,242 @@ public class WebServerHttpResponse {
         return bFile;
     }
     
+    /**
+     * @return <code>true</code> if the file is a template that is filled in per request, and cannot be sent as is.
+     */
+    private boolean isTemplate(File file) {
+        String filePath = file.getAbsolutePath();
+        return filePath.endsWith("params_info.html") || filePath.endsWith("index.html") || filePath.endsWith("execResult.html");
+    }
+
+    /**
+     * Sets the body of a successfully requested template: its parsed template, and the values filled in for this request.
+     * params_info is filled with the POST data, index with the crawling history, and execResult starts the crawl.
+     * @return <code>false</code> if the file isn't a template, or cannot be read.
+     */
+    private boolean setTemplateBody(File file) {
+        if (code != HTTP_CODE.C200_OK || !isTemplate(file)) {
+            return false;
+        }
+
+        template = Template.get(file);
+        if (template == null) {
+            return false;
+        }
+
+        try {
+            String filePath = file.getAbsolutePath();
+            if (filePath.endsWith("params_info.html")) {
+                templateValues = Template.values(buildParamsInfo());
+            } else if (filePath.endsWith("index.html")) {
+                templateValues = Template.values(buildIndex());
+            } else {
+                templateValues = Template.values(startCrawler());
+            }
+        } catch (IOException e) {
+            Log.d("Could not fill in the template");
+            template = null;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return <code>true</code> if the client asked for a chunked response.
+     */
+    private boolean isChunkedRequested() {
+        return request.getHeaders() != null && "yes".equals(request.getHeaders().get("chunked"));
+    }
+
+    /**
+     * Sets the body of a successfully requested static file: from the cache if it's small,
+     * or as a file region that is sent as is, straight from the disk to the socket.
+     * A chunked response streams the file.
+     * The file's validators are sent with it, and if the client's copy is still valid the response is a bodiless 304.
+     * A Range request gets only the requested spans of the file, see <code>setRangeBody</code>.
+     * @return <code>false</code> if the file must be read into memory (a template, or the file cannot be opened).
+     */
+    private boolean setStaticBody(File file) {
+        if (code != HTTP_CODE.C200_OK || isTemplate(file)) {
+            return false;
+        }
+
+        StaticResourceCache cache = StaticResourceCache.getInstance();
+        StaticResourceCache.Entry cached = cache.get(file);
+        if (cached == null) {
+            return false;
+        }
+
+        boolean compressible = Compression.enabled && Compression.isCompressible(cached.getContentType());
+        boolean chunked = isChunkedRequested();
+
+        // ranges are of the file as is, never of a compressed variant
+        List<long[]> ranges = null;
+        String range = request.getHeaders().get("range");
+        if (range != null && !chunked && request.getHttpMethod() == HTTP_METHOD.GET && isRangeCurrent(cached)) {
+            ranges = HTTPRequestParseUtil.parseRanges(range, cached.getLength());
+        }
+
+        // the encoding the file will be sent with, which has a tag of its own
+        int encoding = Compression.ENCODING_IDENTITY;
+        if (ranges == null && compressible && (!chunked || cached.getLength() >= Compression.minBytes) && (chunked || cached.getContent() != null)) {
+            encoding = acceptedEncoding;
+        }
+        // compressed once, then served from the cache. Its encoding may be identity if compressing didn't pay.
+        StaticResourceCache.Variant variant = null;
+        if (encoding != Compression.ENCODING_IDENTITY && !chunked) {
+            variant = cache.getCompressed(cached, encoding);
+            encoding = variant.getEncoding();
+        }
+        String etag = cached.getETag(encoding);
+
+        headers.put("etag", etag);
+        headers.put("last-modified", cached.getLastModifiedDate());
+        headers.put("accept-ranges", "bytes");
+        if (compressible) {
+            headers.put("vary", "Accept-Encoding");
+        }
+
+        if (isNotModified(cached, etag)) {
+            code = HTTP_CODE.C304_NOT_MODIFIED;
+            headers.remove("content-type");
+            return true;
+        }
+
+        if (ranges != null) {
+            return setRangeBody(file, cached, ranges);
+        }
+
+        if (chunked) {
+            chunkedFile = file;
+            return true;
+        }
+
+        if (cached.getContent() != null) {
+            if (variant != null) {
+                body = variant.getContent();
+                headerBlock = variant.getHeaderBlock();
+            } else {
+                body = cached.getContent();
+                headerBlock = cached.getHeaderBlock();
+            }
+            headers.remove("content-type");
+            return true;
+        }
+
+        fileBody = openFileRegion(file);
+        return fileBody != null;
+    }
+
+    /**
+     * Evaluates the conditional headers of a GET or HEAD. If-None-Match wins over If-Modified-Since.
+     * @return <code>true</code> if the client's cached copy of the file is still valid.
+     */
+    private boolean isNotModified(StaticResourceCache.Entry cached, String etag) {
+        HTTP_METHOD method = request.getHttpMethod();
+        if (method != HTTP_METHOD.GET && method != HTTP_METHOD.HEAD) {
+            return false;
+        }
+
+        String ifNoneMatch = request.getHeaders().get("if-none-match");
+        if (ifNoneMatch != null) {
+            return HTTPRequestParseUtil.matchesETag(ifNoneMatch, etag);
+        }
+
+        String ifModifiedSince = request.getHeaders().get("if-modified-since");
+        if (ifModifiedSince == null) {
+            return false;
+        }
+        if (ifModifiedSince.equals(cached.getLastModifiedDate())) {
+            // the client echoes our date back - no need to parse it
+            return true;
+        }
+        long since = HTTPRequestParseUtil.parseHttpDate(ifModifiedSince);
+        // HTTP dates have a resolution of seconds
+        return since != -1 && cached.getLastModified() / 1000 <= since / 1000;
+    }
+
+    /**
+     * Evaluates If-Range: the ranges are sent only if the client's partial copy is of the current file.
+     * Only a strong ETag, or the exact Last-Modified date, validates it.
+     * @return <code>true</code> if the Range header applies.
+     */
+    private boolean isRangeCurrent(StaticResourceCache.Entry cached) {
+        String ifRange = request.getHeaders().get("if-range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(cached.getETag(Compression.ENCODING_IDENTITY));
+        }
+        return ifRange.equals(cached.getLastModifiedDate());
+    }
+
+    /**
+     * Sets a 206 body of the requested spans of the file. They're sent as file regions, so only they are read.
+     * A single span is the body itself, several are parts of a multipart/byteranges body.
+     * If none is satisfiable the response is a 416.
+     * @param ranges - the spans, sorted & disjoint.
+     * @return <code>false</code> if the file cannot be opened.
+     */
+    private boolean setRangeBody(File file, StaticResourceCache.Entry cached, List<long[]> ranges) {
+        long length = cached.getLength();
+        if (ranges.isEmpty()) {
+            code = HTTP_CODE.ERR_416_RANGE_NOT_SATISFIABLE;
+            headers.put("content-range", "bytes */" + length);
+            headers.put("content-type", CONTENT_TYPE.TEXT_HTML.toString());
+            body = getDefaultResponseContent();
+            return true;
+        }
+
+        try {
+            fileBody = FileRegion.open(file);
+        } catch (IOException e) {
+            Log.d("Could not open file in given path");
+            return false;
+        }
+        code = HTTP_CODE.C206_PARTIAL_CONTENT;
+
+        if (ranges.size() == 1) {
+            long[] span = ranges.get(0);
+            headers.put("content-range", String.format("bytes %d-%d/%d", span[0], span[1] - 1, length));
+            fileBody.addSpan(span[0], span[1]);
+            return true;
+        }
+
+        String contentType = headers.get("content-type");
+        String boundary = "RANGE_" + Long.toHexString(System.nanoTime());
+        headers.put("content-type", "multipart/byteranges; boundary=" + boundary);
+        for (long[] span : ranges) {
+            StringBuilder partHead = new StringBuilder();
+            partHead.append(WebServer.CRLF).append("--").append(boundary).append(WebServer.CRLF);
+            partHead.append("content-type: ").append(contentType).append(WebServer.CRLF);
+            partHead.append(String.format("content-range: bytes %d-%d/%d", span[0], span[1] - 1, length)).append(WebServer.CRLF);
+            partHead.append(WebServer.CRLF);
+            fileBody.addBytes(partHead.toString().getBytes());
+            fileBody.addSpan(span[0], span[1]);
+        }
+        fileBody.addBytes((WebServer.CRLF + "--" + boundary + "--" + WebServer.CRLF).getBytes());
+        return true;
+    }
+
+    private FileRegion openFileRegion(File file) {
+        try {
+            return new FileRegion(file);
+        } catch (IOException e) {
+            Log.d("Could not open file in given path");
+            return null;
+        }
+    }
+
     /**
      * Creates and starts the crawler. Return the HTML response to the caller:
      * if it succeeded or not.
-     * @param bFile - the response HTML template.
-     * @return
+     * @return the value of the execResult template.
      */
-    private byte[] startCrawler(byte[] bFile) {
+    private String startCrawler() {
     	
     	WebCrawler crawler = WebCrawler.getInstance();
-    	String html = new String(bFile);
     	
     	//form placeholder
     	String formHolder = "";
@@ -179,6 +436,7 @@ public class WebServerHttpResponse {
 				HashMap<String, String> getParams = request.getPostParamsMap();
 				String host = URLDecoder.decode(getParams.get("txtDomain"),"utf-8");
 				boolean portScan = getParams.get("cbPortScan") != null && getParams.get("cbPortScan").equals("on");
+				boolean forceRescan = getParams.get("cbForceRescan") != null && getParams.get("cbForceRescan").equals("on");
 				boolean disrespectRobotsTxt = getParams.get("cbDisrespectRobots") != null && getParams.get("cbDisrespectRobots").equals("on");
                 String email = getParams.get("txtMail");
                 
@@ -188,7 +446,7 @@ public class WebServerHttpResponse {
                 }
                 
                 //Start the crawling flow
-				crawler.start(host, portScan, disrespectRobotsTxt);
+				crawler.start(host, portScan, forceRescan, disrespectRobotsTxt);
     			formHolder = "Started crawler successfully!";
 			} catch (CrawlingException | UnsupportedEncodingException e) {
 				formHolder = new String(readFile(new File("crawler_form.html")));
@@ -198,20 +456,16 @@ public class WebServerHttpResponse {
     	}
     	
     	//Fill in the HTML response to the caller. formHolder holds the message "started sccessfully" or "failed".
-    	html = String.format(html, formHolder);
-    	
-		return html.getBytes();
+		return formHolder;
 	}
     
     /**
-     * Builds the index.html page. Loads the crawling history dynamically.
-     * @param bFile - the HTML template.
-     * @return the HTML page with a crawling history.
+     * Builds the crawling history of the index.html page.
+     * @return the value of the index template.
      * @throws IOException if there's any error reading the crawling history.
      */
-	private byte[] buildIndex(byte[] bFile) throws IOException {
+	private String buildIndex() throws IOException {
     	
-    	String indexHtml = new String(bFile);
     	StringBuilder historyHolderSb = new StringBuilder();    	
 		
     	WebCrawler crawler = WebCrawler.getInstance();
@@ -219,12 +473,13 @@ public class WebServerHttpResponse {
 			historyHolderSb.append(String.format("<a href=\"%s\">%s</a><br>", link, link.replace("_", "-")));
 		}
     	
-    	indexHtml = String.format(indexHtml, historyHolderSb.toString());
-    	
-    	return indexHtml.getBytes();
+    	return historyHolderSb.toString();
     }
     
-    private byte[] buildParamsInfo(byte[] bFile) throws IOException {
+    /**
+     * @return the values of the params_info template, the POST data. Empty if there was no POST.
+     */
+    private String[] buildParamsInfo() throws IOException {
     	if (request.getPostParamsMap() != null) {
             String cbox1Value = request.getPostParamsMap().get("cbox1");
             String textarea1Value = request.getPostParamsMap().get("textarea1");
@@ -241,12 +496,10 @@ public class WebServerHttpResponse {
             	cbox1Value = "";
             }
             
-            String html = new String(bFile);
-            html = String.format(html, textarea1Value, cbox1Value);
-            bFile = html.getBytes();
+            return new String[] { textarea1Value, cbox1Value };
         }
     	
-    	return bFile;
+    	return new String[0];
     }
 
     /**
@@ -261,6 +514,12 @@ public class WebServerHttpResponse {
     	case ERR_404_NOT_FOUND:
     		return ("<!DOCTYPE html><html lang=\"en\"><head><meta charset=\"UTF-8\"><title>404 File Not Found" +
                     "</title></head><body>404 File Not Found.</body></html>").getBytes();
+    	case ERR_416_RANGE_NOT_SATISFIABLE:
+    		return ("<!DOCTYPE html><html lang=\"en\"><head><meta charset=\"UTF-8\"><title>416 Range Not Satisfiable" +
+                    "</title></head><body>416 Range Not Satisfiable.</body></html>").getBytes();
+    	case ERR_429_TOO_MANY_REQUESTS:
+    		return ("<!DOCTYPE html><html lang=\"en\"><head><meta charset=\"UTF-8\"><title>429 Too Many Requests" +
+                    "</title></head><body>429 Too Many Requests.</body></html>").getBytes();
     	case ERR_501_NOT_IMPLEMENTED:
     		return ("<!DOCTYPE html><html lang=\"en\"><head><meta charset=\"UTF-8\"><title>501 Not Implemented" +
                     "</title></head><body>501 Not Implemented.</body></html>").getBytes();
@@ -302,81 +561,172 @@ public class WebServerHttpResponse {
     }
 
     /**
-     * In case the request asked the response as chunked
-     * send the body part of the response by chunks and Hex stating how
-     * many bytes were send (before the chunk)
-     * @param body the regular body of the response
-     * @return the chunked body of the response
+     * Compresses a generated (or read into memory) text body, if the client accepts it and it's big enough.
+     * A chunked body is compressed later, while it's streamed.
      */
-    private byte[] sendChunked(byte[] body) {
-        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-        int length = body.length;
-        int copiedBytes = 0;
-        try {
-            while((copiedBytes + CHUNK_SIZE) < length) {
-
-                // Number of bytes in chunk
-                bytes.write(Integer.toHexString(CHUNK_SIZE).getBytes());
-                // CRLF
-                bytes.write(WebServer.CRLF.getBytes());
-                // get CHUNK_SIZE bytes from last place we wrote
-                bytes.write(body, copiedBytes, CHUNK_SIZE);
-                // CRLF
-                bytes.write(WebServer.CRLF.getBytes());
-                // advance by CHUNK_SIZE
-                copiedBytes += CHUNK_SIZE;
+    private void compressBody() {
+        String contentType = headers.get("content-type");
+        if (headerBlock != null || fileBody != null || !Compression.enabled || !Compression.isCompressible(contentType)) {
+            return;
+        }
+
+        // the body depends on the request's accept-encoding
+        headers.put("vary", "Accept-Encoding");
+
+        long size = chunkedFile != null ? chunkedFile.length() : bodyLength();
+        if (acceptedEncoding == Compression.ENCODING_IDENTITY || size < Compression.minBytes) {
+            return;
+        }
+
+        headers.put("content-encoding", Compression.ENCODING_NAMES[acceptedEncoding]);
+        if (isChunkedRequested()) {
+            streamEncoding = acceptedEncoding;
+        } else {
+            if (template != null) {
+                // compressed in one pass, so rendered first
+                body = template.render(templateValues);
+                template = null;
             }
+            body = Compression.compress(body, acceptedEncoding);
+        }
+    }
 
-            // calculate how much bytes are left to send
-            int bytesLeft = length - copiedBytes;
-            // write number of chunk in hex
-            bytes.write(Integer.toHexString(bytesLeft).getBytes());
-            bytes.write(WebServer.CRLF.getBytes());
-            bytes.write(body, copiedBytes, bytesLeft);
-            bytes.write(WebServer.CRLF.getBytes());
-            bytes.write("0".getBytes());
-            bytes.write(WebServer.CRLF.getBytes());
-            bytes.write(WebServer.CRLF.getBytes());
-        } catch (IOException e) {
-            Log.d("Could not write as chunks");
-            return body;
+    /**
+     * @return the length of the in-memory or rendered body.
+     */
+    private int bodyLength() {
+        if (template != null) {
+            return template.length(templateValues);
+        }
+        return body != null ? body.length : 0;
+    }
+
+    /**
+     * @return <code>true</code> if the body is not included in the bytes returned by <code>buildResponse</code>,
+     * and must be streamed with <code>writeBody</code> right after them.
+     */
+    public boolean isStreamed() {
+        return isChunked && !HTTP_METHOD.HEAD.equals(request.getHttpMethod());
+    }
+
+    /**
+     * Streams the body of a chunked response, chunk by chunk, as it's read.
+     * A static file is read chunk by chunk too, so the memory used is bounded by the chunk size.
+     * If the body is compressed, it's compressed on the way.
+     * @param out the connection stream. Flushed, but not closed.
+     * @return the number of bytes written, including the chunk framing.
+     * @throws IOException for any file or socket error.
+     */
+    public long writeBody(OutputStream out) throws IOException {
+        ChunkedOutputStream chunkedOut = new ChunkedOutputStream(out, WebServer.chunkSize);
+        OutputStream bodyOut = chunkedOut;
+        if (streamEncoding != Compression.ENCODING_IDENTITY) {
+            bodyOut = Compression.wrap(chunkedOut, streamEncoding);
         }
 
-        return bytes.toByteArray();
+        writeStreamedBody(bodyOut);
+
+        // ends the compressed data, and then the chunked body
+        bodyOut.close();
+        return chunkedOut.getBytesWritten();
+    }
+
+    /**
+     * Writes the body of a streamed response, with no framing.
+     */
+    private void writeStreamedBody(OutputStream bodyOut) throws IOException {
+        if (chunkedFile != null) {
+            FileInputStream fis = new FileInputStream(chunkedFile);
+            try {
+                byte[] chunk = new byte[WebServer.chunkSize];
+                int n;
+                while ((n = fis.read(chunk)) != -1) {
+                    bodyOut.write(chunk, 0, n);
+                }
+            } finally {
+                fis.close();
+            }
+        } else if (template != null) {
+            template.render(bodyOut, templateValues);
+        } else if (body != null) {
+            bodyOut.write(body);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the response has a body to send. A HEAD or a 304 doesn't.
+     */
+    public boolean hasBody() {
+        if (HTTP_METHOD.HEAD.equals(request.getHttpMethod()) || code == HTTP_CODE.C304_NOT_MODIFIED) {
+            return false;
+        }
+        return fileBody != null || isChunked || bodyLength() > 0;
+    }
+
+    /**
+     * For HTTP/2, which frames the body itself: the header fields of a response made with <code>prepare</code>,
+     * with lower-case names and without the HTTP/1.x connection headers.
+     * @return {name, value} pairs, <code>:status</code> first.
+     */
+    public List<String[]> getHeaderFields() {
+        ArrayList<String[]> fields = new ArrayList<>();
+        fields.add(new String[] { ":status", code.toString().substring(0, 3) });
+        if (headerBlock != null) {
+            for (String line : headerBlock.split(WebServer.CRLF)) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    fields.add(new String[] { line.substring(0, colon).toLowerCase(), line.substring(colon + 1).trim() });
+                }
+            }
+        }
+        for (String name : headers.keySet()) {
+            String lowerName = name.toLowerCase();
+            if (!lowerName.equals("connection") && !lowerName.equals("transfer-encoding")) {
+                fields.add(new String[] { lowerName, headers.get(name) });
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * For HTTP/2: writes the body of a response made with <code>prepare</code> as is - whatever kind of body it is,
+     * with no chunked framing - and closes the stream.
+     * @throws IOException for any file or stream error.
+     */
+    public void writeContent(OutputStream out) throws IOException {
+        try {
+            if (fileBody != null) {
+                fileBody.transferTo(Channels.newChannel(out));
+            } else if (isChunked) {
+                // compressed while it's written, like a chunked body
+                OutputStream bodyOut = out;
+                if (streamEncoding != Compression.ENCODING_IDENTITY) {
+                    bodyOut = Compression.wrap(out, streamEncoding);
+                }
+                writeStreamedBody(bodyOut);
+                bodyOut.close();
+            } else if (template != null) {
+                template.render(out, templateValues);
+            } else if (body != null) {
+                out.write(body);
+            }
+        } finally {
+            if (fileBody != null) {
+                fileBody.close();
+                fileBody = null;
+            }
+            out.close();
+        }
     }
 
     /**
      * builds a response according to the request and its validity
      * @param request The user's request
-     * @return HTTPResponse according to the request given
+     * @return HTTPResponse according to the request given. A static file body is not included - see <code>getFileBody</code>,
+     * and neither is a chunked body - see <code>writeBody</code>.
      */
     public byte[] buildResponse(WebServerHttpRequest request) {
-        this.request = request;
-        
-        validateHTTPCode();
-        setHttpVersion();
-        setPathAndType();
-        addConnectionHedaer();
-        //TODO: add HOST header for HTTP/1.1
-
-        HTTP_METHOD reqMethod = request.getHttpMethod();
-	    if (reqMethod != null && reqMethod.equals(HTTP_METHOD.TRACE)) {
-	        // creates a response that is exactly the request
-	        body = request.getRawRequestData().getBytes();
-	        headers.put("content-type", CONTENT_TYPE.MSG_HTTP.toString());
-	        //headers.put("connection", "close");
-	        code = HTTP_CODE.C200_OK;
-	    } else if (reqMethod != null && reqMethod.equals(HTTP_METHOD.OPTIONS)) {
-	        // creates a response with all methods available and content-length 0
-	        headers.put("Allow", reqMethod.methodsList());
-	    } else {
-	        // get file name by the HTTP_CODE and create a regular file response
-	        File file = getFileByCode(code);
-	        body = readFile(file);
-	    }
-        
-        // check and add transfer-encoding header if necessary
-        checkChunked();
+        prepare(request);
 
         // START BUILDING THE RESPONSE :)
         StringBuilder builder = new StringBuilder();
@@ -387,6 +737,9 @@ public class WebServerHttpResponse {
         builder.append(WebServer.CRLF);
 
         // add all response headers
+        if (headerBlock != null) {
+            builder.append(headerBlock);
+        }
         for (String s: this.headers.keySet()) {
             builder.append(s);
             builder.append(": ");
@@ -395,23 +748,26 @@ public class WebServerHttpResponse {
         }
 
         builder.append(WebServer.CRLF);
-        
-        // print response head as requested
-        System.out.println(builder.toString());
 
         // if we only want the head
-        if ((request.getHttpMethod() != null) && (request.getHttpMethod().equals(HTTP_METHOD.HEAD))) {        	
+        if ((request.getHttpMethod() != null) && (request.getHttpMethod().equals(HTTP_METHOD.HEAD))) {
+            return builder.toString().getBytes();
+        }
+
+        // a chunked body is streamed by the caller
+        if (isChunked) {
             return builder.toString().getBytes();
         }
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] head = builder.toString().getBytes();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(head.length + bodyLength());
 
         try {
-            baos.write(builder.toString().getBytes());
-            if (body != null) {
-                if (isChunked) {
-                    body = sendChunked(body);
-                }
+            baos.write(head);
+            if (template != null) {
+                // rendered straight after the head
+                template.render(baos, templateValues);
+            } else if (body != null) {
                 baos.write(body, 0, body.length);
             }
         } catch (IOException e) {
@@ -419,4 +775,59 @@ public class WebServerHttpResponse {
         }
         return baos.toByteArray();
     }
+
+    /**
+     * Prepares the response to the request - its code, headers and body - without building the HTTP/1.x bytes.
+     * An HTTP/2 stream takes it from here with <code>getHeaderFields</code> and <code>writeContent</code>.
+     * @param request The user's request
+     */
+    public void prepare(WebServerHttpRequest request) {
+        this.request = request;
+        
+        validateHTTPCode();
+        setHttpVersion();
+        setPathAndType();
+        addConnectionHedaer();
+        acceptedEncoding = Compression.negotiate(request.getHeaders().get("accept-encoding"));
+        //TODO: add HOST header for HTTP/1.1
+
+        HTTP_METHOD reqMethod = request.getHttpMethod();
+	    if (code == HTTP_CODE.ERR_429_TOO_MANY_REQUESTS) {
+	        // the client is throttled - told when to come back, whatever it asked for
+	        body = getDefaultResponseContent();
+	        headers.put("retry-after", String.valueOf(retryAfterSeconds));
+	    } else if (reqMethod != null && reqMethod.equals(HTTP_METHOD.TRACE)) {
+	        // creates a response that is exactly the request
+	        body = request.getRawRequestData().getBytes();
+	        headers.put("content-type", CONTENT_TYPE.MSG_HTTP.toString());
+	        //headers.put("connection", "close");
+	        code = HTTP_CODE.C200_OK;
+	    } else if (reqMethod != null && reqMethod.equals(HTTP_METHOD.OPTIONS)) {
+	        // creates a response with all methods available and content-length 0
+	        headers.put("Allow", reqMethod.methodsList());
+	    } else if (code == HTTP_CODE.C200_OK && WebServer.METRICS_PATH.equals(request.getPath())) {
+	        // the metrics are generated, there's no file behind them
+	        body = Metrics.getInstance().expose().getBytes();
+	        headers.put("content-type", CONTENT_TYPE.TEXT_PLAIN_METRICS.toString());
+	    } else {
+	        // get file name by the HTTP_CODE and create a regular file response
+	        File file = getFileByCode(code);
+	        if (!setStaticBody(file) && !setTemplateBody(file)) {
+	            body = readFile(file);
+	        }
+	    }
+        
+        compressBody();
+
+        // check and add transfer-encoding header if necessary. A 304 has no body at all.
+        if (headerBlock == null && code != HTTP_CODE.C304_NOT_MODIFIED) {
+            checkChunked();
+        }
+
+        // a HEAD gets only the head, the file's length was taken
+        if (HTTP_METHOD.HEAD.equals(request.getHttpMethod()) && fileBody != null) {
+            fileBody.close();
+            fileBody = null;
+        }
+    }
 }